@@ -0,0 +1,399 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.jenkins.plugins.googlecontainerregistryauth;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import hudson.model.ItemGroup;
+import hudson.model.Job;
+import hudson.model.Run;
+
+/**
+ * Attributes the token requests, mints and credential lookups of the master
+ * to the jobs and folders behind them, so that administrators can find the
+ * pipelines that drive the token traffic, see
+ * {@link GoogleContainerRegistryDiagnostics}.
+ *
+ * <p>
+ * Memory stays bounded however many jobs there are: only the heaviest jobs
+ * and folders are tracked, with the Space-Saving algorithm. Each tracked key
+ * counts its token requests, cache hits and mints, and keeps a histogram of
+ * its lookup times in power of two buckets. A key that displaces a lighter
+ * one inherits its weight as an upper bound of the error, but starts its
+ * other counts afresh. The number of keys tracked may be set with the
+ * {@code capacity} system property, prefixed with the name of this class.
+ *
+ * <p>
+ * Work is attributed to the build the caller asks for tokens on behalf of,
+ * see {@link GoogleContainerRegistryTokenLease#currentRun}, if any, and
+ * lookups to the item group they are made from.
+ */
+public final class GoogleContainerRegistryAttribution {
+  private static final int CAPACITY = Integer.getInteger(
+      GoogleContainerRegistryAttribution.class.getName() + ".capacity", 100);
+
+  /** Labels the work of no folder, at the root of Jenkins. */
+  static final String ROOT = "(root)";
+
+  private static final GoogleContainerRegistryAttribution INSTANCE =
+      new GoogleContainerRegistryAttribution(CAPACITY);
+
+  private final TopK jobs;
+  private final TopK folders;
+
+  @VisibleForTesting
+  GoogleContainerRegistryAttribution(int capacity) {
+    this.jobs = new TopK(capacity);
+    this.folders = new TopK(capacity);
+  }
+
+  /**
+   * @return the attribution of this JVM.
+   */
+  public static GoogleContainerRegistryAttribution get() {
+    return INSTANCE;
+  }
+
+  /**
+   * Records a token request of the current build, if any.
+   *
+   * @param hit whether the token was cached.
+   */
+  static void tokenRequest(boolean hit) {
+    Job<?, ?> job = currentJob();
+    if (job != null) {
+      INSTANCE.record(job.getFullName(), folderOf(job.getParent()),
+          hit ? Kind.HIT : Kind.MISS, 0L);
+    }
+  }
+
+  /**
+   * Records a mint the current build, if any, asked for.
+   */
+  static void mint() {
+    Job<?, ?> job = currentJob();
+    if (job != null) {
+      INSTANCE.record(job.getFullName(), folderOf(job.getParent()),
+          Kind.MINT, 0L);
+    }
+  }
+
+  /**
+   * Records a credential lookup made from {@code itemGroup}.
+   *
+   * @param nanos how long the lookup took.
+   */
+  static void lookup(@Nullable ItemGroup<?> itemGroup, long nanos) {
+    Job<?, ?> job = currentJob();
+    String folder = (itemGroup != null) ? folderOf(itemGroup)
+        : (job != null) ? folderOf(job.getParent()) : null;
+    INSTANCE.record((job == null) ? null : job.getFullName(), folder,
+        Kind.LOOKUP, nanos);
+  }
+
+  @VisibleForTesting
+  void record(@Nullable String job, @Nullable String folder, Kind kind,
+      long nanos) {
+    if (job != null) {
+      jobs.record(job, kind, nanos);
+    }
+    if (folder != null) {
+      folders.record(folder, kind, nanos);
+    }
+  }
+
+  /**
+   * @return the heaviest jobs, the heaviest first.
+   */
+  public List<Counter> getJobs() {
+    return jobs.snapshot();
+  }
+
+  /**
+   * @return the heaviest folders, the heaviest first.
+   */
+  public List<Counter> getFolders() {
+    return folders.snapshot();
+  }
+
+  /**
+   * Forgets everything recorded so far.
+   */
+  public void clear() {
+    jobs.clear();
+    folders.clear();
+  }
+
+  @Nullable
+  private static Job<?, ?> currentJob() {
+    Run<?, ?> run = GoogleContainerRegistryTokenLease.currentRun();
+    return (run == null) ? null : run.getParent();
+  }
+
+  private static String folderOf(ItemGroup<?> itemGroup) {
+    String name = itemGroup.getFullName();
+    return (name == null || name.isEmpty()) ? ROOT : name;
+  }
+
+  /**
+   * What is recorded.
+   */
+  enum Kind {
+    HIT, MISS, MINT, LOOKUP
+  }
+
+  /**
+   * The Space-Saving summary of the heaviest keys.
+   */
+  private static final class TopK {
+    private final int capacity;
+    private final Map<String, Counter> counters = Maps.newHashMap();
+
+    TopK(int capacity) {
+      checkArgument(capacity > 0);
+      this.capacity = capacity;
+    }
+
+    synchronized void record(String key, Kind kind, long nanos) {
+      Counter counter = counters.get(key);
+      if (counter == null) {
+        if (counters.size() < capacity) {
+          counter = new Counter();
+          counter.reset(key, 0L);
+        } else {
+          counter = lightest();
+          counters.remove(counter.key);
+          counter.reset(key, counter.weight);
+        }
+        counters.put(key, counter);
+      }
+      counter.add(kind, nanos);
+    }
+
+    private Counter lightest() {
+      Counter lightest = null;
+      for (Counter counter : counters.values()) {
+        if (lightest == null || counter.weight < lightest.weight) {
+          lightest = counter;
+        }
+      }
+      return lightest;
+    }
+
+    synchronized List<Counter> snapshot() {
+      List<Counter> result = Lists.newArrayListWithCapacity(counters.size());
+      for (Counter counter : counters.values()) {
+        result.add(counter.copy());
+      }
+      Collections.sort(result, HEAVIEST_FIRST);
+      return result;
+    }
+
+    synchronized void clear() {
+      counters.clear();
+    }
+  }
+
+  private static final Comparator<Counter> HEAVIEST_FIRST =
+      new Comparator<Counter>() {
+        @Override
+        public int compare(Counter a, Counter b) {
+          return (a.weight < b.weight) ? 1 : (a.weight > b.weight) ? -1 : 0;
+        }
+      };
+
+  /**
+   * What was recorded for a job or folder since it was last tracked.
+   */
+  public static final class Counter {
+    /** The number of power of two buckets of microseconds. */
+    static final int BUCKETS = 32;
+
+    private String key;
+    private long weight;
+    private long error;
+    private long hits;
+    private long misses;
+    private long mints;
+    private long lookups;
+    private long lookupNanos;
+    private final long[] lookupBuckets = new long[BUCKETS];
+
+    void reset(String key, long error) {
+      this.key = key;
+      this.weight = error;
+      this.error = error;
+      this.hits = 0L;
+      this.misses = 0L;
+      this.mints = 0L;
+      this.lookups = 0L;
+      this.lookupNanos = 0L;
+      for (int i = 0; i < BUCKETS; i++) {
+        lookupBuckets[i] = 0L;
+      }
+    }
+
+    void add(Kind kind, long nanos) {
+      weight++;
+      switch (kind) {
+        case HIT:
+          hits++;
+          break;
+        case MISS:
+          misses++;
+          break;
+        case MINT:
+          mints++;
+          break;
+        case LOOKUP:
+          lookups++;
+          lookupNanos += nanos;
+          lookupBuckets[bucket(nanos)]++;
+          break;
+        default:
+          throw new AssertionError(kind);
+      }
+    }
+
+    Counter copy() {
+      Counter copy = new Counter();
+      copy.key = key;
+      copy.weight = weight;
+      copy.error = error;
+      copy.hits = hits;
+      copy.misses = misses;
+      copy.mints = mints;
+      copy.lookups = lookups;
+      copy.lookupNanos = lookupNanos;
+      System.arraycopy(lookupBuckets, 0, copy.lookupBuckets, 0, BUCKETS);
+      return copy;
+    }
+
+    /**
+     * @return the bucket of {@code nanos}: bucket {@code i} holds durations
+     *         below {@code 2^i} microseconds.
+     */
+    @VisibleForTesting
+    static int bucket(long nanos) {
+      long micros = TimeUnit.NANOSECONDS.toMicros(Math.max(0L, nanos));
+      int bucket = 64 - Long.numberOfLeadingZeros(micros);
+      return Math.min(bucket, BUCKETS - 1);
+    }
+
+    /**
+     * @return the full name of the job or folder.
+     */
+    public String getKey() {
+      return key;
+    }
+
+    /**
+     * @return the number of events recorded, overestimated by at most
+     *         {@link #getError}.
+     */
+    public long getWeight() {
+      return weight;
+    }
+
+    /**
+     * @return by how much {@link #getWeight} may overestimate.
+     */
+    public long getError() {
+      return error;
+    }
+
+    /**
+     * @return the number of token requests served from the cache.
+     */
+    public long getHits() {
+      return hits;
+    }
+
+    /**
+     * @return the number of token requests that were not.
+     */
+    public long getMisses() {
+      return misses;
+    }
+
+    /**
+     * @return the number of mints asked for.
+     */
+    public long getMints() {
+      return mints;
+    }
+
+    /**
+     * @return the number of credential lookups.
+     */
+    public long getLookups() {
+      return lookups;
+    }
+
+    /**
+     * @return the time spent looking credentials up, in milliseconds.
+     */
+    public long getLookupMillis() {
+      return TimeUnit.NANOSECONDS.toMillis(lookupNanos);
+    }
+
+    /**
+     * @param percentile between 0 and 1.
+     * @return an upper bound of the lookup time that {@code percentile} of
+     *         the lookups did not exceed, in microseconds, or 0 if there
+     *         were none.
+     */
+    public long getLookupMicros(double percentile) {
+      checkArgument(percentile >= 0 && percentile <= 1);
+      long rank = (long) Math.ceil(percentile * lookups);
+      long seen = 0L;
+      for (int i = 0; i < BUCKETS; i++) {
+        seen += lookupBuckets[i];
+        if (seen >= rank && seen > 0) {
+          return 1L << i;
+        }
+      }
+      return 0L;
+    }
+
+    /**
+     * @return see {@link #getLookupMicros}, for the median.
+     */
+    public long getLookupP50Micros() {
+      return getLookupMicros(0.5);
+    }
+
+    /**
+     * @return see {@link #getLookupMicros}, for the 99th percentile.
+     */
+    public long getLookupP99Micros() {
+      return getLookupMicros(0.99);
+    }
+  }
+}
@@ -0,0 +1,257 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.jenkins.plugins.googlecontainerregistryauth;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.cloudbees.plugins.credentials.common.StandardUsernamePasswordCredentials;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.Maps;
+import com.google.common.io.CharStreams;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+import org.apache.commons.codec.binary.Base64;
+
+import hudson.ProxyConfiguration;
+import hudson.util.Secret;
+
+import net.sf.json.JSONException;
+import net.sf.json.JSONObject;
+
+/**
+ * Exchanges the OAuth2 access tokens of a credential for the bearer tokens a
+ * registry issues for a repository, and caches them until they are about to
+ * expire, so that tools that accept bearer tokens skip the {@code /v2/token}
+ * round trip a Docker client makes for every repository and action.
+ *
+ * <p>
+ * A bearer token is exchanged per credential and OAuth2 scopes, registry
+ * host, repository and set of actions, either {@code pull} or
+ * {@code pull,push}. The access token of the credential is only obtained
+ * when a bearer token must be exchanged, and concurrent requests for the
+ * same bearer token share a single exchange.
+ * The number of bearer tokens kept may be set with the {@code cacheSize}
+ * system property, prefixed with the name of this class.
+ */
+public final class GoogleContainerRegistryBearerTokens {
+  private static final int CACHE_SIZE = Integer.getInteger(
+      GoogleContainerRegistryBearerTokens.class.getName() + ".cacheSize",
+      1024);
+
+  /** Bearer tokens are handed out while they have more than this left. */
+  private static final long MARGIN_MILLIS = TimeUnit.SECONDS.toMillis(10);
+
+  /** The lifetime of bearer tokens that do not tell, per the registry API. */
+  private static final long DEFAULT_LIFETIME_SECONDS = 60L;
+
+  private static final int CONNECT_TIMEOUT_MILLIS =
+      (int) TimeUnit.SECONDS.toMillis(10);
+  private static final int READ_TIMEOUT_MILLIS =
+      (int) TimeUnit.SECONDS.toMillis(30);
+
+  private static final GoogleContainerRegistryBearerTokens INSTANCE =
+      new GoogleContainerRegistryBearerTokens("https");
+
+  private final String scheme;
+  private final Cache<String, GoogleContainerRegistryToken> tokens;
+  private final ConcurrentMap<String, FutureTask<GoogleContainerRegistryToken>>
+      inFlight = Maps.newConcurrentMap();
+
+  /**
+   * @param scheme the scheme of the token endpoints, {@code https} but in
+   *        tests.
+   */
+  @VisibleForTesting
+  GoogleContainerRegistryBearerTokens(String scheme) {
+    this.scheme = checkNotNull(scheme);
+    this.tokens = CacheBuilder.newBuilder()
+        .maximumSize(CACHE_SIZE)
+        .build();
+  }
+
+  /**
+   * @return the bearer tokens of this JVM.
+   */
+  public static GoogleContainerRegistryBearerTokens get() {
+    return INSTANCE;
+  }
+
+  /**
+   * @param credentials the credential to exchange the password of, such as
+   *        a {@link GoogleContainerRegistryCredential}.
+   * @param scopeKey the OAuth2 scopes of the password, see
+   *        {@link GoogleContainerRegistryTokenPools#getScopeKey}. Variants
+   *        of a credential share its id, so that a pull only variant never
+   *        gets the bearer token of a read write one.
+   * @param host the registry host, e.g. {@code gcr.io}.
+   * @param repository the repository, e.g. {@code my-project/my-image}.
+   * @param push whether the token must allow pushing, and not only pulling.
+   * @return a bearer token for {@code repository}, cached or newly
+   *         exchanged.
+   * @throws IOException if the registry refused the exchange.
+   */
+  public GoogleContainerRegistryToken getToken(
+      final StandardUsernamePasswordCredentials credentials,
+      String scopeKey, final String host, final String repository,
+      boolean push) throws IOException {
+    final String actions = push ? "pull,push" : "pull";
+    String key = credentials.getId() + " " + scopeKey + " " + host + " "
+        + repository + " " + actions;
+    GoogleContainerRegistryToken token = tokens.getIfPresent(key);
+    if (token != null
+        && token.isValidFor(System.currentTimeMillis(), MARGIN_MILLIS)) {
+      GoogleContainerRegistryFlightEvents.cacheHit(true);
+      return token;
+    }
+    GoogleContainerRegistryFlightEvents.cacheHit(false);
+    FutureTask<GoogleContainerRegistryToken> task =
+        new FutureTask<GoogleContainerRegistryToken>(
+            new Callable<GoogleContainerRegistryToken>() {
+              @Override
+              public GoogleContainerRegistryToken call() throws IOException {
+                return exchange(credentials, host, repository, actions);
+              }
+            });
+    FutureTask<GoogleContainerRegistryToken> existing =
+        inFlight.putIfAbsent(key, task);
+    if (existing == null) {
+      try {
+        task.run();
+      } finally {
+        inFlight.remove(key, task);
+      }
+    } else {
+      task = existing;
+    }
+    try {
+      token = Uninterruptibles.getUninterruptibly(task);
+    } catch (ExecutionException e) {
+      Throwables.propagateIfInstanceOf(e.getCause(), IOException.class);
+      throw Throwables.propagate(e.getCause());
+    }
+    tokens.put(key, token);
+    return token;
+  }
+
+  /**
+   * Forgets the bearer tokens of {@code credentialsId}, e.g. after the
+   * registry turned one down.
+   */
+  public void invalidate(String credentialsId) {
+    String prefix = credentialsId + " ";
+    for (String key : tokens.asMap().keySet()) {
+      if (key.startsWith(prefix)) {
+        tokens.invalidate(key);
+      }
+    }
+  }
+
+  private GoogleContainerRegistryToken exchange(
+      StandardUsernamePasswordCredentials credentials, String host,
+      String repository, String actions) throws IOException {
+    GoogleContainerRegistrySlowOps.Op op = GoogleContainerRegistrySlowOps
+        .start("exchangeBearerToken", credentials.getId(), null);
+    try {
+      Secret password = credentials.getPassword();
+      op.phase("password");
+      if (password == null) {
+        Throwable cause =
+            (credentials instanceof GoogleContainerRegistryCredential)
+            ? ((GoogleContainerRegistryCredential) credentials).getLastError()
+            : null;
+        throw new IOException("No access token to exchange for "
+            + credentials.getId() + ((cause == null) ? "" : ": " + cause),
+            cause);
+      }
+      URL url = new URL(scheme + "://" + host + "/v2/token?service="
+          + URLEncoder.encode(host, "UTF-8") + "&scope="
+          + URLEncoder.encode(
+              "repository:" + repository + ":" + actions, "UTF-8"));
+      HttpURLConnection connection =
+          (HttpURLConnection) ProxyConfiguration.open(url);
+      connection.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+      connection.setReadTimeout(READ_TIMEOUT_MILLIS);
+      connection.setRequestProperty("Authorization", "Basic "
+          + Base64.encodeBase64String((credentials.getUsername() + ":"
+              + Secret.toString(password)).getBytes(Charsets.UTF_8)));
+      try {
+        int status = connection.getResponseCode();
+        if (status != HttpURLConnection.HTTP_OK) {
+          throw new IOException("The registry " + host + " answered " + status
+              + " to the token request for " + repository);
+        }
+        return parse(read(connection.getInputStream()),
+            System.currentTimeMillis());
+      } finally {
+        connection.disconnect();
+      }
+    } finally {
+      op.end("exchange");
+    }
+  }
+
+  /**
+   * @return the bearer token of the registry's {@code response}.
+   */
+  @VisibleForTesting
+  static GoogleContainerRegistryToken parse(String response, long nowMillis)
+      throws IOException {
+    try {
+      JSONObject json = JSONObject.fromObject(response);
+      String token = json.optString("token");
+      if (Strings.isNullOrEmpty(token)) {
+        token = json.optString("access_token");
+      }
+      if (Strings.isNullOrEmpty(token)) {
+        throw new IOException("The registry answered without a token");
+      }
+      long expiresInSeconds =
+          json.optLong("expires_in", DEFAULT_LIFETIME_SECONDS);
+      return new GoogleContainerRegistryToken(Secret.fromString(token),
+          nowMillis + TimeUnit.SECONDS.toMillis(expiresInSeconds));
+    } catch (JSONException e) {
+      throw new IOException("The registry answered with malformed JSON", e);
+    }
+  }
+
+  private static String read(InputStream in) throws IOException {
+    Reader reader = new InputStreamReader(in, Charsets.UTF_8);
+    try {
+      return CharStreams.toString(reader);
+    } finally {
+      reader.close();
+    }
+  }
+}
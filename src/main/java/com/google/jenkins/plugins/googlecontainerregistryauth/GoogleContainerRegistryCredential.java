@@ -44,6 +44,7 @@ import org.kohsuke.stapler.DataBoundConstructor;
 
 import hudson.Extension;
 import hudson.XmlFile;
+import hudson.model.Run;
 import hudson.util.Secret;
 
 import jenkins.model.Jenkins;
@@ -72,9 +73,24 @@ public class GoogleContainerRegistryCredential
   private final String credentialsId;
   @VisibleForTesting GoogleContainerRegistryCredentialModule module;
 
+  /**
+   * The name of the wrapped credential, if resolved up front.
+   */
+  @Nullable private final String name;
+
   @DataBoundConstructor
   public GoogleContainerRegistryCredential(String credentialsId,
       @Nullable GoogleContainerRegistryCredentialModule module) {
+    this(credentialsId, module, null);
+  }
+
+  /**
+   * @param name the name of the wrapped credential, so that listing this
+   *        credential does not need to look the wrapped one up again.
+   */
+  GoogleContainerRegistryCredential(String credentialsId,
+      @Nullable GoogleContainerRegistryCredentialModule module,
+      @Nullable String name) {
     super(CredentialsScope.GLOBAL, "gcr:" + credentialsId,
         "Google Container Registry" /* description */);
     this.credentialsId = checkNotNull(credentialsId);
@@ -83,6 +99,7 @@ public class GoogleContainerRegistryCredential
     } else {
       this.module = new GoogleContainerRegistryCredentialModule();
     }
+    this.name = name;
   }
 
   /**
@@ -93,6 +110,29 @@ public class GoogleContainerRegistryCredential
     return credentialsId;
   }
 
+  /**
+   * @param requirement the scopes to mint tokens with, e.g.
+   *        {@link GoogleContainerRegistryScopeRequirement#READ_ONLY} where
+   *        images are only pulled.
+   * @return a credential like this one, whose tokens carry
+   *         {@code requirement}.
+   */
+  public GoogleContainerRegistryCredential forRequirement(
+      GoogleContainerRegistryScopeRequirement requirement) {
+    return new GoogleContainerRegistryCredential(credentialsId,
+        module.forRequirement(requirement), name);
+  }
+
+  /**
+   * @return why the last access token could not be obtained, if none has
+   *         been since, see
+   *         {@link GoogleContainerRegistryCredentialModule#getLastError}.
+   */
+  @Nullable
+  public Throwable getLastError() {
+    return module.getLastError(getCredentialsId());
+  }
+
   /**
    * @return "not@val.id", this is an hard coded value that Google Container
    *         Registry expects.
@@ -138,18 +178,33 @@ public class GoogleContainerRegistryCredential
    * we are writing to disk.
    */
   private void writeObject(ObjectOutputStream oos) throws IOException {
-    oos.defaultWriteObject();
-    // Pass a remotable version of our module, tailored to this local
-    // credential, to the receiving readObject method.
-    // NOTE: If this is simply serializing to disk, the readObject will ignore
-    // this when reading it back in.
+    GoogleContainerRegistrySlowOps.Op op = GoogleContainerRegistrySlowOps
+        .start("writeObject", credentialsId, null);
     try {
-      oos.writeObject(module.forRemote(getCredentials()));
+      oos.defaultWriteObject();
+      // Pass a remotable version of our module, tailored to this local
+      // credential, to the receiving readObject method.
+      // NOTE: If this is simply serializing to disk, the readObject will
+      // ignore this when reading it back in.
+      GoogleContainerRegistryCredentialModule remote = forRemote();
+      op.phase("forRemote");
+      oos.writeObject(remote);
     } catch (GeneralSecurityException e) {
       throw new IOException(e);
+    } finally {
+      op.end("write");
     }
   }
 
+  /**
+   * @return a remotable version of our module, tailored to this credential,
+   *         that can establish identity and obtain tokens on an agent.
+   */
+  GoogleContainerRegistryCredentialModule forRemote()
+      throws GeneralSecurityException {
+    return module.forRemote(getCredentials());
+  }
+
   /**
    * Support reading our credential from the wire or disk.
    *
@@ -158,18 +213,27 @@ public class GoogleContainerRegistryCredential
    */
   private void readObject(ObjectInputStream ois)
       throws IOException, ClassNotFoundException {
-    ois.defaultReadObject();
-    if (!isOnMaster()) {
-      // Read in the remotable module, which we will use for things like
-      // retrieving identity and credentials.
-      this.module =
-          (GoogleContainerRegistryCredentialModule) ois.readObject();
+    GoogleContainerRegistrySlowOps.Op op =
+        GoogleContainerRegistrySlowOps.start("readObject", null, null);
+    try {
+      ois.defaultReadObject();
+      if (!isOnMaster()) {
+        // Read in the remotable module, which we will use for things like
+        // retrieving identity and credentials.
+        this.module =
+            (GoogleContainerRegistryCredentialModule) ois.readObject();
+      }
+    } finally {
+      op.end("read");
     }
   }
 
   /** {@inheritDoc} */
   @Override
   public String getDescription() {
+    if (name != null) {
+      return name;
+    }
     return CredentialsNameProvider.name(getCredentials());
   }
 
@@ -221,7 +285,52 @@ public class GoogleContainerRegistryCredential
   /** {@inheritDoc} */
   @Override
   public Secret getPassword() {
-    return module.getToken(getCredentials());
+    return getPassword(GoogleContainerRegistryTokenLease.currentRun());
+  }
+
+  /**
+   * @param run the build asking for the password, if any. Its steps and
+   *        parallel branches share a single token, even those that do not
+   *        run on its executor, as Pipeline steps do not.
+   * @return the password, see {@link #getPassword()}.
+   */
+  public Secret getPassword(@Nullable Run<?, ?> run) {
+    GoogleContainerRegistrySlowOps.Op op = GoogleContainerRegistrySlowOps
+        .start("getPassword", credentialsId, null);
+    // So that the token traffic is attributed to the build.
+    Run<?, ?> previous = GoogleContainerRegistryTokenLease.enter(run);
+    try {
+      GoogleRobotCredentials credentials = getCredentials();
+      op.phase("lookup");
+      // Steps of the same build share a single token, rather than each
+      // minting their own.
+      if (run != null) {
+        return GoogleContainerRegistryTokenLease.of(run)
+            .getToken(getCredentialsId(), module, credentials);
+      }
+      return module.getToken(credentials);
+    } finally {
+      GoogleContainerRegistryTokenLease.exit(previous);
+      op.end("token");
+    }
+  }
+
+  /**
+   * @param host the registry host, e.g. {@code gcr.io}.
+   * @param repository the repository, e.g. {@code my-project/my-image}.
+   * @param push whether the token must allow pushing, and not only pulling.
+   * @return a registry bearer token for {@code repository}, for tools that
+   *         accept one instead of a username and password, see
+   *         {@link GoogleContainerRegistryBearerTokens}.
+   * @throws IOException if the registry refused to issue one.
+   */
+  public Secret getBearerToken(String host, String repository, boolean push)
+      throws IOException {
+    return GoogleContainerRegistryBearerTokens.get()
+        .getToken(this,
+            GoogleContainerRegistryTokenPools.getScopeKey(
+                module.getRequirement()),
+            host, repository, push).getValue();
   }
 
   /**
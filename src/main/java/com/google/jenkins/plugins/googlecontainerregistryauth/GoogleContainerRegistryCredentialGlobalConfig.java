@@ -16,33 +16,62 @@
 
 package com.google.jenkins.plugins.googlecontainerregistryauth;
 
+import java.io.File;
+import java.util.List;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
 import javax.annotation.Nullable;
 
+import com.cloudbees.plugins.credentials.domains.Domain;
+import com.cloudbees.plugins.credentials.domains.DomainRequirement;
+import com.cloudbees.plugins.credentials.domains.DomainSpecification;
+import com.cloudbees.plugins.credentials.domains.HostnameRequirement;
+import com.cloudbees.plugins.credentials.domains.HostnameSpecification;
+import com.cloudbees.plugins.credentials.domains.SchemeRequirement;
+import com.cloudbees.plugins.credentials.domains.SchemeSpecification;
 import com.google.api.client.util.Strings;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Joiner;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
 
 import org.kohsuke.stapler.StaplerRequest;
 
 import hudson.Extension;
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
 import jenkins.model.GlobalConfiguration;
+import jenkins.model.Jenkins;
 
 import net.sf.json.JSONObject;
 
 
 /**
  * Provides global configuration for this plgin.
+ *
+ * <p>
+ * Nothing is read while extensions are being loaded: the configuration is
+ * read into an immutable {@link Snapshot} when first needed, and the
+ * configuration of older versions is migrated by a one-time initializer.
  */
 @Extension
 public class GoogleContainerRegistryCredentialGlobalConfig
     extends GlobalConfiguration {
   private static final String GCR_SERVER = "gcr.io,*.gcr.io";
 
+  /**
+   * Where older versions kept their configuration, relative to
+   * {@code JENKINS_HOME}.
+   */
+  private static final String LEGACY_CONFIG_FILE =
+      GoogleContainerRegistryCredential.class.getName() + ".xml";
+
   public GoogleContainerRegistryCredentialGlobalConfig() {
-    oldDescriptor = new GoogleContainerRegistryCredential.DescriptorImpl();
-    if (Strings.isNullOrEmpty(oldDescriptor.getGcrServer())) {
-      load();
-    } else {
-      gcrServer = oldDescriptor.getGcrServer();
-    }
   }
 
   /** {@inheritDoc} */
@@ -54,23 +83,313 @@ public class GoogleContainerRegistryCredentialGlobalConfig
 
   /** {@inheritDoc} */
   @Override
-  public boolean configure(StaplerRequest req, JSONObject json)
+  public synchronized boolean configure(StaplerRequest req, JSONObject json)
       throws FormException {
     json = json.getJSONObject(getDisplayName());
+    getSnapshot();
     gcrServer = json.has("gcrServer") ?
         json.getString("gcrServer") : null;
+    hostAccounts = json.has("hostAccounts") ?
+        json.getString("hostAccounts") : null;
+    brokerTokens = json.optBoolean("brokerTokens");
+    takeSnapshot();
+    setPersistTokens(json.optBoolean("persistTokens"));
     save();
-    oldDescriptor.deleteConfigFile();
     return true;
   }
 
+  /**
+   * @return the configuration currently in effect, which is read on first
+   *         use.
+   */
+  public Snapshot getSnapshot() {
+    Snapshot current = snapshot;
+    if (current == null) {
+      synchronized (this) {
+        current = snapshot;
+        if (current == null) {
+          long start = System.nanoTime();
+          load();
+          current = takeSnapshot();
+          LOGGER.log(Level.FINE, "Read {0} in {1} ms", new Object[] {
+              getConfigFile(), TimeUnit.NANOSECONDS.toMillis(
+                  System.nanoTime() - start)});
+        }
+      }
+    }
+    return current;
+  }
+
   /**
    * @return the Google Registry Container server URL.
    */
   @Nullable public String getGcrServer() {
-    return Strings.isNullOrEmpty(gcrServer) ? GCR_SERVER : gcrServer;
+    return getSnapshot().getGcrServer();
+  }
+
+  /**
+   * @return whether cached access tokens are kept on disk, encrypted, so
+   *         that they survive restarts of the master.
+   */
+  public boolean isPersistTokens() {
+    return getSnapshot().isPersistTokens();
+  }
+
+  /**
+   * @return the registry hosts mapped to the service accounts that may be
+   *         used with them, one {@code host-pattern=credentials-id,...}
+   *         mapping per line.
+   */
+  @Nullable public String getHostAccounts() {
+    return getSnapshot().getHostAccounts();
+  }
+
+  /**
+   * @return whether agents get their tokens from the master, see
+   *         {@link GoogleContainerRegistryTokenBroker}, rather than a copy of
+   *         the service account to mint their own with.
+   */
+  public boolean isBrokerTokens() {
+    return getSnapshot().isBrokerTokens();
+  }
+
+  /**
+   * @param brokerTokens whether agents get their tokens from the master.
+   *        Only affects the credentials sent to agents from then on.
+   */
+  public void setBrokerTokens(boolean brokerTokens) {
+    synchronized (this) {
+      getSnapshot();
+      this.brokerTokens = brokerTokens;
+      takeSnapshot();
+    }
+  }
+
+  /**
+   * @param hostAccounts the registry hosts mapped to the service accounts
+   *        that may be used with them, as described by
+   *        {@link GoogleContainerRegistryHostIndex}.
+   */
+  public void setHostAccounts(@Nullable String hostAccounts) {
+    synchronized (this) {
+      getSnapshot();
+      this.hostAccounts = hostAccounts;
+      takeSnapshot();
+    }
+  }
+
+  /**
+   * @param persistTokens whether cached access tokens are kept on disk.
+   *        Turning this off deletes the tokens kept so far.
+   */
+  public void setPersistTokens(boolean persistTokens) {
+    synchronized (this) {
+      getSnapshot();
+      this.persistTokens = persistTokens;
+      takeSnapshot();
+    }
+    if (!persistTokens) {
+      GoogleContainerRegistryTokenPools pools =
+          GoogleContainerRegistryTokenPools.get();
+      if (pools != null && pools.getStore() != null) {
+        pools.getStore().clear();
+      }
+    }
+  }
+
+  /**
+   * Adopts the server list of older versions, which kept it along with
+   * {@link GoogleContainerRegistryCredential}, and removes their
+   * configuration file. Runs in the background once, on the first startup
+   * after an upgrade.
+   */
+  @Initializer(after = InitMilestone.PLUGINS_STARTED)
+  public static void migrateLegacyConfig() {
+    Jenkins jenkins = Jenkins.getInstance();
+    if (jenkins == null
+        || !new File(jenkins.getRootDir(), LEGACY_CONFIG_FILE).exists()) {
+      return;
+    }
+    long start = System.nanoTime();
+    GoogleContainerRegistryCredential.DescriptorImpl legacy =
+        new GoogleContainerRegistryCredential.DescriptorImpl();
+    GoogleContainerRegistryCredentialGlobalConfig config =
+        GlobalConfiguration.all().get(
+            GoogleContainerRegistryCredentialGlobalConfig.class);
+    if (config != null && !Strings.isNullOrEmpty(legacy.getGcrServer())) {
+      config.migrate(legacy.getGcrServer());
+    }
+    legacy.deleteConfigFile();
+    LOGGER.log(Level.FINE, "Migrated {0} in {1} ms", new Object[] {
+        LEGACY_CONFIG_FILE, TimeUnit.NANOSECONDS.toMillis(
+            System.nanoTime() - start)});
+  }
+
+  /**
+   * Adopts the server list that configurations saved by older versions
+   * embedded in {@link #oldDescriptor}, unless one is set already.
+   */
+  private Object readResolve() {
+    if (oldDescriptor != null) {
+      if (Strings.isNullOrEmpty(gcrServer)) {
+        gcrServer = oldDescriptor.getGcrServer();
+      }
+      oldDescriptor = null;
+    }
+    return this;
+  }
+
+  private synchronized void migrate(String legacyGcrServer) {
+    getSnapshot();
+    gcrServer = legacyGcrServer;
+    takeSnapshot();
+    save();
+  }
+
+  private synchronized Snapshot takeSnapshot() {
+    snapshot = new Snapshot(
+        Strings.isNullOrEmpty(gcrServer) ? GCR_SERVER : gcrServer,
+        persistTokens, hostAccounts, brokerTokens);
+    return snapshot;
+  }
+
+  /**
+   * An immutable view of the configuration, as of when it was taken.
+   *
+   * <p>
+   * A snapshot also remembers which domain requirements it matched, so that
+   * the few distinct requirement lists jobs ask about are each only tested
+   * once. Changing the configuration replaces the snapshot, and with it
+   * everything remembered.
+   */
+  public static final class Snapshot {
+    /**
+     * The number of distinct requirement lists whose match is remembered.
+     */
+    private static final int MATCHES_CACHE_SIZE = Integer.getInteger(
+        Snapshot.class.getName() + ".matchesCacheSize", 256);
+
+    private final String gcrServer;
+    private final boolean persistTokens;
+    @Nullable private final String hostAccounts;
+    private final boolean brokerTokens;
+    private final GoogleContainerRegistryHostIndex hostIndex;
+    private final Domain domain;
+    private final Cache<String, Boolean> matches;
+
+    Snapshot(String gcrServer, boolean persistTokens,
+        @Nullable String hostAccounts, boolean brokerTokens) {
+      this.gcrServer = gcrServer;
+      this.persistTokens = persistTokens;
+      this.hostAccounts = hostAccounts;
+      this.brokerTokens = brokerTokens;
+      this.hostIndex = GoogleContainerRegistryHostIndex.parse(hostAccounts);
+      this.domain = new Domain("GCR", "",
+          ImmutableList.<DomainSpecification>of(
+              new SchemeSpecification("https"),
+              new HostnameSpecification(gcrServer, "")));
+      this.matches = CacheBuilder.newBuilder()
+          .maximumSize(MATCHES_CACHE_SIZE)
+          .build();
+    }
+
+    /**
+     * @return the Google Registry Container server URL.
+     */
+    public String getGcrServer() {
+      return gcrServer;
+    }
+
+    /**
+     * @return whether cached access tokens are kept on disk.
+     */
+    public boolean isPersistTokens() {
+      return persistTokens;
+    }
+
+    /**
+     * @return the registry hosts mapped to the service accounts that may be
+     *         used with them.
+     */
+    @Nullable public String getHostAccounts() {
+      return hostAccounts;
+    }
+
+    /**
+     * @return whether agents get their tokens from the master.
+     */
+    public boolean isBrokerTokens() {
+      return brokerTokens;
+    }
+
+    /**
+     * @return the index of {@link #getHostAccounts}.
+     */
+    public GoogleContainerRegistryHostIndex getHostIndex() {
+      return hostIndex;
+    }
+
+    /**
+     * @param requirements provided {@link DomainRequirement} to check.
+     * @return whether the configured servers satisfy the given requirements.
+     */
+    public boolean matches(List<DomainRequirement> requirements) {
+      String fingerprint = fingerprint(requirements);
+      if (fingerprint == null) {
+        return domain.test(requirements);
+      }
+      Boolean matched = matches.getIfPresent(fingerprint);
+      if (matched == null) {
+        matched = domain.test(requirements);
+        matches.put(fingerprint, matched);
+      }
+      return matched;
+    }
+
+    @VisibleForTesting
+    long getMatchesCacheSize() {
+      return matches.size();
+    }
+
+    /**
+     * @return a key that is the same for any two lists of requirements that
+     *         the configured domain tests alike, or {@code null} if the
+     *         list holds requirements it cannot be computed for.
+     */
+    @Nullable
+    @VisibleForTesting
+    static String fingerprint(List<DomainRequirement> requirements) {
+      // The domain requires every requirement to be met, so neither their
+      // order nor repeats make a difference.
+      SortedSet<String> parts = new TreeSet<String>();
+      for (DomainRequirement requirement : requirements) {
+        if (requirement.getClass() == SchemeRequirement.class) {
+          parts.add("scheme:"
+              + ((SchemeRequirement) requirement).getScheme());
+        } else if (requirement.getClass() == HostnameRequirement.class) {
+          parts.add("hostname:"
+              + ((HostnameRequirement) requirement).getHostname());
+        } else {
+          return null;
+        }
+      }
+      return Joiner.on('\n').join(parts);
+    }
   }
 
   private String gcrServer = null;
-  GoogleContainerRegistryCredential.DescriptorImpl oldDescriptor;
+  private boolean persistTokens;
+  private String hostAccounts = null;
+  private boolean brokerTokens;
+  /**
+   * @deprecated only read from configurations saved by older versions, see
+   *             {@link #readResolve}.
+   */
+  @Deprecated
+  private transient GoogleContainerRegistryCredential.DescriptorImpl
+      oldDescriptor;
+  private transient volatile Snapshot snapshot;
+
+  private static final Logger LOGGER = Logger.getLogger(
+      GoogleContainerRegistryCredentialGlobalConfig.class.getName());
 }
@@ -0,0 +1,371 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.jenkins.plugins.googlecontainerregistryauth;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.Nullable;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Charsets;
+import com.google.common.collect.Maps;
+import com.google.common.io.Files;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import hudson.FilePath;
+import jenkins.security.MasterToSlaveCallable;
+import jenkins.util.Timer;
+
+import net.sf.json.JSONObject;
+
+/**
+ * A docker credential helper that answers {@code get} requests with a token
+ * held by the agent, instead of a token baked into {@code config.json} when
+ * the build starts.
+ *
+ * <p>
+ * The master installs a remotable module (see
+ * {@link GoogleContainerRegistryCredentialModule#forRemote}) on the agent,
+ * which keeps the token it yields in a local
+ * {@link GoogleContainerRegistryTokenCache} and materializes it into a file
+ * read by the {@code docker-credential-gcr-jenkins} script. The file is
+ * rewritten in the background shortly before the token expires, so docker
+ * never waits on a mint. Because remotable modules cannot mint past the
+ * lifetime of the token they carry, the master pushes a fresh one before
+ * that, which lets builds run longer than a token's lifetime.
+ */
+public final class GoogleContainerRegistryCredentialHelper {
+  /**
+   * The name docker knows the helper by, in {@code credHelpers}.
+   */
+  public static final String NAME = "gcr-jenkins";
+
+  /**
+   * The file holding the response to {@code get} requests.
+   */
+  @VisibleForTesting static final String TOKEN_FILE = "credentials.json";
+
+  /**
+   * How long before its token expires the master pushes a fresh module.
+   */
+  private static final long RENEWAL_LEAD_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+  /**
+   * How long the master waits before retrying a failed push.
+   */
+  private static final long RETRY_DELAY_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+  private final GoogleContainerRegistryCredential credential;
+  private final FilePath dir;
+  private final String sessionId = UUID.randomUUID().toString();
+  private ScheduledFuture<?> renewal;
+  private boolean stopped;
+
+  private GoogleContainerRegistryCredentialHelper(
+      GoogleContainerRegistryCredential credential, FilePath dir) {
+    this.credential = checkNotNull(credential);
+    this.dir = checkNotNull(dir);
+  }
+
+  /**
+   * Installs the credential helper in {@code dir}, which is to be added to
+   * the {@code PATH} and used as {@code DOCKER_CONFIG}.
+   *
+   * @param credential the credential to serve tokens for.
+   * @param dir the directory to install the helper in, usually on an agent.
+   * @param hosts the registry hosts docker should use the helper for.
+   * @return the running helper, to be {@link #stop}ped once done.
+   */
+  public static GoogleContainerRegistryCredentialHelper start(
+      GoogleContainerRegistryCredential credential, FilePath dir,
+      List<String> hosts) throws IOException, InterruptedException {
+    GoogleContainerRegistryCredentialHelper helper =
+        new GoogleContainerRegistryCredentialHelper(credential, dir);
+    // The token file is created in there.
+    dir.mkdirs();
+    dir.chmod(0700);
+    GoogleContainerRegistryDockerConfig.forCredentialHelper(hosts, NAME)
+        .write(dir);
+    FilePath script = dir.child("docker-credential-" + NAME);
+    script.write(getScript(dir.child(TOKEN_FILE).getRemote()), "UTF-8");
+    script.chmod(0700);
+    helper.install();
+    return helper;
+  }
+
+  /**
+   * Stops serving tokens and removes them from the agent.
+   */
+  public void stop() throws IOException, InterruptedException {
+    synchronized (this) {
+      stopped = true;
+      if (renewal != null) {
+        renewal.cancel(false);
+      }
+    }
+    dir.getChannel().call(new Uninstall(sessionId));
+  }
+
+  @VisibleForTesting
+  static String getScript(String tokenFile) {
+    return "#!/bin/sh\n"
+        + "# Docker credential helper installed by the Google Container "
+        + "Registry Auth Plugin.\n"
+        + "if [ \"$1\" = get ]; then\n"
+        + "  cat '" + tokenFile.replace("'", "'\\''") + "'\n"
+        + "fi\n";
+  }
+
+  /**
+   * Pushes a fresh remotable module to the agent, and schedules the next
+   * push shortly before the token it yields expires.
+   */
+  private void install() throws IOException, InterruptedException {
+    GoogleContainerRegistryCredentialModule module;
+    try {
+      module = credential.forRemote();
+    } catch (GeneralSecurityException e) {
+      throw new IOException(e);
+    }
+    long expiresAtMillis = dir.getChannel().call(
+        new Install(sessionId, dir.child(TOKEN_FILE).getRemote(), module));
+    scheduleRenewal(Math.max(RETRY_DELAY_MILLIS,
+        expiresAtMillis - System.currentTimeMillis() - RENEWAL_LEAD_MILLIS));
+  }
+
+  private synchronized void scheduleRenewal(long delayMillis) {
+    if (stopped) {
+      return;
+    }
+    renewal = Timer.get().schedule(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          install();
+        } catch (IOException e) {
+          LOGGER.log(Level.WARNING, "Unable to renew the token of "
+              + credential.getId() + " on " + dir, e);
+          scheduleRenewal(RETRY_DELAY_MILLIS);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    }, delayMillis, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Agent side: the helpers installed on this JVM, by session id.
+   */
+  private static final ConcurrentMap<String, Session> SESSIONS =
+      Maps.newConcurrentMap();
+
+  /**
+   * Agent side: rewrites token files ahead of their expiry.
+   */
+  private static final ScheduledExecutorService REFRESHER =
+      Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+          .setNameFormat("GCR credential helper refresh")
+          .setDaemon(true)
+          .build());
+
+  /**
+   * Agent side: the state of a single installed helper. Tokens are minted
+   * from the last module pushed by the master, and cached until they are
+   * about to expire.
+   */
+  @VisibleForTesting
+  static final class Session {
+    private final String id;
+    private final File tokenFile;
+    private final GoogleContainerRegistryTokenCache cache =
+        new GoogleContainerRegistryTokenCache(
+            MoreExecutors.sameThreadExecutor());
+    private GoogleContainerRegistryCredentialModule module;
+    @Nullable private GoogleContainerRegistryToken written;
+    @Nullable private ScheduledFuture<?> nextRefresh;
+
+    Session(String id, File tokenFile) {
+      this.id = checkNotNull(id);
+      this.tokenFile = checkNotNull(tokenFile);
+    }
+
+    /**
+     * Switches to minting from {@code module}, which carries a fresher token
+     * than the previous one.
+     *
+     * @return when the token now being served expires.
+     */
+    synchronized long setModule(GoogleContainerRegistryCredentialModule module)
+        throws IOException {
+      this.module = checkNotNull(module);
+      cache.invalidate(id);
+      return refresh();
+    }
+
+    /**
+     * Makes sure the token file holds a token that is not about to expire,
+     * minting one if needed, and schedules the next refresh.
+     *
+     * @return when the token being served expires.
+     */
+    synchronized long refresh() throws IOException {
+      final GoogleContainerRegistryCredentialModule current = module;
+      GoogleContainerRegistryToken token = cache.get(id,
+          new Callable<GoogleContainerRegistryToken>() {
+            @Override
+            public GoogleContainerRegistryToken call() {
+              return current.mintToken(null);
+            }
+          });
+      if (token == null) {
+        throw new IOException("Unable to obtain an access token");
+      }
+      if (written == null || !token.getValue().getPlainText().equals(
+          written.getValue().getPlainText())) {
+        write(current.getIdentity(null), token);
+        written = token;
+      }
+      scheduleRefresh(token);
+      return token.getExpiresAtMillis();
+    }
+
+    synchronized void close() {
+      if (nextRefresh != null) {
+        nextRefresh.cancel(false);
+      }
+      tokenFile.delete();
+    }
+
+    private void scheduleRefresh(GoogleContainerRegistryToken token) {
+      if (nextRefresh != null) {
+        nextRefresh.cancel(false);
+      }
+      long delayMillis = token.getExpiresAtMillis()
+          - System.currentTimeMillis() - TimeUnit.SECONDS.toMillis(
+              GoogleContainerRegistryCredentialModule.MINIMUM_DURATION_SECONDS);
+      nextRefresh = REFRESHER.schedule(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            refresh();
+          } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Unable to refresh " + tokenFile, e);
+          }
+        }
+      }, Math.max(RETRY_DELAY_MILLIS, delayMillis), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Replaces the token file in one step, so that docker never reads a
+     * partially written one.
+     */
+    private void write(String username, GoogleContainerRegistryToken token)
+        throws IOException {
+      JSONObject response = new JSONObject();
+      response.put("Username", username);
+      response.put("Secret", token.getValue().getPlainText());
+      File tmp = new File(tokenFile.getPath() + ".tmp");
+      // Created afresh, so that only we may read it once the token is in,
+      // after an earlier failure to rename it.
+      tmp.delete();
+      GoogleContainerRegistryHostTokenCache.createPrivately(tmp);
+      Files.write(response.toString(), tmp, Charsets.UTF_8);
+      if (!tmp.renameTo(tokenFile)) {
+        // Not all platforms support replacing the target of a rename.
+        tokenFile.delete();
+        if (!tmp.renameTo(tokenFile)) {
+          throw new IOException("Unable to write " + tokenFile);
+        }
+      }
+    }
+  }
+
+  /**
+   * Installs, or renews, a helper session on the agent.
+   */
+  private static final class Install
+      extends MasterToSlaveCallable<Long, IOException> {
+    private final String sessionId;
+    private final String tokenFile;
+    private final GoogleContainerRegistryCredentialModule module;
+
+    Install(String sessionId, String tokenFile,
+        GoogleContainerRegistryCredentialModule module) {
+      this.sessionId = sessionId;
+      this.tokenFile = tokenFile;
+      this.module = module;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public Long call() throws IOException {
+      Session session = SESSIONS.get(sessionId);
+      if (session == null) {
+        Session newSession = new Session(sessionId, new File(tokenFile));
+        session = SESSIONS.putIfAbsent(sessionId, newSession);
+        if (session == null) {
+          session = newSession;
+        }
+      }
+      return session.setModule(module);
+    }
+
+    private static final long serialVersionUID = 1L;
+  }
+
+  /**
+   * Removes a helper session from the agent.
+   */
+  private static final class Uninstall
+      extends MasterToSlaveCallable<Void, IOException> {
+    private final String sessionId;
+
+    Uninstall(String sessionId) {
+      this.sessionId = sessionId;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public Void call() throws IOException {
+      Session session = SESSIONS.remove(sessionId);
+      if (session != null) {
+        session.close();
+      }
+      return null;
+    }
+
+    private static final long serialVersionUID = 1L;
+  }
+
+  private static final Logger LOGGER = Logger.getLogger(
+      GoogleContainerRegistryCredentialHelper.class.getName());
+}
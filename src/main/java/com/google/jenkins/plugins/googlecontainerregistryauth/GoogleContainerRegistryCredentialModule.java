@@ -16,15 +16,22 @@
 
 package com.google.jenkins.plugins.googlecontainerregistryauth;
 
+import java.io.IOException;
 import java.io.Serializable;
 import java.security.GeneralSecurityException;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.Nullable;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
 
-import com.cloudbees.plugins.credentials.domains.Domain;
 import com.cloudbees.plugins.credentials.domains.DomainRequirement;
-import com.cloudbees.plugins.credentials.domains.HostnameSpecification;
-import com.cloudbees.plugins.credentials.domains.SchemeSpecification;
-import com.google.common.collect.ImmutableList;
+import com.google.api.client.auth.oauth2.Credential;
 import com.google.jenkins.plugins.credentials.oauth.GoogleOAuth2ScopeRequirement;
 import com.google.jenkins.plugins.credentials.oauth.GoogleRobotCredentials;
 
@@ -39,9 +46,22 @@ import jenkins.model.Jenkins;
 public class GoogleContainerRegistryCredentialModule
     implements Serializable {
   private static final GoogleContainerRegistryScopeRequirement SCOPE =
-      new GoogleContainerRegistryScopeRequirement();
+      GoogleContainerRegistryScopeRequirement.READ_WRITE;
+
+  private final GoogleOAuth2ScopeRequirement requirement;
 
   public GoogleContainerRegistryCredentialModule() {
+    this(SCOPE);
+  }
+
+  /**
+   * @param requirement the scopes to mint tokens with, e.g.
+   *        {@link GoogleContainerRegistryScopeRequirement#READ_ONLY} for
+   *        builds that only pull images.
+   */
+  public GoogleContainerRegistryCredentialModule(
+      GoogleOAuth2ScopeRequirement requirement) {
+    this.requirement = checkNotNull(requirement);
   }
 
   /**
@@ -55,13 +75,67 @@ public class GoogleContainerRegistryCredentialModule
     return "_token";
   }
 
+  /**
+   * @param credentials the underlying {@link GoogleRobotCredentials} this
+   *        plugin is wrapping.
+   * @return a module to send to an agent along with the credential: one
+   *         that asks the master for tokens, if enabled in
+   *         {@link GoogleContainerRegistryCredentialGlobalConfig}, or else
+   *         one that carries a remotable copy of {@code credentials}.
+   */
   public GoogleContainerRegistryCredentialModule forRemote(
       GoogleRobotCredentials credentials) throws GeneralSecurityException {
+    GoogleContainerRegistryCredentialGlobalConfig config =
+        (Jenkins.getInstance() == null) ? null : GlobalConfiguration.all()
+            .get(GoogleContainerRegistryCredentialGlobalConfig.class);
+    if (config != null && config.isBrokerTokens()) {
+      return new Brokered(this, credentials);
+    }
     return new ForRemote(this, credentials);
   }
 
+  /**
+   * @param requirement the scopes to mint tokens with.
+   * @return a module like this one, minting tokens with {@code requirement}.
+   */
+  public GoogleContainerRegistryCredentialModule forRequirement(
+      GoogleOAuth2ScopeRequirement requirement) {
+    return new GoogleContainerRegistryCredentialModule(requirement);
+  }
+
   public GoogleOAuth2ScopeRequirement getRequirement() {
-    return SCOPE;
+    return requirement;
+  }
+
+  /**
+   * @return whether {@code requirement} asks for read-only tokens.
+   */
+  private static boolean isReadOnly(GoogleOAuth2ScopeRequirement requirement) {
+    return GoogleContainerRegistryTokenPools.getScopeKey(requirement).equals(
+        GoogleContainerRegistryTokenPools.getScopeKey(
+            GoogleContainerRegistryScopeRequirement.READ_ONLY));
+  }
+
+  private static boolean hasScopes(
+      GoogleContainerRegistryCredentialModule module,
+      GoogleOAuth2ScopeRequirement requirement) {
+    return GoogleContainerRegistryTokenPools.getScopeKey(requirement).equals(
+        GoogleContainerRegistryTokenPools.getScopeKey(module.getRequirement()));
+  }
+
+  /**
+   * For the modules sent to agents, which can only get tokens with the
+   * scopes the master prepared them for, or read-only ones.
+   *
+   * @param module a module sent to an agent.
+   * @throws IllegalArgumentException if {@code requirement} asks for more.
+   */
+  private static void checkNarrowing(
+      GoogleContainerRegistryCredentialModule module,
+      GoogleOAuth2ScopeRequirement requirement) {
+    checkArgument(hasScopes(module, requirement) || isReadOnly(requirement),
+        "Unable to mint tokens for %s away from the master",
+        GoogleContainerRegistryTokenPools.getScopeKey(requirement));
   }
 
   /**
@@ -70,7 +144,162 @@ public class GoogleContainerRegistryCredentialModule
    * @return an access token for the given {@code credentials}.
    */
   public Secret getToken(GoogleRobotCredentials credentials) {
-    return credentials.getAccessToken(getRequirement());
+    GoogleContainerRegistrySlowOps.Op op = GoogleContainerRegistrySlowOps
+        .start("getToken", credentials.getId(), null);
+    try {
+      GoogleContainerRegistryToken token = acquireToken(credentials);
+      return (token == null) ? null : token.getValue();
+    } finally {
+      op.end("acquire");
+    }
+  }
+
+  /**
+   * Like {@link #getToken}, but also reports when the token expires. On the
+   * master, tokens are served from the pool of our scope in
+   * {@link GoogleContainerRegistryTokenPools} while they remain valid.
+   *
+   * @param credentials the underlying {@link GoogleRobotCredentials} this
+   *        plugin is wrapping.
+   * @return an access token for the given {@code credentials} along with its
+   *         expiry, or {@code null} if none could be obtained.
+   */
+  @Nullable
+  public GoogleContainerRegistryToken acquireToken(
+      GoogleRobotCredentials credentials) {
+    GoogleContainerRegistryTokenPools pools =
+        GoogleContainerRegistryTokenPools.get();
+    if (pools == null) {
+      GoogleContainerRegistryFlightEvents.cacheHit(false);
+      return mintToken(credentials);
+    }
+    GoogleContainerRegistryTokenTrace.Request request =
+        GoogleContainerRegistryTokenTrace.begin(credentials.getId(),
+            GoogleContainerRegistryTokenPools.getScopeKey(getRequirement()));
+    try {
+      return pools.forRequirement(getRequirement())
+          .get(credentials.getId(), minter(credentials));
+    } finally {
+      if (request != null) {
+        request.end();
+      }
+    }
+  }
+
+  /**
+   * Starts minting a token for the given {@code credentials} in the
+   * background, so that a later {@link #getToken} finds it cached.
+   *
+   * @param credentials the underlying {@link GoogleRobotCredentials} this
+   *        plugin is wrapping.
+   */
+  public void prefetchToken(GoogleRobotCredentials credentials) {
+    GoogleContainerRegistryTokenPools pools =
+        GoogleContainerRegistryTokenPools.get();
+    if (pools != null) {
+      pools.forRequirement(getRequirement())
+          .prefetch(credentials.getId(), minter(credentials));
+    }
+  }
+
+  /**
+   * @param credentialsId the ID of the underlying
+   *        {@link GoogleRobotCredentials}.
+   * @return why the last token for {@code credentialsId} could not be minted,
+   *         if minting has not succeeded since, e.g. while the pool of our
+   *         scope backs off.
+   */
+  @Nullable
+  public Throwable getLastError(String credentialsId) {
+    GoogleContainerRegistryTokenPools pools =
+        GoogleContainerRegistryTokenPools.get();
+    return (pools == null) ? null
+        : pools.forRequirement(getRequirement()).getLastError(credentialsId);
+  }
+
+  /**
+   * Mints through {@link #mint}, so that the cache learns why a mint failed
+   * and backs off accordingly.
+   */
+  private Callable<GoogleContainerRegistryToken> minter(
+      final GoogleRobotCredentials credentials) {
+    return new Callable<GoogleContainerRegistryToken>() {
+      @Override
+      public GoogleContainerRegistryToken call()
+          throws IOException, GeneralSecurityException {
+        GoogleContainerRegistryToken token = mint(credentials);
+        if (token == null) {
+          throw new IOException("Unable to refresh the access token for "
+              + credentials.getId());
+        }
+        return token;
+      }
+    };
+  }
+
+  /**
+   * Mints a new token, bypassing any cache.
+   *
+   * @param credentials the underlying {@link GoogleRobotCredentials} this
+   *        plugin is wrapping.
+   * @return an access token for the given {@code credentials} along with its
+   *         expiry, or {@code null} if none could be obtained.
+   */
+  @Nullable
+  public GoogleContainerRegistryToken mintToken(
+      GoogleRobotCredentials credentials) {
+    try {
+      return mint(credentials);
+    } catch (IOException e) {
+      LOGGER.log(Level.WARNING, "Unable to mint an access token for "
+          + credentials.getId(), e);
+      return null;
+    } catch (GeneralSecurityException e) {
+      LOGGER.log(Level.WARNING, "Unable to mint an access token for "
+          + credentials.getId(), e);
+      return null;
+    }
+  }
+
+  /**
+   * Like {@link #mintToken}, but reports why minting failed.
+   *
+   * @return an access token for the given {@code credentials} along with its
+   *         expiry, or {@code null} if it could not be refreshed.
+   */
+  @Nullable
+  protected GoogleContainerRegistryToken mint(
+      GoogleRobotCredentials credentials)
+      throws IOException, GeneralSecurityException {
+    GoogleOAuth2ScopeRequirement requirement = getRequirement();
+    Credential credential = credentials.getGoogleCredential(requirement);
+    if (credential == null) {
+      // Without the underlying credential we cannot tell when the token
+      // expires, so report it as already expired and never reuse it.
+      Secret token = credentials.getAccessToken(requirement);
+      return (token == null) ? null : new GoogleContainerRegistryToken(
+          token, System.currentTimeMillis());
+    }
+    // Mirror GoogleRobotCredentials#getAccessToken, which only refreshes
+    // tokens that are missing or about to expire. When minting for a cache,
+    // the token also has to last until the cache would refresh it, or the
+    // cache is handed back the token it is refreshing.
+    long minimumMillis = Math.max(
+        TimeUnit.SECONDS.toMillis(MINIMUM_DURATION_SECONDS),
+        GoogleContainerRegistryTokenCache.getRequiredLifetimeMillis());
+    Long expiresInSeconds = credential.getExpiresInSeconds();
+    if ((expiresInSeconds == null) ||
+        (TimeUnit.SECONDS.toMillis(expiresInSeconds) < minimumMillis)) {
+      if (!credential.refreshToken()) {
+        return null;
+      }
+      expiresInSeconds = credential.getExpiresInSeconds();
+    }
+    long lifetimeMillis = (expiresInSeconds == null) ?
+        0L : expiresInSeconds * 1000L;
+    return new GoogleContainerRegistryToken(
+        Secret.fromString(credential.getAccessToken()),
+        System.currentTimeMillis() + lifetimeMillis);
   }
 
   /**
@@ -86,18 +315,28 @@ public class GoogleContainerRegistryCredentialModule
     GoogleContainerRegistryCredentialGlobalConfig gcrGlobalConfig =
         GlobalConfiguration.all().get(
             GoogleContainerRegistryCredentialGlobalConfig.class);
-    Domain gcrDomain = new Domain("GCR", "",
-        ImmutableList.of(
-            new SchemeSpecification("https"),
-            new HostnameSpecification(
-                gcrGlobalConfig.getGcrServer(), "")));
-    return gcrDomain.test(requirements);
+    GoogleContainerRegistrySlowOps.Op op =
+        GoogleContainerRegistrySlowOps.start("matches", null, null);
+    try {
+      return gcrGlobalConfig.getSnapshot().matches(requirements);
+    } finally {
+      op.end("test");
+    }
   }
 
   public static GoogleContainerRegistryScopeRequirement getScope() {
     return SCOPE;
   }
 
+  /**
+   * Tokens with less time than this left are refreshed before use, the same
+   * as {@link GoogleRobotCredentials#getAccessToken} does.
+   */
+  static final long MINIMUM_DURATION_SECONDS = 180L;
+
+  private static final Logger LOGGER =
+      Logger.getLogger(GoogleContainerRegistryCredentialModule.class.getName());
+
   /**
    * For {@link Serializable}
    */
@@ -107,12 +346,23 @@ public class GoogleContainerRegistryCredentialModule
       extends GoogleContainerRegistryCredentialModule {
     private final String identity;
     private final GoogleRobotCredentials credentials;
+    /** The span that sent this module to the agent, if traced. */
+    @Nullable private final GoogleContainerRegistryTracing.Context trace;
+    /**
+     * Identifies the master in the cache of the host, where the agents of
+     * several masters may share tokens.
+     */
+    private final String master;
 
     public ForRemote(GoogleContainerRegistryCredentialModule parent,
         GoogleRobotCredentials credentials)
             throws GeneralSecurityException {
+      super(parent.getRequirement());
       this.identity = parent.getIdentity(credentials);
       this.credentials = credentials.forRemote(parent.getRequirement());
+      this.trace = GoogleContainerRegistryTracing.currentContext();
+      Jenkins jenkins = Jenkins.getInstance();
+      this.master = (jenkins == null) ? "" : jenkins.getLegacyInstanceId();
     }
 
     /** {@inheritDoc} */
@@ -122,6 +372,22 @@ public class GoogleContainerRegistryCredentialModule
       return this;
     }
 
+    /**
+     * {@inheritDoc}
+     *
+     * <p>
+     * Keeps minting with the copy of the service account sent along, which
+     * only holds tokens of the scopes of this module. These let pulls through
+     * too: callers known to only pull narrow the credential on the master
+     * instead, before it is sent, to get read-only tokens.
+     */
+    @Override
+    public GoogleContainerRegistryCredentialModule forRequirement(
+        GoogleOAuth2ScopeRequirement requirement) {
+      checkNarrowing(this, requirement);
+      return this;
+    }
+
     /** {@inheritDoc} */
     @Override
     public String getIdentity(GoogleRobotCredentials credentials) {
@@ -131,7 +397,183 @@ public class GoogleContainerRegistryCredentialModule
     /** {@inheritDoc} */
     @Override
     public Secret getToken(GoogleRobotCredentials credentials) {
-      return super.getToken(this.credentials);
+      GoogleContainerRegistryTracing.Scope scope =
+          GoogleContainerRegistryTracing.resume(trace);
+      try {
+        GoogleContainerRegistrySlowOps.Op op = GoogleContainerRegistrySlowOps
+            .start("remoteGetToken", this.credentials.getId(), null);
+        try {
+          return super.getToken(this.credentials);
+        } finally {
+          op.end("getToken");
+        }
+      } finally {
+        scope.close();
+      }
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>
+     * Shares the token with the other processes of this host, through
+     * {@link GoogleContainerRegistryHostTokenCache}, if configured.
+     */
+    @Override
+    @Nullable
+    public GoogleContainerRegistryToken acquireToken(
+        GoogleRobotCredentials credentials) {
+      GoogleContainerRegistryHostTokenCache cache =
+          GoogleContainerRegistryHostTokenCache.get();
+      if (cache == null) {
+        return super.acquireToken(credentials);
+      }
+      String key = master + " " + this.credentials.getId() + " "
+          + GoogleContainerRegistryTokenPools.getScopeKey(getRequirement());
+      GoogleContainerRegistryToken token =
+          cache.load(key, TimeUnit.SECONDS.toMillis(MINIMUM_DURATION_SECONDS));
+      GoogleContainerRegistryFlightEvents.cacheHit(token != null);
+      if (token != null) {
+        return token;
+      }
+      token = mintToken(credentials);
+      if (token != null) {
+        cache.store(key, token);
+      }
+      return token;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public GoogleContainerRegistryToken mintToken(
+        GoogleRobotCredentials credentials) {
+      return super.mintToken(this.credentials);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected GoogleContainerRegistryToken mint(
+        GoogleRobotCredentials credentials)
+        throws IOException, GeneralSecurityException {
+      return super.mint(this.credentials);
+    }
+  }
+
+  /**
+   * Asks the master for tokens, through
+   * {@link GoogleContainerRegistryTokenBroker}, instead of minting them with
+   * a copy of the service account.
+   */
+  private static class Brokered
+      extends GoogleContainerRegistryCredentialModule {
+    private final String identity;
+    private final String credentialsId;
+    private final String ticket;
+    /** The span that sent this module to the agent, if traced. */
+    @Nullable private final GoogleContainerRegistryTracing.Context trace;
+
+    public Brokered(GoogleContainerRegistryCredentialModule parent,
+        GoogleRobotCredentials credentials) {
+      super(parent.getRequirement());
+      this.identity = parent.getIdentity(credentials);
+      this.credentialsId = credentials.getId();
+      this.ticket =
+          GoogleContainerRegistryTokenBroker.get().issue(parent, credentials);
+      this.trace = GoogleContainerRegistryTracing.currentContext();
+    }
+
+    /**
+     * The same ticket, redeemed for tokens with {@code requirement}.
+     */
+    private Brokered(Brokered brokered,
+        GoogleOAuth2ScopeRequirement requirement) {
+      super(requirement);
+      this.identity = brokered.identity;
+      this.credentialsId = brokered.credentialsId;
+      this.ticket = brokered.ticket;
+      this.trace = brokered.trace;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public GoogleContainerRegistryCredentialModule forRemote(
+        GoogleRobotCredentials credentials) {
+      return this;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>
+     * Keeps asking the master for tokens with the same ticket, which the
+     * master only honors for the scopes of this module, or read-only ones.
+     */
+    @Override
+    public GoogleContainerRegistryCredentialModule forRequirement(
+        GoogleOAuth2ScopeRequirement requirement) {
+      checkNarrowing(this, requirement);
+      return hasScopes(this, requirement) ? this
+          : new Brokered(this, requirement);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String getIdentity(GoogleRobotCredentials credentials) {
+      return identity;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public Secret getToken(GoogleRobotCredentials credentials) {
+      GoogleContainerRegistryTracing.Scope scope =
+          GoogleContainerRegistryTracing.resume(trace);
+      try {
+        GoogleContainerRegistrySlowOps.Op op = GoogleContainerRegistrySlowOps
+            .start("brokeredGetToken", credentialsId, null);
+        try {
+          // Away from the master, the wrapped credential is null.
+          GoogleContainerRegistryToken token = acquireToken(credentials);
+          return (token == null) ? null : token.getValue();
+        } finally {
+          op.end("getToken");
+        }
+      } finally {
+        scope.close();
+      }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    @Nullable
+    public GoogleContainerRegistryToken acquireToken(
+        GoogleRobotCredentials credentials) {
+      return GoogleContainerRegistryTokenBroker.get().fetch(ticket,
+          isReadOnly(getRequirement()));
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void prefetchToken(GoogleRobotCredentials credentials) {
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    @Nullable
+    public GoogleContainerRegistryToken mintToken(
+        GoogleRobotCredentials credentials) {
+      return acquireToken(credentials);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected GoogleContainerRegistryToken mint(
+        GoogleRobotCredentials credentials) throws IOException {
+      GoogleContainerRegistryToken token = acquireToken(credentials);
+      if (token == null) {
+        throw new IOException("Unable to get an access token for "
+            + credentialsId + " from the master");
+      }
+      return token;
     }
   }
 }
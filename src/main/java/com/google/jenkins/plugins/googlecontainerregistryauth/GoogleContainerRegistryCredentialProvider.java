@@ -17,12 +17,28 @@
 package com.google.jenkins.plugins.googlecontainerregistryauth;
 
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import javax.annotation.Nullable;
 
 import com.cloudbees.plugins.credentials.Credentials;
+import com.cloudbees.plugins.credentials.CredentialsNameProvider;
 import com.cloudbees.plugins.credentials.CredentialsProvider;
 import com.cloudbees.plugins.credentials.domains.DomainRequirement;
+import com.cloudbees.plugins.credentials.domains.HostnameRequirement;
+import com.google.common.base.Objects;
+import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.Uninterruptibles;
+import com.google.jenkins.plugins.credentials.oauth.GoogleOAuth2ScopeRequirement;
 import com.google.jenkins.plugins.credentials.oauth.GoogleRobotCredentials;
 
 import org.acegisecurity.Authentication;
@@ -31,6 +47,7 @@ import edu.umd.cs.findbugs.annotations.NonNull;
 import hudson.Extension;
 import hudson.model.ItemGroup;
 import hudson.security.ACL;
+import jenkins.model.GlobalConfiguration;
 
 /**
  * This class automatically wraps existing GoogleRobotCredentials instances
@@ -64,33 +81,132 @@ public class GoogleContainerRegistryCredentialProvider
 
     List<C> derived = Lists.newLinkedList();
 
-    // GoogleContainerRegistryCredential can only be used from contexts
-    // consistent with is access needs.  This is the first line of Domain access
-    // protection; we won't even suggest these credentials for contexts where
-    // it is not plausibly appropriate to.
-    if (!GoogleContainerRegistryCredentialModule.matches(
-        domainRequirements)) {
+    long startNanos = System.nanoTime();
+    GoogleContainerRegistrySlowOps.Op op =
+        GoogleContainerRegistrySlowOps.start("getCredentials", null,
+            itemGroup);
+    try {
+      // GoogleContainerRegistryCredential can only be used from contexts
+      // consistent with is access needs.  This is the first line of Domain
+      // access protection; we won't even suggest these credentials for
+      // contexts where it is not plausibly appropriate to.
+      if (!GoogleContainerRegistryCredentialModule.matches(
+          domainRequirements)) {
+        return derived;
+      }
+      Set<String> accounts = accountsFor(domainRequirements);
+      op.phase("matches");
+      for (GoogleContainerRegistryCredential credential
+               : lookup(itemGroup, accounts)) {
+        derived.add((C) credential);
+      }
       return derived;
+    } finally {
+      op.end("lookup");
+      GoogleContainerRegistryAttribution.lookup(itemGroup,
+          System.nanoTime() - startNanos);
+    }
+  }
+
+  /**
+   * @return the ids of the only accounts that may be used with the hosts
+   *         {@code domainRequirements} ask for, or {@code null} if these
+   *         hosts are not restricted to any account.
+   */
+  @Nullable
+  private static Set<String> accountsFor(
+      List<DomainRequirement> domainRequirements) {
+    GoogleContainerRegistryCredentialGlobalConfig config =
+        GlobalConfiguration.all().get(
+            GoogleContainerRegistryCredentialGlobalConfig.class);
+    if (config == null) {
+      return null;
+    }
+    GoogleContainerRegistryHostIndex index =
+        config.getSnapshot().getHostIndex();
+    if (index.isEmpty()) {
+      return null;
+    }
+    Set<String> accounts = null;
+    for (DomainRequirement requirement : domainRequirements) {
+      if (!(requirement instanceof HostnameRequirement)) {
+        continue;
+      }
+      Set<String> hostAccounts = index.getAccounts(
+          ((HostnameRequirement) requirement).getHostname());
+      if (hostAccounts.isEmpty()) {
+        continue;
+      }
+      // A credential is only offered if it may be used with every host.
+      accounts = (accounts == null) ? hostAccounts
+          : ImmutableSet.copyOf(Sets.intersection(accounts, hostAccounts));
     }
+    return accounts;
+  }
+
+  /**
+   * Derives a credential from every GoogleRobotCredentials visible from
+   * {@code itemGroup}, or only from those whose id is in {@code accounts}
+   * when it is not {@code null}. Identical lookups that arrive while one is
+   * running wait for it and share its result, rather than each scanning the
+   * credential stores again.
+   */
+  private List<GoogleContainerRegistryCredential> lookup(
+      final ItemGroup itemGroup, @Nullable final Set<String> accounts) {
+    final GoogleOAuth2ScopeRequirement requirement =
+        GoogleContainerRegistryCredentialModule.getScope();
+    Lookup key = new Lookup(itemGroup,
+        GoogleContainerRegistryTokenPools.getScopeKey(requirement),
+        accounts);
+    FutureTask<List<GoogleContainerRegistryCredential>> task =
+        new FutureTask<List<GoogleContainerRegistryCredential>>(
+            new Callable<List<GoogleContainerRegistryCredential>>() {
+              @Override
+              public List<GoogleContainerRegistryCredential> call() {
+                return derive(itemGroup, requirement, accounts);
+              }
+            });
+    FutureTask<List<GoogleContainerRegistryCredential>> running =
+        lookups.putIfAbsent(key, task);
+    if (running == null) {
+      try {
+        task.run();
+      } finally {
+        lookups.remove(key, task);
+      }
+      running = task;
+    }
+    try {
+      return Uninterruptibles.getUninterruptibly(running);
+    } catch (ExecutionException e) {
+      throw Throwables.propagate(e.getCause());
+    }
+  }
+
+  private static List<GoogleContainerRegistryCredential> derive(
+      ItemGroup itemGroup, GoogleOAuth2ScopeRequirement requirement,
+      @Nullable Set<String> accounts) {
     // The second line of Domain protection propagates the requirements when
     // looking up existing GoogleRobotCredentials to ensure we do not suggest
     // elevating an inappropriate GoogleRobotCredentials instance.
     Iterable<GoogleRobotCredentials> availableGoogleCredentials =
         lookupCredentials(GoogleRobotCredentials.class, itemGroup,
-            ACL.SYSTEM, ImmutableList.<DomainRequirement>of(
-                GoogleContainerRegistryCredentialModule.getScope())
-        );
+            ACL.SYSTEM, ImmutableList.<DomainRequirement>of(requirement));
 
+    ImmutableList.Builder<GoogleContainerRegistryCredential> derived =
+        ImmutableList.builder();
     for (GoogleRobotCredentials credentials : availableGoogleCredentials) {
-      // Second line of Domain protection; we will not suggest a
-      // the credential we create must have
-      // its implementation constraints satisfied by the DomainRequirements
-      // input (if any; empty lists create no tests).
-      derived.add((C) new GoogleContainerRegistryCredential(
+      if (accounts != null && !accounts.contains(credentials.getId())) {
+        continue;
+      }
+      // Name each credential while we hold the wrapped one, rather than
+      // having credential listings look it up again by id, one at a time.
+      derived.add(new GoogleContainerRegistryCredential(
           credentials.getId(),
-          new GoogleContainerRegistryCredentialModule()));
+          new GoogleContainerRegistryCredentialModule(),
+          CredentialsNameProvider.name(credentials)));
     }
-    return derived;
+    return derived.build();
   }
 
   /** {@inheritDoc} */
@@ -101,4 +217,43 @@ public class GoogleContainerRegistryCredentialProvider
     return getCredentials(type, itemGroup, authentication,
         ImmutableList.<DomainRequirement>of());
   }
+
+  /**
+   * Identifies a lookup: the item group it is made from, by identity, the
+   * scopes the wrapped credentials are required to have and the accounts
+   * they are restricted to, if any.
+   */
+  private static final class Lookup {
+    private final ItemGroup itemGroup;
+    private final String scopeKey;
+    @Nullable private final Set<String> accounts;
+
+    Lookup(ItemGroup itemGroup, String scopeKey,
+        @Nullable Set<String> accounts) {
+      this.itemGroup = itemGroup;
+      this.scopeKey = scopeKey;
+      this.accounts = accounts;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Lookup)) {
+        return false;
+      }
+      Lookup other = (Lookup) o;
+      return itemGroup == other.itemGroup && scopeKey.equals(other.scopeKey)
+          && Objects.equal(accounts, other.accounts);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * (31 * System.identityHashCode(itemGroup)
+          + scopeKey.hashCode()) + Objects.hashCode(accounts);
+    }
+  }
+
+  private final ConcurrentMap<Lookup,
+      FutureTask<List<GoogleContainerRegistryCredential>>> lookups =
+          new ConcurrentHashMap<Lookup,
+              FutureTask<List<GoogleContainerRegistryCredential>>>();
 }
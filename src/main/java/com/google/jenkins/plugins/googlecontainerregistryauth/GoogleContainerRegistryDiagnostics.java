@@ -0,0 +1,363 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.jenkins.plugins.googlecontainerregistryauth;
+
+import java.io.IOException;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+import javax.servlet.ServletException;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+import org.kohsuke.stapler.HttpResponse;
+import org.kohsuke.stapler.HttpResponses;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+import org.kohsuke.stapler.interceptor.RequirePOST;
+
+import hudson.Extension;
+import hudson.model.ManagementLink;
+import jenkins.model.Jenkins;
+
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+/**
+ * Shows, to administrators, what slowed down the credential operations of
+ * this plugin, as recorded by {@link GoogleContainerRegistrySlowOps}, and
+ * the state of the token caches of the master, see
+ * {@link GoogleContainerRegistryTokenPools}.
+ *
+ * <p>
+ * The cached tokens are also available as JSON from {@code cache}, and may
+ * be invalidated or refreshed by posting the {@code entry} parameters that
+ * select them, or {@code all}, to {@code invalidate} and {@code refresh}.
+ * Token values are never shown.
+ *
+ * <p>
+ * The jobs and folders behind the most token requests and lookups, see
+ * {@link GoogleContainerRegistryAttribution}, are also available as JSON
+ * from {@code attribution}.
+ */
+@Extension
+public class GoogleContainerRegistryDiagnostics extends ManagementLink {
+  /** {@inheritDoc} */
+  @Override
+  public String getIconFileName() {
+    return "monitor.png";
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public String getUrlName() {
+    return "gcr-auth";
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public String getDisplayName() {
+    return Messages.GoogleContainerRegistryDiagnostics_DisplayName();
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public String getDescription() {
+    return Messages.GoogleContainerRegistryDiagnostics_Description();
+  }
+
+  /**
+   * @return the slow operations kept, the most recent first.
+   */
+  public List<GoogleContainerRegistrySlowOps.Event> getSlowOps() {
+    Jenkins.getInstance().checkPermission(Jenkins.ADMINISTER);
+    return GoogleContainerRegistrySlowOps.get().getEvents();
+  }
+
+  /**
+   * @return the recorder of slow operations.
+   */
+  public GoogleContainerRegistrySlowOps getRecorder() {
+    return GoogleContainerRegistrySlowOps.get();
+  }
+
+  /**
+   * Forgets the slow operations kept so far.
+   */
+  @RequirePOST
+  public HttpResponse doClearSlowOps() throws IOException {
+    Jenkins.getInstance().checkPermission(Jenkins.ADMINISTER);
+    GoogleContainerRegistrySlowOps.get().clear();
+    return HttpResponses.redirectToDot();
+  }
+
+  /**
+   * @return the attribution of token requests and lookups to jobs and
+   *         folders.
+   */
+  public GoogleContainerRegistryAttribution getAttribution() {
+    Jenkins.getInstance().checkPermission(Jenkins.ADMINISTER);
+    return GoogleContainerRegistryAttribution.get();
+  }
+
+  /**
+   * Serves the heaviest jobs and folders as JSON.
+   */
+  public void doAttribution(StaplerRequest req, StaplerResponse rsp)
+      throws IOException {
+    GoogleContainerRegistryAttribution attribution = getAttribution();
+    JSONObject json = new JSONObject();
+    json.put("jobs", toJson(attribution.getJobs()));
+    json.put("folders", toJson(attribution.getFolders()));
+    writeJson(rsp, json);
+  }
+
+  /**
+   * Forgets the attribution recorded so far.
+   */
+  @RequirePOST
+  public HttpResponse doClearAttribution() throws IOException {
+    getAttribution().clear();
+    return HttpResponses.redirectToDot();
+  }
+
+  /**
+   * @return the state of each lane of token mints, the highest first.
+   */
+  public List<GoogleContainerRegistryMintScheduler.LaneInfo> getMintLanes() {
+    Jenkins.getInstance().checkPermission(Jenkins.ADMINISTER);
+    return GoogleContainerRegistryMintScheduler.get().getLanes();
+  }
+
+  /**
+   * @return the state of every cached token, by scope.
+   */
+  public List<CachedToken> getCachedTokens() {
+    Jenkins.getInstance().checkPermission(Jenkins.ADMINISTER);
+    List<CachedToken> result = Lists.newArrayList();
+    GoogleContainerRegistryTokenPools pools =
+        GoogleContainerRegistryTokenPools.get();
+    if (pools == null) {
+      return result;
+    }
+    for (Map.Entry<String, GoogleContainerRegistryTokenCache> cache
+             : pools.getCaches().entrySet()) {
+      for (GoogleContainerRegistryTokenCache.EntryInfo entry
+               : cache.getValue().getEntries()) {
+        result.add(new CachedToken(cache.getKey(), entry));
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Serves the state of every cached token as JSON.
+   */
+  public void doCache(StaplerRequest req, StaplerResponse rsp)
+      throws IOException {
+    writeJson(rsp, toJson(getCachedTokens()));
+  }
+
+  /**
+   * Drops the selected cached tokens, so that the next request for them
+   * mints new ones.
+   */
+  @RequirePOST
+  public HttpResponse doInvalidate(StaplerRequest req) {
+    Jenkins.getInstance().checkPermission(Jenkins.ADMINISTER);
+    List<CachedToken> selected = select(req);
+    for (CachedToken token : selected) {
+      GoogleContainerRegistryTokenCache cache = cacheOf(token);
+      if (cache != null) {
+        cache.invalidate(token.getCredentialsId());
+      }
+    }
+    return respond(req, selected, selected.size());
+  }
+
+  /**
+   * Mints new tokens for the selected cached ones in the background. Tokens
+   * not asked for since the credentials last changed are not refreshed.
+   */
+  @RequirePOST
+  public HttpResponse doRefresh(StaplerRequest req) {
+    Jenkins.getInstance().checkPermission(Jenkins.ADMINISTER);
+    List<CachedToken> selected = select(req);
+    int refreshed = 0;
+    for (CachedToken token : selected) {
+      GoogleContainerRegistryTokenCache cache = cacheOf(token);
+      if (cache != null && cache.refresh(token.getCredentialsId())) {
+        refreshed++;
+      }
+    }
+    return respond(req, selected, refreshed);
+  }
+
+  /**
+   * @return the cached tokens selected by the {@code entry} parameters of
+   *         {@code req}, or all of them if it has an {@code all} parameter.
+   */
+  private List<CachedToken> select(StaplerRequest req) {
+    List<CachedToken> all = getCachedTokens();
+    if (req.getParameter("all") != null) {
+      return all;
+    }
+    String[] values = req.getParameterValues("entry");
+    if (values == null) {
+      return ImmutableList.of();
+    }
+    List<String> selectors = ImmutableList.copyOf(values);
+    List<CachedToken> result = Lists.newArrayList();
+    for (CachedToken token : all) {
+      if (selectors.contains(token.getSelector())) {
+        result.add(token);
+      }
+    }
+    return result;
+  }
+
+  @Nullable
+  private static GoogleContainerRegistryTokenCache cacheOf(
+      CachedToken token) {
+    GoogleContainerRegistryTokenPools pools =
+        GoogleContainerRegistryTokenPools.get();
+    return (pools == null) ? null : pools.getCaches().get(token.getScope());
+  }
+
+  /**
+   * @return the number of tokens affected as JSON to clients that accept
+   *         it, and a redirect back to this page to others.
+   */
+  private static HttpResponse respond(StaplerRequest req,
+      List<CachedToken> selected, final int affected) {
+    String accept = req.getHeader("Accept");
+    if (accept == null || !accept.contains("application/json")) {
+      return HttpResponses.redirectToDot();
+    }
+    final JSONObject json = new JSONObject();
+    json.put("selected", selected.size());
+    json.put("affected", affected);
+    return new HttpResponse() {
+      @Override
+      public void generateResponse(StaplerRequest req, StaplerResponse rsp,
+          Object node) throws IOException, ServletException {
+        writeJson(rsp, json);
+      }
+    };
+  }
+
+  private static JSONArray toJson(List<CachedToken> tokens) {
+    JSONArray json = new JSONArray();
+    for (CachedToken token : tokens) {
+      GoogleContainerRegistryTokenCache.EntryInfo entry = token.getEntry();
+      JSONObject object = new JSONObject();
+      object.put("scope", token.getScope());
+      object.put("credentialsId", token.getCredentialsId());
+      object.put("cached", entry.isCached());
+      object.put("expiresAtMillis", entry.getExpiresAtMillis());
+      object.put("ageMillis", entry.getAgeMillis());
+      object.put("hits", entry.getHits());
+      object.put("misses", entry.getMisses());
+      object.put("inFlight", entry.isInFlight());
+      object.put("failures", entry.getFailures());
+      if (entry.getLastError() != null) {
+        object.put("lastError", entry.getLastError());
+      }
+      json.add(object);
+    }
+    return json;
+  }
+
+  private static JSONArray toJson(
+      Iterable<GoogleContainerRegistryAttribution.Counter> counters) {
+    JSONArray json = new JSONArray();
+    for (GoogleContainerRegistryAttribution.Counter counter : counters) {
+      JSONObject object = new JSONObject();
+      object.put("name", counter.getKey());
+      object.put("weight", counter.getWeight());
+      object.put("error", counter.getError());
+      object.put("hits", counter.getHits());
+      object.put("misses", counter.getMisses());
+      object.put("mints", counter.getMints());
+      object.put("lookups", counter.getLookups());
+      object.put("lookupMillis", counter.getLookupMillis());
+      object.put("lookupP50Micros", counter.getLookupP50Micros());
+      object.put("lookupP99Micros", counter.getLookupP99Micros());
+      json.add(object);
+    }
+    return json;
+  }
+
+  private static void writeJson(StaplerResponse rsp, Object json)
+      throws IOException {
+    rsp.setContentType("application/json;charset=UTF-8");
+    rsp.getOutputStream().write(json.toString().getBytes(Charsets.UTF_8));
+  }
+
+  /**
+   * A token cached for a credential, within the cache of a scope.
+   */
+  public static final class CachedToken {
+    private final String scope;
+    private final GoogleContainerRegistryTokenCache.EntryInfo entry;
+
+    CachedToken(String scope,
+        GoogleContainerRegistryTokenCache.EntryInfo entry) {
+      this.scope = scope;
+      this.entry = entry;
+    }
+
+    /**
+     * @return the OAuth2 scopes of the token, separated by spaces.
+     */
+    public String getScope() {
+      return scope;
+    }
+
+    /**
+     * @return the credential the token is for.
+     */
+    public String getCredentialsId() {
+      return entry.getKey();
+    }
+
+    /**
+     * @return the state of the token.
+     */
+    public GoogleContainerRegistryTokenCache.EntryInfo getEntry() {
+      return entry;
+    }
+
+    /**
+     * @return the value of the {@code entry} parameter selecting this token.
+     */
+    public String getSelector() {
+      return scope + "\t" + getCredentialsId();
+    }
+
+    /**
+     * @return when the token expires, if one is cached.
+     */
+    @Nullable public Date getExpiresAt() {
+      return entry.isCached() ? new Date(entry.getExpiresAtMillis()) : null;
+    }
+  }
+}
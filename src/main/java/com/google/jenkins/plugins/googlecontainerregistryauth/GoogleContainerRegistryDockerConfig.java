@@ -0,0 +1,166 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.jenkins.plugins.googlecontainerregistryauth;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Set;
+
+import javax.annotation.Nullable;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Sets;
+
+import org.jenkinsci.plugins.docker.commons.credentials.DockerRegistryToken;
+
+import hudson.FilePath;
+
+import net.sf.json.JSONObject;
+
+/**
+ * A docker {@code config.json} that authenticates against every allowed
+ * Google Container Registry host using a single {@link DockerRegistryToken}.
+ *
+ * <p>
+ * Tools that talk to several registry hosts, such as a multi-region push,
+ * then need a single mint and no {@code docker login} per host.
+ */
+public final class GoogleContainerRegistryDockerConfig {
+  /**
+   * The name of the file the docker client reads from {@code DOCKER_CONFIG}.
+   */
+  public static final String FILE_NAME = "config.json";
+
+  /**
+   * The regional hosts that a {@code *.gcr.io} wildcard stands for.
+   */
+  private static final List<String> REGIONAL_PREFIXES =
+      ImmutableList.of("us", "eu", "asia");
+
+  private static final String GCR_DOMAIN = "gcr.io";
+
+  private final List<String> hosts;
+  @Nullable private final DockerRegistryToken token;
+  @Nullable private final String credentialHelper;
+
+  /**
+   * @param hosts the registry hosts to authenticate against.
+   * @param token the token to present to each of them.
+   */
+  public GoogleContainerRegistryDockerConfig(List<String> hosts,
+      DockerRegistryToken token) {
+    this.hosts = ImmutableList.copyOf(hosts);
+    this.token = checkNotNull(token);
+    this.credentialHelper = null;
+  }
+
+  private GoogleContainerRegistryDockerConfig(List<String> hosts,
+      String credentialHelper) {
+    this.hosts = ImmutableList.copyOf(hosts);
+    this.token = null;
+    this.credentialHelper = checkNotNull(credentialHelper);
+  }
+
+  /**
+   * @param hosts the registry hosts to authenticate against.
+   * @param credentialHelper the name of the credential helper to ask for
+   *        credentials, i.e. the suffix of its
+   *        {@code docker-credential-<name>} executable.
+   * @return a configuration that has docker ask {@code credentialHelper} for
+   *         the credentials of each host, instead of embedding a token.
+   */
+  public static GoogleContainerRegistryDockerConfig forCredentialHelper(
+      List<String> hosts, String credentialHelper) {
+    return new GoogleContainerRegistryDockerConfig(hosts, credentialHelper);
+  }
+
+  /**
+   * @param gcrServer a comma separated list of allowed registry hosts, as
+   *        configured in {@link GoogleContainerRegistryCredentialGlobalConfig}.
+   * @return the hosts to write an entry for. Wildcards are expanded to the
+   *         known regional hosts when they cover {@code gcr.io}, and dropped
+   *         otherwise, since docker does not match them.
+   */
+  public static List<String> getHosts(String gcrServer) {
+    Set<String> hosts = Sets.newLinkedHashSet();
+    for (String server : Splitter.on(',').trimResults().omitEmptyStrings()
+        .split(gcrServer)) {
+      if (!server.startsWith("*.")) {
+        hosts.add(server);
+      } else if (server.substring(2).equals(GCR_DOMAIN)) {
+        for (String prefix : REGIONAL_PREFIXES) {
+          hosts.add(prefix + "." + GCR_DOMAIN);
+        }
+      }
+    }
+    return ImmutableList.copyOf(hosts);
+  }
+
+  /**
+   * @return the hosts this configuration authenticates against.
+   */
+  public List<String> getHosts() {
+    return hosts;
+  }
+
+  /**
+   * @return the {@code config.json} content, with one {@code auths} entry
+   *         per host, or one {@code credHelpers} entry per host when using a
+   *         credential helper.
+   */
+  public JSONObject toJSON() {
+    JSONObject config = new JSONObject();
+    if (credentialHelper != null) {
+      JSONObject helpers = new JSONObject();
+      for (String host : hosts) {
+        helpers.put(host, credentialHelper);
+      }
+      config.put("credHelpers", helpers);
+      return config;
+    }
+    JSONObject auths = new JSONObject();
+    for (String host : hosts) {
+      JSONObject auth = new JSONObject();
+      auth.put("auth", token.getToken());
+      auth.put("email", token.getEmail());
+      auths.put("https://" + host, auth);
+    }
+    config.put("auths", auths);
+    return config;
+  }
+
+  /**
+   * Writes {@code config.json} into {@code dir}, which may reside on an
+   * agent, so that it can be pointed to by {@code DOCKER_CONFIG}.
+   * {@code dir} is restricted to its owner first, so that nobody else can
+   * read the file while it is being written.
+   *
+   * @return the written file.
+   */
+  public FilePath write(FilePath dir)
+      throws IOException, InterruptedException {
+    dir.mkdirs();
+    dir.chmod(0700);
+    FilePath file = dir.child(FILE_NAME);
+    file.write(toJSON().toString(), "UTF-8");
+    file.chmod(0600);
+    return file;
+  }
+}
@@ -0,0 +1,267 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.jenkins.plugins.googlecontainerregistryauth;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.cloudbees.plugins.credentials.CredentialsMatchers;
+import com.cloudbees.plugins.credentials.CredentialsNameProvider;
+import com.cloudbees.plugins.credentials.CredentialsProvider;
+import com.cloudbees.plugins.credentials.domains.DomainRequirement;
+import com.google.common.collect.ImmutableList;
+
+import org.jenkinsci.plugins.docker.commons.credentials.DockerRegistryToken;
+import org.kohsuke.stapler.AncestorInPath;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+
+import hudson.AbortException;
+import hudson.EnvVars;
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.BuildListener;
+import hudson.model.Item;
+import hudson.security.ACL;
+import hudson.tasks.BuildWrapper;
+import hudson.tasks.BuildWrapperDescriptor;
+import hudson.util.ListBoxModel;
+import jenkins.authentication.tokens.api.AuthenticationTokenException;
+import jenkins.model.GlobalConfiguration;
+import jenkins.model.Jenkins;
+
+/**
+ * Points {@code DOCKER_CONFIG} at a {@code config.json} that authenticates
+ * against every allowed Google Container Registry host, for the duration of
+ * a build.
+ *
+ * <p>
+ * All hosts share one token, minted when the build starts. Alternatively,
+ * docker may be pointed at a {@link GoogleContainerRegistryCredentialHelper},
+ * which keeps serving valid tokens however long the build runs.
+ */
+public class GoogleContainerRegistryDockerConfigWrapper extends BuildWrapper {
+  private final String credentialsId;
+  private boolean credentialHelper;
+  private boolean pullOnly;
+
+  /**
+   * @param credentialsId the id of the
+   *        {@link GoogleContainerRegistryCredential} to authenticate with.
+   */
+  @DataBoundConstructor
+  public GoogleContainerRegistryDockerConfigWrapper(String credentialsId) {
+    this.credentialsId = checkNotNull(credentialsId);
+  }
+
+  /**
+   * @return the id of the {@link GoogleContainerRegistryCredential} to
+   *         authenticate with.
+   */
+  public String getCredentialsId() {
+    return credentialsId;
+  }
+
+  /**
+   * @return whether docker should obtain tokens from a credential helper,
+   *         rather than from a token embedded when the build starts.
+   */
+  public boolean isCredentialHelper() {
+    return credentialHelper;
+  }
+
+  /**
+   * @param credentialHelper whether docker should obtain tokens from a
+   *        credential helper, which keeps them valid past their lifetime for
+   *        long builds.
+   */
+  @DataBoundSetter
+  public void setCredentialHelper(boolean credentialHelper) {
+    this.credentialHelper = credentialHelper;
+  }
+
+  /**
+   * @return whether the build only pulls images, and may thus authenticate
+   *         with a read-only token.
+   */
+  public boolean isPullOnly() {
+    return pullOnly;
+  }
+
+  /**
+   * @param pullOnly whether the build only pulls images. Read-only tokens are
+   *        shared by all such builds of an account.
+   */
+  @DataBoundSetter
+  public void setPullOnly(boolean pullOnly) {
+    this.pullOnly = pullOnly;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public Environment setUp(AbstractBuild build, Launcher launcher,
+      BuildListener listener) throws IOException, InterruptedException {
+    GoogleContainerRegistryCredential credential = CredentialsMatchers
+        .firstOrNull(lookupCredentials(build.getProject()),
+            CredentialsMatchers.withId(credentialsId));
+    if (credential == null) {
+      throw new AbortException(
+          Messages.GoogleContainerRegistryDockerConfig_NoCredential(
+              credentialsId));
+    }
+    if (pullOnly) {
+      credential = credential.forRequirement(
+          GoogleContainerRegistryScopeRequirement.READ_ONLY);
+    }
+    FilePath workspace = build.getWorkspace();
+    if (workspace == null) {
+      throw new AbortException(
+          Messages.GoogleContainerRegistryDockerConfig_NoWorkspace());
+    }
+    // Keep the configuration out of the workspace itself, so that it cannot
+    // be archived along with build artifacts.
+    FilePath tmp = workspace.sibling(workspace.getName() + "@tmp");
+    tmp.mkdirs();
+    FilePath dir = tmp.createTempDir("docker-config", "");
+    List<String> hosts =
+        GoogleContainerRegistryDockerConfig.getHosts(getGcrServer());
+
+    if (credentialHelper) {
+      if (!launcher.isUnix()) {
+        throw new AbortException(
+            Messages.GoogleContainerRegistryDockerConfig_HelperNotUnix());
+      }
+      GoogleContainerRegistryCredentialHelper helper =
+          GoogleContainerRegistryCredentialHelper.start(credential, dir, hosts);
+      listener.getLogger().println(
+          Messages.GoogleContainerRegistryDockerConfig_HelperStarted(hosts));
+      return new DockerConfigEnvironment(dir, helper);
+    }
+
+    DockerRegistryToken token;
+    try {
+      token = new GoogleContainerRegistryTokenSource().convert(credential,
+          build);
+    } catch (AuthenticationTokenException e) {
+      throw new IOException(e);
+    }
+    new GoogleContainerRegistryDockerConfig(hosts, token).write(dir);
+    listener.getLogger().println(
+        Messages.GoogleContainerRegistryDockerConfig_Written(hosts));
+    return new DockerConfigEnvironment(dir, null);
+  }
+
+  private static String getGcrServer() {
+    return GlobalConfiguration.all()
+        .get(GoogleContainerRegistryCredentialGlobalConfig.class)
+        .getGcrServer();
+  }
+
+  private static List<GoogleContainerRegistryCredential> lookupCredentials(
+      @Nullable Item context) {
+    return CredentialsProvider.lookupCredentials(
+        GoogleContainerRegistryCredential.class, context, ACL.SYSTEM,
+        ImmutableList.<DomainRequirement>of());
+  }
+
+  /**
+   * Exposes the written configuration to the build, and removes it once the
+   * build is done.
+   */
+  private class DockerConfigEnvironment extends Environment {
+    private final FilePath dir;
+    @Nullable private final GoogleContainerRegistryCredentialHelper helper;
+
+    DockerConfigEnvironment(FilePath dir,
+        @Nullable GoogleContainerRegistryCredentialHelper helper) {
+      this.dir = dir;
+      this.helper = helper;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void buildEnvVars(Map<String, String> env) {
+      env.put("DOCKER_CONFIG", dir.getRemote());
+      if (helper != null && env instanceof EnvVars) {
+        // Docker looks up credential helpers on the PATH.
+        ((EnvVars) env).override("PATH+GCR_CREDENTIAL_HELPER",
+            dir.getRemote());
+      }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean tearDown(AbstractBuild build, BuildListener listener)
+        throws IOException, InterruptedException {
+      try {
+        if (helper != null) {
+          helper.stop();
+        }
+      } finally {
+        dir.deleteRecursive();
+      }
+      return true;
+    }
+  }
+
+  /**
+   * Descriptor for {@link GoogleContainerRegistryDockerConfigWrapper}.
+   */
+  @Extension
+  public static final class DescriptorImpl extends BuildWrapperDescriptor {
+    /** {@inheritDoc} */
+    @Override
+    public boolean isApplicable(AbstractProject<?, ?> item) {
+      return true;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String getDisplayName() {
+      return Messages.GoogleContainerRegistryDockerConfig_DisplayName();
+    }
+
+    /**
+     * Lists the {@link GoogleContainerRegistryCredential} available to
+     * {@code context}, to those who may configure it.
+     */
+    public ListBoxModel doFillCredentialsIdItems(
+        @AncestorInPath @Nullable Item context) {
+      ListBoxModel items = new ListBoxModel();
+      boolean allowed = (context == null)
+          ? Jenkins.getInstance().hasPermission(Jenkins.ADMINISTER)
+          : context.hasPermission(Item.CONFIGURE);
+      if (!allowed) {
+        return items;
+      }
+      for (GoogleContainerRegistryCredential credential :
+               lookupCredentials(context)) {
+        items.add(CredentialsNameProvider.name(credential),
+            credential.getId());
+      }
+      return items;
+    }
+  }
+}
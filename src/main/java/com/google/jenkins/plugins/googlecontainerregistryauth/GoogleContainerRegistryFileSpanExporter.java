@@ -0,0 +1,84 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.jenkins.plugins.googlecontainerregistryauth;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.common.base.Charsets;
+
+import net.sf.json.JSONObject;
+
+/**
+ * Appends spans to a file, one JSON object per line, for offline analysis.
+ * Files written by the master and its agents can be concatenated, and the
+ * spans of a build grouped by their {@code traceId}.
+ */
+public final class GoogleContainerRegistryFileSpanExporter
+    extends GoogleContainerRegistrySpanExporter {
+  private final File file;
+
+  /**
+   * @param file the file to append spans to.
+   */
+  public GoogleContainerRegistryFileSpanExporter(File file) {
+    this.file = checkNotNull(file);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void export(GoogleContainerRegistrySpan span) {
+    JSONObject json = new JSONObject();
+    json.put("traceId", span.getTraceId());
+    json.put("spanId", span.getSpanId());
+    if (span.getParentId() != null) {
+      json.put("parentId", span.getParentId());
+    }
+    json.put("name", span.getName());
+    if (span.getCredentialsId() != null) {
+      json.put("credentialsId", span.getCredentialsId());
+    }
+    json.put("thread", span.getThread());
+    json.put("startMillis", span.getStartMillis());
+    json.put("durationMicros", span.getDurationMicros());
+    append(json.toString() + "\n");
+  }
+
+  private synchronized void append(String line) {
+    try {
+      Writer writer = new OutputStreamWriter(
+          new FileOutputStream(file, true), Charsets.UTF_8);
+      try {
+        writer.write(line);
+      } finally {
+        writer.close();
+      }
+    } catch (IOException e) {
+      LOGGER.log(Level.WARNING, "Unable to append a span to " + file, e);
+    }
+  }
+
+  private static final Logger LOGGER = Logger.getLogger(
+      GoogleContainerRegistryFileSpanExporter.class.getName());
+}
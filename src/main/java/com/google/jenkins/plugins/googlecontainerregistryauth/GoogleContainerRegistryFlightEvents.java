@@ -0,0 +1,238 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.jenkins.plugins.googlecontainerregistryauth;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.Nullable;
+
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Emits a Java Flight Recorder event for each credential operation timed by
+ * {@link GoogleContainerRegistrySlowOps}, so that recordings of the master
+ * and agents show these operations next to garbage collections and lock
+ * contention. Events are named
+ * {@code com.google.jenkins.plugins.googlecontainerregistryauth.Operation}
+ * and carry the operation, the credential id and whether the token came
+ * from the cache.
+ *
+ * <p>
+ * The plugin targets Java versions without the {@code jdk.jfr} API, so the
+ * event type is defined at runtime, through reflection, on Java versions
+ * that have it. On older versions, an operation costs a single field
+ * read, and while no recording enables the event, a single reflective
+ * check.
+ */
+public final class GoogleContainerRegistryFlightEvents {
+  /** The name of the event type. */
+  static final String EVENT_NAME =
+      GoogleContainerRegistryFlightEvents.class.getPackage().getName()
+          + ".Operation";
+
+  private static final int OPERATION = 0;
+  private static final int CREDENTIALS_ID = 1;
+  private static final int CACHE = 2;
+
+  /** Whether the cache was hit, for operations that consult it. */
+  static final String HIT = "hit";
+  static final String MISS = "miss";
+
+  @Nullable private static final Jfr JFR = Jfr.load();
+
+  /** The innermost event being timed on each thread. */
+  private static final ThreadLocal<Event> CURRENT = new ThreadLocal<Event>();
+
+  private GoogleContainerRegistryFlightEvents() {
+  }
+
+  /**
+   * @return whether events are being recorded.
+   */
+  public static boolean isEnabled() {
+    return JFR != null && JFR.isEnabled();
+  }
+
+  /**
+   * Starts timing an operation, if events are being recorded.
+   *
+   * @return the event, to be {@link Event#commit}ted once the operation
+   *         ends, or {@code null} if events are not being recorded.
+   */
+  @Nullable
+  static Event begin(String operation, @Nullable String credentialsId) {
+    if (!isEnabled()) {
+      return null;
+    }
+    Event event = JFR.newEvent(operation, credentialsId);
+    if (event != null) {
+      event.parent = CURRENT.get();
+      CURRENT.set(event);
+    }
+    return event;
+  }
+
+  /**
+   * Tells the innermost operation of this thread, if it is being recorded,
+   * whether the token cache had the token it asked for.
+   */
+  static void cacheHit(boolean hit) {
+    if (JFR == null) {
+      return;
+    }
+    Event event = CURRENT.get();
+    if (event != null) {
+      event.cache = hit ? HIT : MISS;
+    }
+  }
+
+  /**
+   * A recorded operation. Only used by the thread that began it.
+   */
+  static final class Event {
+    private final Object event;
+    @Nullable private Event parent;
+    @Nullable private String cache;
+
+    private Event(Object event) {
+      this.event = event;
+    }
+
+    /**
+     * Ends the operation, and hands the event over to the recordings.
+     */
+    void commit() {
+      if (CURRENT.get() == this) {
+        if (parent == null) {
+          CURRENT.remove();
+        } else {
+          CURRENT.set(parent);
+        }
+      }
+      JFR.commit(this);
+    }
+  }
+
+  /**
+   * The reflective handle on the {@code jdk.jfr} API.
+   */
+  private static final class Jfr {
+    private final Object factory;
+    private final Object prototype;
+    private final Method newEvent;
+    private final Method isEnabled;
+    private final Method begin;
+    private final Method end;
+    private final Method shouldCommit;
+    private final Method set;
+    private final Method commit;
+
+    private Jfr(Object factory, Class<?> eventClass) throws Exception {
+      this.factory = factory;
+      this.newEvent = factory.getClass().getMethod("newEvent");
+      this.isEnabled = eventClass.getMethod("isEnabled");
+      this.begin = eventClass.getMethod("begin");
+      this.end = eventClass.getMethod("end");
+      this.shouldCommit = eventClass.getMethod("shouldCommit");
+      this.set = eventClass.getMethod("set", int.class, Object.class);
+      this.commit = eventClass.getMethod("commit");
+      this.prototype = newEvent.invoke(factory);
+    }
+
+    /**
+     * @return the handle, or {@code null} if this Java version has no
+     *         {@code jdk.jfr} API.
+     */
+    @Nullable
+    static Jfr load() {
+      try {
+        Class<?> eventClass = Class.forName("jdk.jfr.Event");
+        Class<?> factoryClass = Class.forName("jdk.jfr.EventFactory");
+        Class<?> annotationClass = Class.forName("jdk.jfr.AnnotationElement");
+        Class<?> descriptorClass = Class.forName("jdk.jfr.ValueDescriptor");
+        Constructor<?> annotation =
+            annotationClass.getConstructor(Class.class, Object.class);
+        Constructor<?> descriptor =
+            descriptorClass.getConstructor(Class.class, String.class);
+
+        List<Object> annotations = ImmutableList.of(
+            annotation.newInstance(Class.forName("jdk.jfr.Name"), EVENT_NAME),
+            annotation.newInstance(Class.forName("jdk.jfr.Label"),
+                "Google Container Registry Operation"),
+            annotation.newInstance(Class.forName("jdk.jfr.Category"),
+                new String[] {"Jenkins", "Google Container Registry"}));
+        // In the order of OPERATION, CREDENTIALS_ID and CACHE.
+        List<Object> fields = ImmutableList.of(
+            descriptor.newInstance(String.class, "operation"),
+            descriptor.newInstance(String.class, "credentialsId"),
+            descriptor.newInstance(String.class, "cache"));
+        Object factory = factoryClass.getMethod("create", List.class,
+            List.class).invoke(null, annotations, fields);
+        return new Jfr(factory, eventClass);
+      } catch (ClassNotFoundException e) {
+        return null;
+      } catch (Exception e) {
+        LOGGER.log(Level.FINE, "Unable to define the flight recorder event",
+            e);
+        return null;
+      } catch (LinkageError e) {
+        return null;
+      }
+    }
+
+    boolean isEnabled() {
+      try {
+        return (Boolean) isEnabled.invoke(prototype);
+      } catch (Exception e) {
+        return false;
+      }
+    }
+
+    @Nullable
+    Event newEvent(String operation, @Nullable String credentialsId) {
+      try {
+        Object event = newEvent.invoke(factory);
+        set.invoke(event, OPERATION, operation);
+        set.invoke(event, CREDENTIALS_ID, credentialsId);
+        begin.invoke(event);
+        return new Event(event);
+      } catch (Exception e) {
+        LOGGER.log(Level.FINE, "Unable to begin a flight recorder event", e);
+        return null;
+      }
+    }
+
+    void commit(Event event) {
+      try {
+        end.invoke(event.event);
+        if ((Boolean) shouldCommit.invoke(event.event)) {
+          set.invoke(event.event, CACHE, event.cache);
+          commit.invoke(event.event);
+        }
+      } catch (Exception e) {
+        LOGGER.log(Level.FINE, "Unable to commit a flight recorder event", e);
+      }
+    }
+  }
+
+  private static final Logger LOGGER = Logger.getLogger(
+      GoogleContainerRegistryFlightEvents.class.getName());
+}
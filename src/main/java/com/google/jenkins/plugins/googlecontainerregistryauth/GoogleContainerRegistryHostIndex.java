@@ -0,0 +1,189 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.jenkins.plugins.googlecontainerregistryauth;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+import javax.annotation.Nullable;
+
+import com.google.common.base.Splitter;
+import com.google.common.base.Strings;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+
+/**
+ * Maps registry hosts to the ids of the service accounts that may be used
+ * with them, as configured with lines of the form
+ * {@code host-pattern=credentials-id[,credentials-id...]}. A host pattern
+ * may use {@code *} as a wildcard, as in {@code *.gcr.io}.
+ *
+ * <p>
+ * Hosts that no pattern covers are not restricted to any account.
+ */
+public final class GoogleContainerRegistryHostIndex {
+  /**
+   * The number of distinct hostnames whose accounts are remembered.
+   */
+  private static final int HOSTS_CACHE_SIZE = Integer.getInteger(
+      GoogleContainerRegistryHostIndex.class.getName() + ".hostsCacheSize",
+      256);
+
+  /**
+   * An index without any mapping.
+   */
+  public static final GoogleContainerRegistryHostIndex EMPTY =
+      new GoogleContainerRegistryHostIndex(
+          ImmutableMap.<String, ImmutableSet<String>>of(),
+          ImmutableMap.<Pattern, ImmutableSet<String>>of());
+
+  private static final Splitter LINES =
+      Splitter.on('\n').trimResults().omitEmptyStrings();
+  private static final Splitter IDS =
+      Splitter.on(',').trimResults().omitEmptyStrings();
+
+  private final ImmutableMap<String, ImmutableSet<String>> exact;
+  private final ImmutableMap<Pattern, ImmutableSet<String>> wildcards;
+  private final Cache<String, ImmutableSet<String>> hosts;
+
+  private GoogleContainerRegistryHostIndex(
+      ImmutableMap<String, ImmutableSet<String>> exact,
+      ImmutableMap<Pattern, ImmutableSet<String>> wildcards) {
+    this.exact = exact;
+    this.wildcards = wildcards;
+    this.hosts = CacheBuilder.newBuilder()
+        .maximumSize(HOSTS_CACHE_SIZE)
+        .build();
+  }
+
+  /**
+   * @param mappings the configured mappings, one per line. Blank lines and
+   *        lines starting with {@code #} are ignored, as are malformed lines.
+   * @return the index of {@code mappings}.
+   */
+  public static GoogleContainerRegistryHostIndex parse(
+      @Nullable String mappings) {
+    if (Strings.isNullOrEmpty(mappings)) {
+      return EMPTY;
+    }
+    Map<String, ImmutableSet.Builder<String>> exact = Maps.newLinkedHashMap();
+    Map<String, ImmutableSet.Builder<String>> wildcards =
+        Maps.newLinkedHashMap();
+    for (String line : LINES.split(mappings)) {
+      if (line.startsWith("#")) {
+        continue;
+      }
+      int separator = line.indexOf('=');
+      String host = separator < 0 ?
+          "" : line.substring(0, separator).trim().toLowerCase(Locale.ENGLISH);
+      List<String> ids = separator < 0 ? ImmutableList.<String>of()
+          : ImmutableList.copyOf(IDS.split(line.substring(separator + 1)));
+      if (host.isEmpty() || ids.isEmpty()) {
+        LOGGER.log(Level.WARNING, "Ignoring malformed host mapping: {0}",
+            line);
+        continue;
+      }
+      Map<String, ImmutableSet.Builder<String>> target =
+          host.contains("*") ? wildcards : exact;
+      ImmutableSet.Builder<String> builder = target.get(host);
+      if (builder == null) {
+        builder = ImmutableSet.builder();
+        target.put(host, builder);
+      }
+      builder.addAll(ids);
+    }
+
+    ImmutableMap.Builder<String, ImmutableSet<String>> exactIndex =
+        ImmutableMap.builder();
+    for (Map.Entry<String, ImmutableSet.Builder<String>> entry
+             : exact.entrySet()) {
+      exactIndex.put(entry.getKey(), entry.getValue().build());
+    }
+    ImmutableMap.Builder<Pattern, ImmutableSet<String>> wildcardIndex =
+        ImmutableMap.builder();
+    for (Map.Entry<String, ImmutableSet.Builder<String>> entry
+             : wildcards.entrySet()) {
+      wildcardIndex.put(toPattern(entry.getKey()), entry.getValue().build());
+    }
+    return new GoogleContainerRegistryHostIndex(
+        exactIndex.build(), wildcardIndex.build());
+  }
+
+  /**
+   * @return whether no host is restricted to any account.
+   */
+  public boolean isEmpty() {
+    return exact.isEmpty() && wildcards.isEmpty();
+  }
+
+  /**
+   * @param hostname the registry host being accessed.
+   * @return the ids of the accounts that may be used with {@code hostname},
+   *         or an empty set if it is not restricted to any account.
+   */
+  public ImmutableSet<String> getAccounts(String hostname) {
+    if (isEmpty()) {
+      return ImmutableSet.of();
+    }
+    String host = hostname.toLowerCase(Locale.ENGLISH);
+    ImmutableSet<String> accounts = hosts.getIfPresent(host);
+    if (accounts == null) {
+      accounts = computeAccounts(host);
+      hosts.put(host, accounts);
+    }
+    return accounts;
+  }
+
+  private ImmutableSet<String> computeAccounts(String host) {
+    ImmutableSet.Builder<String> accounts = ImmutableSet.builder();
+    ImmutableSet<String> exactAccounts = exact.get(host);
+    if (exactAccounts != null) {
+      accounts.addAll(exactAccounts);
+    }
+    for (Map.Entry<Pattern, ImmutableSet<String>> entry
+             : wildcards.entrySet()) {
+      if (entry.getKey().matcher(host).matches()) {
+        accounts.addAll(entry.getValue());
+      }
+    }
+    return accounts.build();
+  }
+
+  private static Pattern toPattern(String hostPattern) {
+    StringBuilder regex = new StringBuilder();
+    int start = 0;
+    int wildcard;
+    while ((wildcard = hostPattern.indexOf('*', start)) >= 0) {
+      regex.append(Pattern.quote(hostPattern.substring(start, wildcard)))
+          .append(".*");
+      start = wildcard + 1;
+    }
+    regex.append(Pattern.quote(hostPattern.substring(start)));
+    return Pattern.compile(regex.toString());
+  }
+
+  private static final Logger LOGGER = Logger.getLogger(
+      GoogleContainerRegistryHostIndex.class.getName());
+}
@@ -0,0 +1,411 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.jenkins.plugins.googlecontainerregistryauth;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.Nullable;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hashing;
+
+import hudson.Functions;
+import hudson.os.PosixAPI;
+import hudson.util.Secret;
+
+import jnr.posix.FileStat;
+import jnr.posix.POSIX;
+
+/**
+ * Shares the access tokens minted on agents among the processes of a host,
+ * e.g. the agents of a VM, or containers that mount the same directory, so
+ * that they do not each mint tokens for the same accounts.
+ *
+ * <p>
+ * Tokens are kept in a memory-mapped file of fixed size slots, each holding
+ * the SHA-256 digest of its key, the expiry of the token and the token
+ * itself. A key hashes to a few consecutive slots; storing a token takes the
+ * slot of the same key, or else a free or expired one, or else the one that
+ * expires first. Processes serialize their accesses with a lock on the file,
+ * which is never held while minting. Since a slot is found again by the
+ * digest of its key, keys are not stored.
+ *
+ * <p>
+ * The cache is only used if the {@code file} system property prefixed with
+ * the name of this class is set, as agents have no configuration of their
+ * own. The number of slots and their size may be set with the {@code slots}
+ * and {@code slotBytes} properties, but the geometry of an existing file
+ * takes precedence, unless it is invalid, in which case the file is laid
+ * out again. The file is created readable by its owner only, as it holds
+ * the tokens in the clear, and only in a directory accessible to the user
+ * only, so that nobody else may open it in between. An existing file is
+ * refused unless it belongs to the user and is accessible to it only.
+ */
+public final class GoogleContainerRegistryHostTokenCache {
+  private static final String PROPERTY_PREFIX =
+      GoogleContainerRegistryHostTokenCache.class.getName() + ".";
+
+  /** Identifies files laid out by this class, and their version. */
+  private static final int MAGIC = 0x47435254;
+  private static final int VERSION = 1;
+
+  /** Magic, version, slots and slot size. */
+  private static final int HEADER_BYTES = 16;
+
+  /** Expiry, digest and token length. */
+  private static final int DIGEST_BYTES = 32;
+  private static final int SLOT_HEADER_BYTES = 8 + DIGEST_BYTES + 4;
+
+  /** The number of consecutive slots a key may be kept in. */
+  @VisibleForTesting
+  static final int PROBES = 8;
+
+  @Nullable private static GoogleContainerRegistryHostTokenCache instance;
+  private static boolean opened;
+
+  private final File file;
+  private final RandomAccessFile raf;
+  private final FileChannel channel;
+  private final MappedByteBuffer buffer;
+  private final int slots;
+  private final int slotBytes;
+
+  /**
+   * Opens the cache kept in {@code file}, laying it out with the given
+   * geometry if it is new.
+   */
+  @VisibleForTesting
+  GoogleContainerRegistryHostTokenCache(File file, int slots, int slotBytes)
+      throws IOException {
+    checkArgument(isValidGeometry(slots, slotBytes));
+    this.file = file;
+    if (!file.exists()) {
+      createPrivately(file);
+    }
+    checkPrivate(file);
+    this.raf = new RandomAccessFile(file, "rw");
+    this.channel = raf.getChannel();
+    try {
+      FileLock lock = channel.lock();
+      try {
+        if (!hasValidHeader(raf)) {
+          raf.setLength(0);
+          raf.setLength(HEADER_BYTES + (long) slots * slotBytes);
+          raf.seek(0);
+          raf.writeInt(MAGIC);
+          raf.writeInt(VERSION);
+          raf.writeInt(slots);
+          raf.writeInt(slotBytes);
+        } else {
+          raf.seek(8);
+          slots = raf.readInt();
+          slotBytes = raf.readInt();
+        }
+      } finally {
+        lock.release();
+      }
+      this.slots = slots;
+      this.slotBytes = slotBytes;
+      this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+          HEADER_BYTES + (long) slots * slotBytes);
+    } catch (IOException e) {
+      raf.close();
+      throw e;
+    }
+  }
+
+  /**
+   * @return whether {@code raf} is laid out by this class, with a geometry
+   *         that matches its length.
+   */
+  private static boolean hasValidHeader(RandomAccessFile raf)
+      throws IOException {
+    if (raf.length() < HEADER_BYTES) {
+      return false;
+    }
+    raf.seek(0);
+    if (raf.readInt() != MAGIC || raf.readInt() != VERSION) {
+      return false;
+    }
+    int slots = raf.readInt();
+    int slotBytes = raf.readInt();
+    return isValidGeometry(slots, slotBytes)
+        && raf.length() == HEADER_BYTES + (long) slots * slotBytes;
+  }
+
+  private static boolean isValidGeometry(int slots, int slotBytes) {
+    // A mapping may not exceed 2 GB.
+    return slots >= PROBES && slotBytes > SLOT_HEADER_BYTES
+        && HEADER_BYTES + (long) slots * slotBytes <= Integer.MAX_VALUE;
+  }
+
+  /**
+   * Creates {@code file} accessible to its owner only, before anything is
+   * written to it. It must be in a directory accessible to the user only,
+   * so that nobody else may open it before its permissions are restricted.
+   *
+   * @throws IOException if {@code file} exists already, or its directory
+   *         is not private.
+   */
+  static void createPrivately(File file) throws IOException {
+    File dir = file.getAbsoluteFile().getParentFile();
+    if (dir != null) {
+      checkPrivateDirectory(dir);
+    }
+    if (!file.createNewFile()) {
+      throw new IOException("Unable to create " + file
+          + ", which exists already");
+    }
+    restrictToOwner(file);
+  }
+
+  /**
+   * Refuses a directory that another user may access, as they could open
+   * the files created in it before these are restricted.
+   */
+  private static void checkPrivateDirectory(File dir) throws IOException {
+    if (Functions.isWindows()) {
+      return;
+    }
+    POSIX posix = PosixAPI.jnr();
+    FileStat stat = posix.stat(dir.getPath());
+    if (!stat.isDirectory() || stat.uid() != posix.geteuid()
+        || (stat.mode() & 0077) != 0) {
+      throw new IOException("Refusing to keep tokens in " + dir
+          + ", which must be a directory of this user, accessible to it only");
+    }
+  }
+
+  /**
+   * Refuses a file that another user could have created, or may access:
+   * they could read the tokens of this user, or plant their own.
+   */
+  private static void checkPrivate(File file) throws IOException {
+    if (Functions.isWindows()) {
+      return;
+    }
+    POSIX posix = PosixAPI.jnr();
+    FileStat stat = posix.lstat(file.getPath());
+    if (stat.isSymlink() || stat.uid() != posix.geteuid()
+        || (stat.mode() & 0077) != 0) {
+      throw new IOException("Refusing to share tokens through " + file
+          + ", which must be a file of this user, accessible to it only");
+    }
+  }
+
+  /**
+   * @return the cache of this host, or {@code null} if none is configured,
+   *         or it could not be opened.
+   */
+  @Nullable
+  public static synchronized GoogleContainerRegistryHostTokenCache get() {
+    if (!opened) {
+      opened = true;
+      String path = System.getProperty(PROPERTY_PREFIX + "file");
+      if (path != null) {
+        try {
+          instance = new GoogleContainerRegistryHostTokenCache(new File(path),
+              Integer.getInteger(PROPERTY_PREFIX + "slots", 256),
+              Integer.getInteger(PROPERTY_PREFIX + "slotBytes", 2048));
+        } catch (IOException e) {
+          LOGGER.log(Level.WARNING, "Unable to open the token cache " + path,
+              e);
+        } catch (IllegalArgumentException e) {
+          LOGGER.log(Level.WARNING, "Invalid geometry for the token cache "
+              + path, e);
+        }
+      }
+    }
+    return instance;
+  }
+
+  /**
+   * @return the token stored for {@code key}, or {@code null} if there is
+   *         none with more than {@code marginMillis} left.
+   */
+  @Nullable
+  public GoogleContainerRegistryToken load(String key, long marginMillis) {
+    byte[] digest = digest(key);
+    long nowMillis = System.currentTimeMillis();
+    byte[] bytes = null;
+    try {
+      synchronized (this) {
+        FileLock lock = channel.lock(0, Long.MAX_VALUE, true);
+        try {
+          int slot = find(digest);
+          if (slot < 0) {
+            return null;
+          }
+          int position = offset(slot);
+          long expiresAtMillis = buffer.getLong(position);
+          if (expiresAtMillis - nowMillis <= marginMillis) {
+            return null;
+          }
+          int length = buffer.getInt(position + 8 + DIGEST_BYTES);
+          if (length < 0 || length > slotBytes - SLOT_HEADER_BYTES) {
+            return null;
+          }
+          bytes = new byte[length];
+          buffer.position(position + SLOT_HEADER_BYTES);
+          buffer.get(bytes);
+          return new GoogleContainerRegistryToken(
+              Secret.fromString(new String(bytes, Charsets.UTF_8)),
+              expiresAtMillis);
+        } finally {
+          lock.release();
+        }
+      }
+    } catch (IOException e) {
+      LOGGER.log(Level.FINE, "Unable to read the token cache " + file, e);
+      return null;
+    } finally {
+      if (bytes != null) {
+        Arrays.fill(bytes, (byte) 0);
+      }
+    }
+  }
+
+  /**
+   * Stores {@code token} for {@code key}, replacing the token of another key
+   * if all of the slots of {@code key} are taken. Tokens too large for a slot
+   * are not stored.
+   */
+  public void store(String key, GoogleContainerRegistryToken token) {
+    byte[] digest = digest(key);
+    byte[] bytes =
+        Secret.toString(token.getValue()).getBytes(Charsets.UTF_8);
+    try {
+      if (bytes.length > slotBytes - SLOT_HEADER_BYTES) {
+        return;
+      }
+      synchronized (this) {
+        FileLock lock = channel.lock();
+        try {
+          int slot = find(digest);
+          if (slot < 0) {
+            slot = victim(digest, System.currentTimeMillis());
+          } else if (buffer.getLong(offset(slot))
+              > token.getExpiresAtMillis()) {
+            // Another process stored a token that lasts longer.
+            return;
+          }
+          int position = offset(slot);
+          buffer.position(position);
+          buffer.putLong(token.getExpiresAtMillis());
+          buffer.put(digest);
+          buffer.putInt(bytes.length);
+          buffer.put(bytes);
+          buffer.put(new byte[slotBytes - SLOT_HEADER_BYTES - bytes.length]);
+        } finally {
+          lock.release();
+        }
+      }
+    } catch (IOException e) {
+      LOGGER.log(Level.FINE, "Unable to write the token cache " + file, e);
+    } finally {
+      Arrays.fill(bytes, (byte) 0);
+    }
+  }
+
+  /**
+   * Unmaps nothing, as Java offers no way to, but releases the file.
+   */
+  @VisibleForTesting
+  void close() throws IOException {
+    raf.close();
+  }
+
+  /**
+   * @return the slot holding {@code digest}, or -1. Called with the file
+   *         locked.
+   */
+  private int find(byte[] digest) {
+    int first = home(digest);
+    byte[] candidate = new byte[DIGEST_BYTES];
+    for (int i = 0; i < PROBES; i++) {
+      int slot = (first + i) % slots;
+      int position = offset(slot);
+      if (buffer.getLong(position) == 0L) {
+        continue;
+      }
+      buffer.position(position + 8);
+      buffer.get(candidate);
+      if (Arrays.equals(candidate, digest)) {
+        return slot;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * @return the slot to store a new key in: a free or expired one, or else
+   *         the one expiring first. Called with the file locked.
+   */
+  private int victim(byte[] digest, long nowMillis) {
+    int first = home(digest);
+    int victim = first;
+    long victimExpiresAtMillis = Long.MAX_VALUE;
+    for (int i = 0; i < PROBES; i++) {
+      int slot = (first + i) % slots;
+      long expiresAtMillis = buffer.getLong(offset(slot));
+      if (expiresAtMillis <= nowMillis) {
+        return slot;
+      }
+      if (expiresAtMillis < victimExpiresAtMillis) {
+        victim = slot;
+        victimExpiresAtMillis = expiresAtMillis;
+      }
+    }
+    return victim;
+  }
+
+  private int home(byte[] digest) {
+    int hash = ((digest[0] & 0xff) << 24) | ((digest[1] & 0xff) << 16)
+        | ((digest[2] & 0xff) << 8) | (digest[3] & 0xff);
+    return (hash & Integer.MAX_VALUE) % slots;
+  }
+
+  private int offset(int slot) {
+    return HEADER_BYTES + slot * slotBytes;
+  }
+
+  private static byte[] digest(String key) {
+    return Hashing.sha256().hashString(key, Charsets.UTF_8).asBytes();
+  }
+
+  private static void restrictToOwner(File file) {
+    if (!(file.setReadable(false, false) && file.setReadable(true, true)
+          && file.setWritable(false, false) && file.setWritable(true, true))) {
+      LOGGER.log(Level.WARNING, "Unable to restrict access to {0} to its "
+          + "owner", file);
+    }
+  }
+
+  private static final Logger LOGGER = Logger.getLogger(
+      GoogleContainerRegistryHostTokenCache.class.getName());
+}
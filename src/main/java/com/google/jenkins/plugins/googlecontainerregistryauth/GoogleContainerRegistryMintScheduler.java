@@ -0,0 +1,289 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.jenkins.plugins.googlecontainerregistryauth;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.Lists;
+
+import org.kohsuke.stapler.Stapler;
+
+import hudson.model.Executor;
+
+/**
+ * Shares the outbound budget of the JVM, the number of tokens being minted
+ * at once, between the token requests of builds, of web pages and of
+ * background work, in that order of priority.
+ *
+ * <p>
+ * Each {@link Lane} may only have so many mints in flight, and lower lanes
+ * less than higher ones, so that some of the budget is always left for
+ * builds. A mint of a lower lane also waits while mints of a higher lane
+ * are waiting. Under pressure, background mints are shed first: they never
+ * wait, and are simply not started. Requests of web pages and builds wait
+ * for their turn for a limited time, builds ahead of web pages. A mint
+ * moves up to the lane of the highest request waiting for it.
+ *
+ * <p>
+ * The budget and the shares of the lower lanes may be set with the
+ * {@code permits}, {@code uiPermits} and {@code backgroundPermits} system
+ * properties, prefixed with the name of this class.
+ */
+public final class GoogleContainerRegistryMintScheduler {
+  private static final String PROPERTY_PREFIX =
+      GoogleContainerRegistryMintScheduler.class.getName() + ".";
+
+  private static final int PERMITS =
+      Integer.getInteger(PROPERTY_PREFIX + "permits", 16);
+
+  private static final GoogleContainerRegistryMintScheduler INSTANCE =
+      new GoogleContainerRegistryMintScheduler(PERMITS,
+          Integer.getInteger(PROPERTY_PREFIX + "uiPermits", PERMITS * 3 / 4),
+          Integer.getInteger(PROPERTY_PREFIX + "backgroundPermits",
+              PERMITS / 2));
+
+  /**
+   * The priority classes of token requests, the highest first.
+   */
+  public enum Lane {
+    /** Requests of running builds. */
+    BUILD,
+    /** Requests made while rendering or handling a web page. */
+    UI,
+    /** Prefetches, refreshes ahead of expiry and retries. */
+    BACKGROUND;
+
+    /**
+     * @return the lane of a request waiting for its token on the current
+     *         thread: {@link #UI} when handling a web request outside of a
+     *         build, {@link #BUILD} otherwise, since someone is waiting.
+     */
+    static Lane ofCaller() {
+      return (Executor.currentExecutor() == null
+          && Stapler.getCurrentRequest() != null) ? UI : BUILD;
+    }
+  }
+
+  private final int[] limits;
+  private final int[] waiting = new int[Lane.values().length];
+  private final int[] running = new int[Lane.values().length];
+  private final long[] granted = new long[Lane.values().length];
+  private final long[] shed = new long[Lane.values().length];
+  private int inFlight;
+
+  /**
+   * @param permits the number of mints in flight at once.
+   * @param uiPermits how many of them may be for {@link Lane#UI} or lower.
+   * @param backgroundPermits how many of them may be for
+   *        {@link Lane#BACKGROUND}.
+   */
+  @VisibleForTesting
+  GoogleContainerRegistryMintScheduler(int permits, int uiPermits,
+      int backgroundPermits) {
+    checkArgument(permits > 0);
+    checkArgument(uiPermits >= 0 && uiPermits <= permits);
+    checkArgument(backgroundPermits >= 0 && backgroundPermits <= uiPermits);
+    this.limits = new int[] {permits, uiPermits, backgroundPermits};
+  }
+
+  /**
+   * @return the scheduler of this JVM.
+   */
+  public static GoogleContainerRegistryMintScheduler get() {
+    return INSTANCE;
+  }
+
+  /**
+   * Waits for {@code turn}, which must then be {@link #release}d.
+   * {@link Lane#BACKGROUND} turns never wait.
+   *
+   * @param timeoutMillis how long to wait, at most.
+   * @return whether the mint may go ahead, or was shed.
+   */
+  synchronized boolean acquire(Turn turn, long timeoutMillis) {
+    checkArgument(!turn.waiting && !turn.granted);
+    long deadlineNanos = System.nanoTime()
+        + TimeUnit.MILLISECONDS.toNanos(
+            (turn.lane == Lane.BACKGROUND) ? 0L : timeoutMillis);
+    turn.waiting = true;
+    waiting[turn.lane.ordinal()]++;
+    try {
+      while (!mayStart(turn.lane.ordinal())) {
+        long remainingNanos = deadlineNanos - System.nanoTime();
+        if (remainingNanos <= 0) {
+          shed[turn.lane.ordinal()]++;
+          return false;
+        }
+        try {
+          TimeUnit.NANOSECONDS.timedWait(this, remainingNanos);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          shed[turn.lane.ordinal()]++;
+          return false;
+        }
+      }
+      inFlight++;
+      running[turn.lane.ordinal()]++;
+      granted[turn.lane.ordinal()]++;
+      turn.granted = true;
+      return true;
+    } finally {
+      turn.waiting = false;
+      waiting[turn.lane.ordinal()]--;
+      // Lower lanes may have been held back by this one.
+      notifyAll();
+    }
+  }
+
+  /**
+   * Moves {@code turn} up to {@code lane}, if that is higher, e.g. because
+   * a build now waits for a mint started for a web page. A turn that is
+   * waiting then waits in the higher lane, with its original deadline.
+   */
+  synchronized void raise(Turn turn, Lane lane) {
+    if (lane.ordinal() >= turn.lane.ordinal()) {
+      return;
+    }
+    if (turn.waiting) {
+      waiting[turn.lane.ordinal()]--;
+      waiting[lane.ordinal()]++;
+    }
+    if (turn.granted) {
+      running[turn.lane.ordinal()]--;
+      running[lane.ordinal()]++;
+    }
+    turn.lane = lane;
+    notifyAll();
+  }
+
+  /**
+   * Ends {@code turn}, once let through by {@link #acquire}.
+   */
+  synchronized void release(Turn turn) {
+    checkArgument(turn.granted);
+    turn.granted = false;
+    inFlight--;
+    running[turn.lane.ordinal()]--;
+    notifyAll();
+  }
+
+  private boolean mayStart(int index) {
+    if (inFlight >= limits[index]) {
+      return false;
+    }
+    for (int higher = 0; higher < index; higher++) {
+      if (waiting[higher] > 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @return the state of each lane, the highest first.
+   */
+  public synchronized List<LaneInfo> getLanes() {
+    List<LaneInfo> lanes = Lists.newArrayList();
+    for (Lane lane : Lane.values()) {
+      int index = lane.ordinal();
+      lanes.add(new LaneInfo(lane, limits[index], running[index],
+          waiting[index], granted[index], shed[index]));
+    }
+    return lanes;
+  }
+
+  /**
+   * The turn of a single mint. Guarded by the monitor of the scheduler.
+   */
+  static final class Turn {
+    private Lane lane;
+    private boolean waiting;
+    private boolean granted;
+
+    Turn(Lane lane) {
+      this.lane = lane;
+    }
+  }
+
+  /**
+   * The state of a lane, as of when it was asked for.
+   */
+  public static final class LaneInfo {
+    private final Lane lane;
+    private final int limit;
+    private final int running;
+    private final int waiting;
+    private final long granted;
+    private final long shed;
+
+    private LaneInfo(Lane lane, int limit, int running, int waiting,
+        long granted, long shed) {
+      this.lane = lane;
+      this.limit = limit;
+      this.running = running;
+      this.waiting = waiting;
+      this.granted = granted;
+      this.shed = shed;
+    }
+
+    /**
+     * @return the lane.
+     */
+    public Lane getLane() {
+      return lane;
+    }
+
+    /**
+     * @return how many mints may be in flight when one of this lane starts.
+     */
+    public int getLimit() {
+      return limit;
+    }
+
+    /**
+     * @return the number of mints of this lane in flight.
+     */
+    public int getRunning() {
+      return running;
+    }
+
+    /**
+     * @return the number of mints of this lane waiting for their turn.
+     */
+    public int getWaiting() {
+      return waiting;
+    }
+
+    /**
+     * @return the number of mints of this lane let through so far.
+     */
+    public long getGranted() {
+      return granted;
+    }
+
+    /**
+     * @return the number of mints of this lane shed so far.
+     */
+    public long getShed() {
+      return shed;
+    }
+  }
+}
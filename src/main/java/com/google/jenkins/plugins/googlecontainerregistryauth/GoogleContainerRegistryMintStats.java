@@ -0,0 +1,80 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.jenkins.plugins.googlecontainerregistryauth;
+
+import java.util.Arrays;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Rolling statistics of the mints of a single account: how long the last
+ * {@link #WINDOW} successful mints took, and the lifetime the server granted
+ * to the last token.
+ */
+public final class GoogleContainerRegistryMintStats {
+  /**
+   * The number of most recent mints latencies are computed over.
+   */
+  static final int WINDOW = 64;
+
+  private final long[] latenciesMillis = new long[WINDOW];
+  private long mints;
+  private long lastLifetimeMillis;
+
+  /**
+   * @param latencyMillis how long the mint took.
+   * @param lifetimeMillis how long the minted token is valid for, as
+   *        reported by the server.
+   */
+  public synchronized void record(long latencyMillis, long lifetimeMillis) {
+    latenciesMillis[(int) (mints % WINDOW)] = Math.max(0L, latencyMillis);
+    mints++;
+    lastLifetimeMillis = Math.max(0L, lifetimeMillis);
+  }
+
+  /**
+   * @param percentile between 0 and 1.
+   * @return the latency that {@code percentile} of the recent mints did not
+   *         exceed, or 0 if none was recorded yet.
+   */
+  public synchronized long getLatencyMillis(double percentile) {
+    checkArgument(percentile >= 0 && percentile <= 1);
+    int size = (int) Math.min(mints, WINDOW);
+    if (size == 0) {
+      return 0L;
+    }
+    long[] sorted = Arrays.copyOf(latenciesMillis, size);
+    Arrays.sort(sorted);
+    int index = (int) Math.ceil(percentile * size) - 1;
+    return sorted[Math.max(0, index)];
+  }
+
+  /**
+   * @return the lifetime of the last minted token, or 0 if none was minted
+   *         yet.
+   */
+  public synchronized long getLastLifetimeMillis() {
+    return lastLifetimeMillis;
+  }
+
+  /**
+   * @return the number of successful mints recorded so far.
+   */
+  public synchronized long getMints() {
+    return mints;
+  }
+}
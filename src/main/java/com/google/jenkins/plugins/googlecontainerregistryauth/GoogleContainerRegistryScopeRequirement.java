@@ -18,6 +18,8 @@ package com.google.jenkins.plugins.googlecontainerregistryauth;
 
 import java.util.Collection;
 
+import static com.google.common.base.Preconditions.checkNotNull;
+
 import com.google.api.services.storage.StorageScopes;
 import com.google.common.collect.ImmutableList;
 import com.google.jenkins.plugins.credentials.oauth.GoogleOAuth2ScopeRequirement;
@@ -27,10 +29,43 @@ import com.google.jenkins.plugins.credentials.oauth.GoogleOAuth2ScopeRequirement
  */
 public class GoogleContainerRegistryScopeRequirement
     extends GoogleOAuth2ScopeRequirement {
+  /**
+   * Allows both pulling and pushing images.
+   */
+  public static final GoogleContainerRegistryScopeRequirement READ_WRITE =
+      new GoogleContainerRegistryScopeRequirement(
+          StorageScopes.DEVSTORAGE_READ_WRITE);
+
+  /**
+   * Only allows pulling images.
+   */
+  public static final GoogleContainerRegistryScopeRequirement READ_ONLY =
+      new GoogleContainerRegistryScopeRequirement(
+          StorageScopes.DEVSTORAGE_READ_ONLY);
+
+  private final String scope;
+
+  public GoogleContainerRegistryScopeRequirement() {
+    this(StorageScopes.DEVSTORAGE_READ_WRITE);
+  }
+
+  /**
+   * @param scope the single OAuth2 scope to require.
+   */
+  public GoogleContainerRegistryScopeRequirement(String scope) {
+    this.scope = checkNotNull(scope);
+  }
 
   /** {@inheritDoc} */
   @Override
   public Collection<String> getScopes() {
-    return ImmutableList.of(StorageScopes.DEVSTORAGE_READ_WRITE);
+    return ImmutableList.of(scope);
+  }
+
+  /**
+   * @return whether tokens with this scope only allow pulling images.
+   */
+  public boolean isReadOnly() {
+    return StorageScopes.DEVSTORAGE_READ_ONLY.equals(scope);
   }
 }
@@ -0,0 +1,338 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.jenkins.plugins.googlecontainerregistryauth;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import hudson.model.ItemGroup;
+
+/**
+ * Records the credential operations that took longer than a threshold, along
+ * with where the time went, who asked and on which thread. The most recent
+ * ones are kept in a ring buffer, shown by
+ * {@link GoogleContainerRegistryDiagnostics}.
+ *
+ * <p>
+ * Operations that are not slow only cost a couple of {@link System#nanoTime}
+ * calls and a small allocation. The threshold and the number of operations
+ * kept may be set with the {@code thresholdMillis} and {@code capacity}
+ * system properties, prefixed with the name of this class. A negative
+ * threshold turns recording off.
+ *
+ * <p>
+ * Every operation, slow or not, is also reported to Java Flight Recorder
+ * while it is recording, see {@link GoogleContainerRegistryFlightEvents},
+ * and traced if spans are exported, see
+ * {@link GoogleContainerRegistryTracing}.
+ */
+public final class GoogleContainerRegistrySlowOps {
+  private static final String PROPERTY_PREFIX =
+      GoogleContainerRegistrySlowOps.class.getName() + ".";
+
+  private static final GoogleContainerRegistrySlowOps INSTANCE =
+      new GoogleContainerRegistrySlowOps(
+          Long.getLong(PROPERTY_PREFIX + "thresholdMillis", 1000L),
+          Integer.getInteger(PROPERTY_PREFIX + "capacity", 100));
+
+  /**
+   * The number of phases of an operation that are told apart. Any further
+   * phases are counted in the last one.
+   */
+  private static final int MAX_PHASES = 4;
+
+  /** Stands in for every operation when recording is off. */
+  private static final Op NOT_RECORDED =
+      new Op(null, "", null, null, null, null);
+
+  private final long thresholdNanos;
+  private final Event[] events;
+  private int next;
+  private long recorded;
+
+  @VisibleForTesting
+  GoogleContainerRegistrySlowOps(long thresholdMillis, int capacity) {
+    checkArgument(capacity > 0);
+    this.thresholdNanos = (thresholdMillis < 0) ?
+        -1L : TimeUnit.MILLISECONDS.toNanos(thresholdMillis);
+    this.events = new Event[capacity];
+  }
+
+  /**
+   * @return the recorder of this JVM.
+   */
+  public static GoogleContainerRegistrySlowOps get() {
+    return INSTANCE;
+  }
+
+  /**
+   * Starts timing an operation, recorded by {@link #get}.
+   *
+   * @param operation names the operation, e.g. {@code getToken}.
+   * @param credentialsId the credential operated on, if any.
+   * @param itemGroup the item group operated from, if any.
+   * @return the operation, to be {@link Op#end}ed in a {@code finally}
+   *         block.
+   */
+  public static Op start(String operation, @Nullable String credentialsId,
+      @Nullable ItemGroup<?> itemGroup) {
+    return INSTANCE.begin(operation, credentialsId, itemGroup);
+  }
+
+  @VisibleForTesting
+  Op begin(String operation, @Nullable String credentialsId,
+      @Nullable ItemGroup<?> itemGroup) {
+    GoogleContainerRegistryFlightEvents.Event flight =
+        GoogleContainerRegistryFlightEvents.begin(operation, credentialsId);
+    GoogleContainerRegistrySpan span =
+        GoogleContainerRegistryTracing.start(operation, credentialsId);
+    if (thresholdNanos < 0 && flight == null && span == null) {
+      return NOT_RECORDED;
+    }
+    return new Op((thresholdNanos < 0) ? null : this, operation,
+        credentialsId, itemGroup, flight, span);
+  }
+
+  /**
+   * @return the slow operations kept, the most recent first.
+   */
+  public synchronized List<Event> getEvents() {
+    List<Event> result = Lists.newArrayListWithCapacity(events.length);
+    for (int i = 1; i <= events.length; i++) {
+      Event event = events[(next - i + events.length) % events.length];
+      if (event == null) {
+        break;
+      }
+      result.add(event);
+    }
+    return result;
+  }
+
+  /**
+   * @return the number of slow operations recorded so far, including those
+   *         no longer kept.
+   */
+  public synchronized long getRecorded() {
+    return recorded;
+  }
+
+  /**
+   * @return the duration above which operations are recorded, or a negative
+   *         value if recording is off.
+   */
+  public long getThresholdMillis() {
+    return (thresholdNanos < 0) ?
+        -1L : TimeUnit.NANOSECONDS.toMillis(thresholdNanos);
+  }
+
+  /**
+   * Forgets the slow operations kept so far.
+   */
+  public synchronized void clear() {
+    for (int i = 0; i < events.length; i++) {
+      events[i] = null;
+    }
+    next = 0;
+  }
+
+  private synchronized void add(Event event) {
+    events[next] = event;
+    next = (next + 1) % events.length;
+    recorded++;
+  }
+
+  /**
+   * An operation being timed. Not thread-safe: an operation is timed by the
+   * thread running it.
+   */
+  public static final class Op {
+    @Nullable private final GoogleContainerRegistrySlowOps recorder;
+    private final String operation;
+    @Nullable private final String credentialsId;
+    @Nullable private final ItemGroup<?> itemGroup;
+    @Nullable private final GoogleContainerRegistryFlightEvents.Event flight;
+    @Nullable private final GoogleContainerRegistrySpan span;
+    private final long startNanos;
+    private long lastNanos;
+    @Nullable private String[] phaseNames;
+    @Nullable private long[] phaseNanos;
+    private int phases;
+
+    private Op(@Nullable GoogleContainerRegistrySlowOps recorder,
+        String operation, @Nullable String credentialsId,
+        @Nullable ItemGroup<?> itemGroup,
+        @Nullable GoogleContainerRegistryFlightEvents.Event flight,
+        @Nullable GoogleContainerRegistrySpan span) {
+      this.recorder = recorder;
+      this.operation = operation;
+      this.credentialsId = credentialsId;
+      this.itemGroup = itemGroup;
+      this.flight = flight;
+      this.span = span;
+      this.startNanos = (recorder == null) ? 0L : System.nanoTime();
+      this.lastNanos = startNanos;
+    }
+
+    /**
+     * Marks the end of a phase of the operation, which started when the
+     * previous one ended.
+     *
+     * @param name names the phase, e.g. {@code lookup}.
+     */
+    public void phase(String name) {
+      if (recorder == null) {
+        return;
+      }
+      long nowNanos = System.nanoTime();
+      if (phaseNames == null) {
+        phaseNames = new String[MAX_PHASES];
+        phaseNanos = new long[MAX_PHASES];
+      }
+      if (phases < MAX_PHASES) {
+        phaseNames[phases] = name;
+        phaseNanos[phases] = nowNanos - lastNanos;
+        phases++;
+      } else {
+        phaseNanos[MAX_PHASES - 1] += nowNanos - lastNanos;
+      }
+      lastNanos = nowNanos;
+    }
+
+    /**
+     * Ends the operation with a last phase, and records it if it was slow.
+     *
+     * @param name names the last phase.
+     */
+    public void end(String name) {
+      if (flight != null) {
+        flight.commit();
+      }
+      if (span != null) {
+        GoogleContainerRegistryTracing.end(span);
+      }
+      if (recorder == null) {
+        return;
+      }
+      phase(name);
+      long durationNanos = lastNanos - startNanos;
+      if (durationNanos < recorder.thresholdNanos) {
+        return;
+      }
+      // A phase may have run more than once.
+      Map<String, Long> breakdown = Maps.newLinkedHashMap();
+      for (int i = 0; i < phases; i++) {
+        Long previous = breakdown.get(phaseNames[i]);
+        breakdown.put(phaseNames[i],
+            TimeUnit.NANOSECONDS.toMillis(phaseNanos[i])
+                + ((previous == null) ? 0L : previous));
+      }
+      recorder.add(new Event(operation, credentialsId,
+          (itemGroup == null) ? null : itemGroup.getFullName(),
+          Thread.currentThread().getName(),
+          System.currentTimeMillis()
+              - TimeUnit.NANOSECONDS.toMillis(durationNanos),
+          TimeUnit.NANOSECONDS.toMillis(durationNanos),
+          Collections.unmodifiableMap(breakdown)));
+    }
+  }
+
+  /**
+   * A slow operation.
+   */
+  public static final class Event {
+    private final String operation;
+    @Nullable private final String credentialsId;
+    @Nullable private final String itemGroup;
+    private final String thread;
+    private final long startedAtMillis;
+    private final long durationMillis;
+    private final Map<String, Long> phases;
+
+    Event(String operation, @Nullable String credentialsId,
+        @Nullable String itemGroup, String thread, long startedAtMillis,
+        long durationMillis, Map<String, Long> phases) {
+      this.operation = operation;
+      this.credentialsId = credentialsId;
+      this.itemGroup = itemGroup;
+      this.thread = thread;
+      this.startedAtMillis = startedAtMillis;
+      this.durationMillis = durationMillis;
+      this.phases = phases;
+    }
+
+    /**
+     * @return the name of the operation.
+     */
+    public String getOperation() {
+      return operation;
+    }
+
+    /**
+     * @return the credential operated on, if known.
+     */
+    @Nullable public String getCredentialsId() {
+      return credentialsId;
+    }
+
+    /**
+     * @return the full name of the item group operated from, if known.
+     */
+    @Nullable public String getItemGroup() {
+      return itemGroup;
+    }
+
+    /**
+     * @return the name of the thread that ran the operation.
+     */
+    public String getThread() {
+      return thread;
+    }
+
+    /**
+     * @return when the operation started.
+     */
+    public Date getStartedAt() {
+      return new Date(startedAtMillis);
+    }
+
+    /**
+     * @return how long the operation took, in milliseconds.
+     */
+    public long getDurationMillis() {
+      return durationMillis;
+    }
+
+    /**
+     * @return how long each phase of the operation took, in milliseconds,
+     *         in the order they ran.
+     */
+    public Map<String, Long> getPhases() {
+      return phases;
+    }
+  }
+}
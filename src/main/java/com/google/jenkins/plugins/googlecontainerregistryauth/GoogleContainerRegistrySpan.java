@@ -0,0 +1,113 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.jenkins.plugins.googlecontainerregistryauth;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+
+/**
+ * A traced credential operation, see {@link GoogleContainerRegistryTracing}.
+ * The spans of a build share its trace id, so that they can be laid out as a
+ * waterfall, including those of its agents.
+ */
+public final class GoogleContainerRegistrySpan {
+  private final String traceId;
+  private final String spanId;
+  @Nullable private final String parentId;
+  private final String name;
+  @Nullable private final String credentialsId;
+  private final String thread;
+  private final long startMillis;
+  private final long startNanos;
+  private long durationMicros = -1L;
+
+  GoogleContainerRegistrySpan(String traceId, String spanId,
+      @Nullable String parentId, String name, @Nullable String credentialsId) {
+    this.traceId = traceId;
+    this.spanId = spanId;
+    this.parentId = parentId;
+    this.name = name;
+    this.credentialsId = credentialsId;
+    this.thread = Thread.currentThread().getName();
+    this.startMillis = System.currentTimeMillis();
+    this.startNanos = System.nanoTime();
+  }
+
+  /**
+   * @return the id shared by all the spans of a trace: the id of the build
+   *         if the trace started on one of its executors.
+   */
+  public String getTraceId() {
+    return traceId;
+  }
+
+  /**
+   * @return the id of this span.
+   */
+  public String getSpanId() {
+    return spanId;
+  }
+
+  /**
+   * @return the id of the span this one is part of, if any. It may have been
+   *         traced in another JVM.
+   */
+  @Nullable public String getParentId() {
+    return parentId;
+  }
+
+  /**
+   * @return the name of the operation.
+   */
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * @return the credential operated on, if known.
+   */
+  @Nullable public String getCredentialsId() {
+    return credentialsId;
+  }
+
+  /**
+   * @return the name of the thread that ran the operation.
+   */
+  public String getThread() {
+    return thread;
+  }
+
+  /**
+   * @return the wall clock time at which the operation started.
+   */
+  public long getStartMillis() {
+    return startMillis;
+  }
+
+  /**
+   * @return how long the operation took, or -1 if it has not ended yet.
+   */
+  public long getDurationMicros() {
+    return durationMicros;
+  }
+
+  void end() {
+    durationMicros = TimeUnit.NANOSECONDS.toMicros(
+        System.nanoTime() - startNanos);
+  }
+}
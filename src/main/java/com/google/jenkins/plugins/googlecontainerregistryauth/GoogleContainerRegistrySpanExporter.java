@@ -0,0 +1,47 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.jenkins.plugins.googlecontainerregistryauth;
+
+import com.google.common.collect.ImmutableList;
+
+import hudson.ExtensionPoint;
+import jenkins.model.Jenkins;
+
+/**
+ * Receives the spans traced by {@link GoogleContainerRegistryTracing} on the
+ * master, e.g. to forward them to a tracing backend. Implementations are
+ * registered with {@link hudson.Extension}, and are called on the thread
+ * that ended the span, so they should hand spans off rather than block.
+ */
+public abstract class GoogleContainerRegistrySpanExporter
+    implements ExtensionPoint {
+  /**
+   * @param span a span that just ended.
+   */
+  public abstract void export(GoogleContainerRegistrySpan span);
+
+  /**
+   * @return the registered exporters, none if not on the master.
+   */
+  public static Iterable<GoogleContainerRegistrySpanExporter> all() {
+    Jenkins jenkins = Jenkins.getInstance();
+    if (jenkins == null) {
+      return ImmutableList.of();
+    }
+    return jenkins.getExtensionList(GoogleContainerRegistrySpanExporter.class);
+  }
+}
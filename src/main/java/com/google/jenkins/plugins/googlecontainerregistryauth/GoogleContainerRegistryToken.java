@@ -0,0 +1,71 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.jenkins.plugins.googlecontainerregistryauth;
+
+import java.io.Serializable;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import hudson.util.Secret;
+
+/**
+ * An OAuth access token minted for Google Container Registry, along with the
+ * time at which it stops being accepted by the registry.
+ */
+public final class GoogleContainerRegistryToken implements Serializable {
+  private final Secret value;
+  private final long expiresAtMillis;
+
+  /**
+   * @param value the access token.
+   * @param expiresAtMillis the wall clock time, in milliseconds since the
+   *        epoch, at which the token expires.
+   */
+  public GoogleContainerRegistryToken(Secret value, long expiresAtMillis) {
+    this.value = checkNotNull(value);
+    this.expiresAtMillis = expiresAtMillis;
+  }
+
+  /**
+   * @return the access token.
+   */
+  public Secret getValue() {
+    return value;
+  }
+
+  /**
+   * @return the wall clock time, in milliseconds since the epoch, at which
+   *         the token expires.
+   */
+  public long getExpiresAtMillis() {
+    return expiresAtMillis;
+  }
+
+  /**
+   * @param nowMillis the current wall clock time.
+   * @param marginMillis how long the token must still be valid for.
+   * @return whether the token may still be handed out at {@code nowMillis}.
+   */
+  public boolean isValidFor(long nowMillis, long marginMillis) {
+    return expiresAtMillis - nowMillis > marginMillis;
+  }
+
+  /**
+   * For {@link Serializable}
+   */
+  private static final long serialVersionUID = 1L;
+}
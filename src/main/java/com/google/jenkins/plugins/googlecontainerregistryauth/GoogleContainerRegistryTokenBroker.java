@@ -0,0 +1,277 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.jenkins.plugins.googlecontainerregistryauth;
+
+import java.io.IOException;
+import java.security.SecureRandom;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.Nullable;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.Uninterruptibles;
+import com.google.jenkins.plugins.credentials.oauth.GoogleRobotCredentials;
+
+import org.apache.commons.codec.binary.Hex;
+
+import hudson.remoting.Channel;
+import jenkins.security.SlaveToMasterCallable;
+
+/**
+ * Hands out the tokens of the master's cache to agents, so that agents
+ * never hold the keys of service accounts.
+ *
+ * <p>
+ * When enabled in {@link GoogleContainerRegistryCredentialGlobalConfig},
+ * credentials sent to agents carry a ticket instead of the service account.
+ * The ticket is an unguessable capability for the tokens of one credential
+ * and scope, or read-only ones, issued by the master and redeemed over the
+ * remoting channel of the agent. The master serves every ticket from
+ * {@link GoogleContainerRegistryTokenPools}, so that the requests of all
+ * agents for an account share a single mint, and the credential is looked
+ * up again on every redemption, so that deleting it revokes its tickets.
+ * Tickets unused for {@code ticketExpiryHours}, a system property prefixed
+ * with the name of this class, expire.
+ *
+ * <p>
+ * Agents keep the tokens they got until they are about to expire, and
+ * concurrent requests of an agent for the same ticket share a single round
+ * trip to the master.
+ */
+public final class GoogleContainerRegistryTokenBroker {
+  private static final long TICKET_EXPIRY_HOURS = Long.getLong(
+      GoogleContainerRegistryTokenBroker.class.getName()
+          + ".ticketExpiryHours", 24L);
+
+  /** Agents ask the master again once their token has less than this left. */
+  private static final long MARGIN_MILLIS = TimeUnit.SECONDS.toMillis(
+      GoogleContainerRegistryCredentialModule.MINIMUM_DURATION_SECONDS);
+
+  private static final int TICKET_BYTES = 32;
+
+  private static final GoogleContainerRegistryTokenBroker INSTANCE =
+      new GoogleContainerRegistryTokenBroker();
+
+  private final SecureRandom random = new SecureRandom();
+
+  /** On the master, the tickets issued by credential and scope. */
+  private final Cache<String, String> tickets;
+  /** On the master, what each ticket grants. */
+  private final Cache<String, Grant> grants;
+
+  /** On agents, the tokens got so far, by ticket and scope. */
+  private final ConcurrentMap<String, GoogleContainerRegistryToken> tokens =
+      Maps.newConcurrentMap();
+  /** On agents, the requests to the master in flight, likewise. */
+  private final ConcurrentMap<String, FutureTask<GoogleContainerRegistryToken>>
+      inFlight = Maps.newConcurrentMap();
+
+  @VisibleForTesting
+  GoogleContainerRegistryTokenBroker() {
+    this.tickets = CacheBuilder.newBuilder()
+        .expireAfterAccess(TICKET_EXPIRY_HOURS, TimeUnit.HOURS)
+        .build();
+    this.grants = CacheBuilder.newBuilder()
+        .expireAfterAccess(TICKET_EXPIRY_HOURS, TimeUnit.HOURS)
+        .build();
+  }
+
+  /**
+   * @return the broker of this JVM.
+   */
+  public static GoogleContainerRegistryTokenBroker get() {
+    return INSTANCE;
+  }
+
+  /**
+   * Issues a ticket for the tokens {@code module} mints for
+   * {@code credentials}. Called on the master.
+   *
+   * @return the ticket, the same for the same credential and scopes for as
+   *         long as it is being used.
+   */
+  public String issue(GoogleContainerRegistryCredentialModule module,
+      GoogleRobotCredentials credentials) {
+    String key = credentials.getId() + " "
+        + GoogleContainerRegistryTokenPools.getScopeKey(
+            module.getRequirement());
+    synchronized (tickets) {
+      String ticket = tickets.getIfPresent(key);
+      if (ticket == null || grants.getIfPresent(ticket) == null) {
+        ticket = newTicket();
+        grants.put(ticket, new Grant(module, credentials.getId()));
+        tickets.put(key, ticket);
+      }
+      return ticket;
+    }
+  }
+
+  /**
+   * Redeems {@code ticket} for a token of the master's cache. Called on the
+   * master, on behalf of an agent.
+   *
+   * @param readOnly whether to mint a read-only token, rather than one of
+   *        the scopes of the ticket.
+   * @throws IOException if the ticket is unknown or expired, or its
+   *         credential is gone.
+   */
+  @Nullable
+  public GoogleContainerRegistryToken redeem(String ticket, boolean readOnly)
+      throws IOException {
+    Grant grant = grants.getIfPresent(checkNotNull(ticket));
+    if (grant == null) {
+      throw new IOException("Unknown or expired token ticket");
+    }
+    GoogleRobotCredentials credentials =
+        GoogleRobotCredentials.getById(grant.credentialsId);
+    if (credentials == null) {
+      grants.invalidate(ticket);
+      throw new IOException("The credential " + grant.credentialsId
+          + " no longer exists");
+    }
+    GoogleContainerRegistryCredentialModule module = readOnly
+        ? grant.module.forRequirement(
+            GoogleContainerRegistryScopeRequirement.READ_ONLY)
+        : grant.module;
+    return module.acquireToken(credentials);
+  }
+
+  /**
+   * Gets a token for {@code ticket} from the master, unless the one got
+   * last is still good. Called on an agent.
+   *
+   * @param readOnly see {@link #redeem}.
+   * @return the token, or {@code null} if none could be obtained.
+   */
+  @Nullable
+  public GoogleContainerRegistryToken fetch(final String ticket,
+      final boolean readOnly) {
+    String key = readOnly ? ticket + " read-only" : ticket;
+    GoogleContainerRegistryToken token = tokens.get(key);
+    if (token != null
+        && token.isValidFor(System.currentTimeMillis(), MARGIN_MILLIS)) {
+      GoogleContainerRegistryFlightEvents.cacheHit(true);
+      return token;
+    }
+    GoogleContainerRegistryFlightEvents.cacheHit(false);
+    FutureTask<GoogleContainerRegistryToken> task =
+        new FutureTask<GoogleContainerRegistryToken>(
+            new Callable<GoogleContainerRegistryToken>() {
+              @Override
+              public GoogleContainerRegistryToken call() throws Exception {
+                return request(ticket, readOnly);
+              }
+            });
+    FutureTask<GoogleContainerRegistryToken> existing =
+        inFlight.putIfAbsent(key, task);
+    if (existing == null) {
+      try {
+        task.run();
+      } finally {
+        inFlight.remove(key, task);
+      }
+    } else {
+      task = existing;
+    }
+    try {
+      token = Uninterruptibles.getUninterruptibly(task);
+    } catch (ExecutionException e) {
+      LOGGER.log(Level.WARNING, "Unable to get an access token from the "
+          + "master", e.getCause());
+      return null;
+    }
+    if (token != null) {
+      tokens.put(key, token);
+    }
+    return token;
+  }
+
+  /**
+   * Asks the master for a token. Tickets are redeemed locally on the master
+   * itself, e.g. when a credential meant for an agent is used in-process.
+   */
+  @Nullable
+  private GoogleContainerRegistryToken request(String ticket,
+      boolean readOnly) throws IOException, InterruptedException {
+    Channel channel = Channel.current();
+    if (channel == null) {
+      return redeem(ticket, readOnly);
+    }
+    return channel.call(new Redeem(ticket, readOnly));
+  }
+
+  private String newTicket() {
+    byte[] bytes = new byte[TICKET_BYTES];
+    synchronized (random) {
+      random.nextBytes(bytes);
+    }
+    return Hex.encodeHexString(bytes);
+  }
+
+  /**
+   * What a ticket grants: the tokens a module mints for a credential.
+   */
+  private static final class Grant {
+    private final GoogleContainerRegistryCredentialModule module;
+    private final String credentialsId;
+
+    Grant(GoogleContainerRegistryCredentialModule module,
+        String credentialsId) {
+      this.module = module;
+      this.credentialsId = credentialsId;
+    }
+  }
+
+  /**
+   * Redeems a ticket on the master, on behalf of the agent sending it.
+   */
+  private static final class Redeem
+      extends SlaveToMasterCallable<GoogleContainerRegistryToken, IOException> {
+    private final String ticket;
+    private final boolean readOnly;
+
+    Redeem(String ticket, boolean readOnly) {
+      this.ticket = ticket;
+      this.readOnly = readOnly;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public GoogleContainerRegistryToken call() throws IOException {
+      return get().redeem(ticket, readOnly);
+    }
+
+    /**
+     * For {@link java.io.Serializable}
+     */
+    private static final long serialVersionUID = 1L;
+  }
+
+  private static final Logger LOGGER = Logger.getLogger(
+      GoogleContainerRegistryTokenBroker.class.getName());
+}
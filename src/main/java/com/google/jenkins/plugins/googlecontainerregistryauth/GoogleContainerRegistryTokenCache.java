@@ -0,0 +1,1049 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.jenkins.plugins.googlecontainerregistryauth;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.Nullable;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import hudson.util.Secret;
+import jenkins.util.Timer;
+
+/**
+ * Caches the access tokens minted for each credential until they get close
+ * to expiring, so that concurrent and subsequent requests for the same
+ * credential share a single mint.
+ *
+ * <p>
+ * Only one mint per credential is ever in flight: callers that arrive while
+ * a token is being minted wait for it rather than minting their own. Tokens
+ * may also be minted ahead of time with {@link #prefetch}, in which case the
+ * mint happens on a background thread.
+ *
+ * <p>
+ * Tokens are refreshed ahead of time: once a token nears its refresh point,
+ * the next request still gets it, but also starts minting its successor in
+ * the background. The refresh point of each account leaves room for the
+ * 99th percentile of its recent mint latencies, plus some jitter so that
+ * accounts do not all refresh at once. Idle accounts are never refreshed.
+ *
+ * <p>
+ * Failed mints are remembered too: until an exponentially growing backoff
+ * elapses, requests for the failing credential return right away instead of
+ * repeating the failing mint, which may be slow to time out. In the
+ * meantime, a background probe retries the mint, and clears the failure
+ * once it succeeds. Probing stops when the credential is no longer asked
+ * for.
+ *
+ * <p>
+ * Mints run on a bounded pool of threads, never on the requesting one, and
+ * requests wait for them for a limited time only. At most a limited number
+ * of requests wait on the same credential; any more fail right away. A mint
+ * that runs for too long is interrupted and counts as failed, and no other
+ * mint of its credential starts until its thread is back, so that each
+ * account holds at most one of the threads. This way a hanging account ties
+ * up neither the executors of the builds using it, nor those of builds
+ * using other accounts, nor request handling threads. The limits may be
+ * tuned with the {@code mintThreads}, {@code mintTimeoutSeconds},
+ * {@code maxMintSeconds} and {@code maxWaitersPerCredential} system
+ * properties, prefixed with the name of this class.
+ *
+ * <p>
+ * Mints also take turns in the outbound budget of the JVM, see
+ * {@link GoogleContainerRegistryMintScheduler}. Mints that someone waits for
+ * go in the lane of the caller, and all the others, ahead of time or in the
+ * background, in the background lane, which is shed first.
+ *
+ * <p>
+ * Cached tokens are kept outside of the heap, see
+ * {@link GoogleContainerRegistryTokenSlab}, and wiped once replaced or
+ * invalidated.
+ *
+ * <p>
+ * On the master, there is one cache per OAuth2 scope, see
+ * {@link GoogleContainerRegistryTokenPools}.
+ */
+public final class GoogleContainerRegistryTokenCache {
+  /**
+   * Cached tokens are only handed out while they have more than this left.
+   */
+  private static final long REFRESH_MARGIN_MILLIS = TimeUnit.SECONDS.toMillis(
+      GoogleContainerRegistryCredentialModule.MINIMUM_DURATION_SECONDS);
+
+  private static final String PROPERTY_PREFIX =
+      GoogleContainerRegistryTokenCache.class.getName() + ".";
+
+  /**
+   * The maximum number of tokens of a scope being minted at once.
+   */
+  private static final int MINT_THREADS =
+      Integer.getInteger(PROPERTY_PREFIX + "mintThreads", 16);
+
+  /**
+   * How long a request waits for a token being minted before giving up.
+   */
+  private static final long MINT_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(
+      Long.getLong(PROPERTY_PREFIX + "mintTimeoutSeconds", 30L));
+
+  /**
+   * How long a mint may run before it is given up on. Longer than requests
+   * wait, so that a slow mint still caches its token for the next ones.
+   */
+  private static final long MAX_MINT_MILLIS = TimeUnit.SECONDS.toMillis(
+      Long.getLong(PROPERTY_PREFIX + "maxMintSeconds", 120L));
+
+  /**
+   * The maximum number of requests waiting for the token of a single
+   * credential.
+   */
+  private static final int MAX_WAITERS =
+      Integer.getInteger(PROPERTY_PREFIX + "maxWaitersPerCredential", 16);
+
+  /**
+   * How long requests fail fast after a first failed mint. The backoff
+   * doubles with every consecutive failure, up to {@link #MAX_BACKOFF_MILLIS}.
+   */
+  private static final long INITIAL_BACKOFF_MILLIS =
+      TimeUnit.SECONDS.toMillis(10);
+
+  private static final long MAX_BACKOFF_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+  /**
+   * The percentile of recent mint latencies refreshes leave room for.
+   */
+  private static final double REFRESH_LATENCY_PERCENTILE = 0.99;
+
+  /**
+   * Refreshes are spread over up to this share of a token's lifetime, and at
+   * most {@link #MAX_JITTER_MILLIS}.
+   */
+  private static final int JITTER_LIFETIME_DIVISOR = 20;
+
+  private static final long MAX_JITTER_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+  /**
+   * How long the token being minted on this thread has to stay valid, see
+   * {@link #getRequiredLifetimeMillis}.
+   */
+  private static final ThreadLocal<Long> REQUIRED_LIFETIME =
+      new ThreadLocal<Long>();
+
+  private static final Random RANDOM = new Random();
+
+  private final ConcurrentMap<String, Entry> entries = Maps.newConcurrentMap();
+  private final Executor executor;
+  private final String name;
+  @Nullable private final GoogleContainerRegistryTokenStore store;
+  private final GoogleContainerRegistryTokenSlab slab =
+      GoogleContainerRegistryTokenSlab.get();
+  private long mintTimeoutMillis = MINT_TIMEOUT_MILLIS;
+  private long maxMintMillis = MAX_MINT_MILLIS;
+  private int maxWaiters = MAX_WAITERS;
+  private long refreshMarginMillis = REFRESH_MARGIN_MILLIS;
+  private Clock clock = Clock.SYSTEM;
+  private GoogleContainerRegistryMintScheduler scheduler =
+      GoogleContainerRegistryMintScheduler.get();
+
+  /**
+   * @param name names the threads that mint tokens, and the tokens kept in
+   *        {@code store}.
+   * @param store keeps tokens across restarts, if not {@code null}.
+   */
+  GoogleContainerRegistryTokenCache(String name,
+      @Nullable GoogleContainerRegistryTokenStore store) {
+    this(newRefreshExecutor(name), name, store);
+  }
+
+  /**
+   * @param executor runs the mints.
+   */
+  GoogleContainerRegistryTokenCache(Executor executor) {
+    this(executor, "", null);
+  }
+
+  /**
+   * @param executor runs the mints.
+   * @param name names the tokens kept in {@code store}.
+   * @param store keeps tokens across restarts, if not {@code null}.
+   */
+  GoogleContainerRegistryTokenCache(Executor executor, String name,
+      @Nullable GoogleContainerRegistryTokenStore store) {
+    this.executor = checkNotNull(executor);
+    this.name = checkNotNull(name);
+    this.store = store;
+  }
+
+  @VisibleForTesting
+  void setLimits(long mintTimeoutMillis, int maxWaiters) {
+    this.mintTimeoutMillis = mintTimeoutMillis;
+    this.maxWaiters = maxWaiters;
+  }
+
+  @VisibleForTesting
+  void setMaxMintMillis(long maxMintMillis) {
+    this.maxMintMillis = maxMintMillis;
+  }
+
+  @VisibleForTesting
+  void setScheduler(GoogleContainerRegistryMintScheduler scheduler) {
+    this.scheduler = checkNotNull(scheduler);
+  }
+
+  /**
+   * Sets the policy and clock of the credentials asked for from now on, for
+   * {@link GoogleContainerRegistryTokenSimulator}.
+   *
+   * @param refreshMarginMillis cached tokens are only handed out while they
+   *        have more than this left.
+   * @param clock tells the time.
+   */
+  void setPolicy(long refreshMarginMillis, Clock clock) {
+    this.refreshMarginMillis = refreshMarginMillis;
+    this.clock = checkNotNull(clock);
+  }
+
+  /**
+   * @param key identifies the credential the token is for.
+   * @param minter mints a new token, if there is no usable one cached.
+   * @return the cached token for {@code key}, or a newly minted one if the
+   *         cached token is missing or about to expire. {@code null} if
+   *         minting failed, recently failed, or took too long.
+   */
+  @Nullable
+  public GoogleContainerRegistryToken get(String key,
+      Callable<GoogleContainerRegistryToken> minter) {
+    Entry entry = entryFor(key);
+    Mint refresh = null;
+    synchronized (entry) {
+      long nowMillis = clock.millis();
+      if (entry.isFresh(nowMillis)) {
+        if (nowMillis >= entry.refreshAtMillis && entry.inFlight == null
+            && !entry.isBackingOff(nowMillis) && entry.running == 0) {
+          refresh = new Mint(key, entry, minter,
+              GoogleContainerRegistryMintScheduler.Lane.BACKGROUND);
+          entry.inFlight = refresh;
+        }
+        entry.hits++;
+        entry.lastMinter = minter;
+        if (refresh == null) {
+          reportHit(true);
+          return entry.getToken();
+        }
+      }
+    }
+    if (refresh != null) {
+      // Shed under pressure, the cached token is still good.
+      execute(refresh);
+      reportHit(true);
+      synchronized (entry) {
+        return entry.getToken();
+      }
+    }
+    reportHit(false);
+    synchronized (entry) {
+      if (entry.waiters >= maxWaiters) {
+        entry.misses++;
+        LOGGER.log(Level.WARNING, "Too many requests are waiting for an "
+            + "access token for {0}, failing this one", key);
+        return entry.usableToken(clock.millis());
+      }
+      entry.waiters++;
+    }
+    try {
+      return getOrMint(key, entry, minter);
+    } finally {
+      synchronized (entry) {
+        entry.waiters--;
+      }
+    }
+  }
+
+  @Nullable
+  private GoogleContainerRegistryToken getOrMint(String key, Entry entry,
+      Callable<GoogleContainerRegistryToken> minter) {
+    GoogleContainerRegistryMintScheduler.Lane lane =
+        GoogleContainerRegistryMintScheduler.Lane.ofCaller();
+    long deadlineNanos = clock.nanos()
+        + TimeUnit.MILLISECONDS.toNanos(mintTimeoutMillis);
+    boolean counted = false;
+    while (true) {
+      Mint mint;
+      boolean owner = false;
+      synchronized (entry) {
+        long nowMillis = clock.millis();
+        entry.lastMinter = minter;
+        if (entry.isFresh(nowMillis)) {
+          if (!counted) {
+            entry.hits++;
+          }
+          return entry.getToken();
+        }
+        if (!counted) {
+          entry.misses++;
+          counted = true;
+        }
+        mint = entry.inFlight;
+        if (mint == null && (entry.isBackingOff(nowMillis)
+            || entry.running > 0)) {
+          LOGGER.log(Level.FINE, "Not minting an access token for {0} for "
+              + "another {1} ms, after: {2}", new Object[] {
+                  key, entry.retryAtMillis - nowMillis, entry.lastError});
+          entry.wanted = true;
+          return entry.usableToken(nowMillis);
+        }
+        if (mint == null) {
+          mint = new Mint(key, entry, minter, lane);
+          entry.inFlight = mint;
+          owner = true;
+        }
+      }
+      if (!owner) {
+        // Whoever started the mint may have less of a hurry.
+        scheduler.raise(mint.turn, lane);
+      }
+      // Waiting for a turn counts against the timeout too.
+      if (owner && !execute(mint, remainingMillis(deadlineNanos))) {
+        LOGGER.log(Level.WARNING, "Unable to mint an access token for {0}: "
+            + "either all {1} threads minting access tokens are busy, or "
+            + "its lane got no turn in time", new Object[] {
+                key, MINT_THREADS});
+        synchronized (entry) {
+          return entry.usableToken(clock.millis());
+        }
+      }
+      GoogleContainerRegistryToken token =
+          mint.await(remainingMillis(deadlineNanos));
+      if (token != null) {
+        return token;
+      }
+      if (mint.isCancelled()) {
+        if (remainingMillis(deadlineNanos) > 0) {
+          // The mint we joined was shed, try again in our own lane.
+          continue;
+        }
+        synchronized (entry) {
+          return entry.usableToken(clock.millis());
+        }
+      }
+      if (!mint.isDone()) {
+        LOGGER.log(Level.WARNING, "Gave up waiting for an access token for "
+            + "{0} after {1} ms, it is still being minted", new Object[] {
+                key, mintTimeoutMillis});
+        synchronized (entry) {
+          return entry.usableToken(clock.millis());
+        }
+      }
+      return null;
+    }
+  }
+
+  private long remainingMillis(long deadlineNanos) {
+    return TimeUnit.NANOSECONDS.toMillis(deadlineNanos - clock.nanos());
+  }
+
+  /**
+   * Mints a token for {@code key} in the background, unless a usable one is
+   * already cached or being minted.
+   *
+   * @param key identifies the credential the token is for.
+   * @param minter mints the new token.
+   */
+  public void prefetch(String key,
+      Callable<GoogleContainerRegistryToken> minter) {
+    Entry entry = entryFor(key);
+    Mint mint;
+    synchronized (entry) {
+      long nowMillis = clock.millis();
+      if (entry.isFresh(nowMillis) || entry.inFlight != null
+          || entry.isBackingOff(nowMillis) || entry.running > 0) {
+        return;
+      }
+      mint = new Mint(key, entry, minter,
+          GoogleContainerRegistryMintScheduler.Lane.BACKGROUND);
+      entry.inFlight = mint;
+    }
+    execute(mint);
+  }
+
+  /**
+   * @return the mint statistics of {@code key}, or {@code null} if it was
+   *         never asked for.
+   */
+  @Nullable
+  public GoogleContainerRegistryMintStats getStats(String key) {
+    Entry entry = entries.get(key);
+    return (entry == null) ? null : entry.stats;
+  }
+
+  /**
+   * @return the error of the last failed mint for {@code key}, if minting
+   *         has not succeeded since.
+   */
+  @Nullable
+  public Throwable getLastError(String key) {
+    Entry entry = entries.get(key);
+    if (entry == null) {
+      return null;
+    }
+    synchronized (entry) {
+      return entry.lastError;
+    }
+  }
+
+  /**
+   * @return the state of every cached credential, without the tokens
+   *         themselves.
+   */
+  public List<EntryInfo> getEntries() {
+    List<EntryInfo> result = Lists.newArrayList();
+    long nowMillis = clock.millis();
+    for (Map.Entry<String, Entry> mapEntry : entries.entrySet()) {
+      Entry entry = mapEntry.getValue();
+      synchronized (entry) {
+        result.add(new EntryInfo(mapEntry.getKey(), entry, nowMillis));
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Mints a new token for {@code key} in the background, even if the cached
+   * one is still fresh, with the minter of the last request for it.
+   *
+   * @return whether a mint was started: not if {@code key} was never asked
+   *         for, or if a mint is already in flight.
+   */
+  public boolean refresh(String key) {
+    Entry entry = entries.get(key);
+    if (entry == null) {
+      return false;
+    }
+    Mint mint;
+    synchronized (entry) {
+      if (entry.inFlight != null || entry.lastMinter == null
+          || entry.running > 0) {
+        return false;
+      }
+      mint = new Mint(key, entry, entry.lastMinter,
+          GoogleContainerRegistryMintScheduler.Lane.BACKGROUND);
+      entry.inFlight = mint;
+    }
+    return execute(mint);
+  }
+
+  /**
+   * Forgets the minters of the last requests, so that {@link #refresh}
+   * starts no mint until a new request comes in: the credentials they mint
+   * with may have been changed or deleted since.
+   */
+  public void forgetMinters() {
+    for (Entry entry : entries.values()) {
+      synchronized (entry) {
+        entry.lastMinter = null;
+      }
+    }
+  }
+
+  /**
+   * Retries the failed mint for {@code key}, unless it has succeeded since.
+   */
+  @VisibleForTesting
+  void probe(String key) {
+    Entry entry = entries.get(key);
+    if (entry == null) {
+      return;
+    }
+    Mint mint;
+    synchronized (entry) {
+      if (entry.failures == 0 || entry.inFlight != null
+          || entry.minter == null) {
+        return;
+      }
+      if (entry.running > 0) {
+        // The mint given up on still holds a thread, try again later.
+        entry.retryAtMillis = clock.millis() + backoffMillis(entry.failures);
+        scheduleProbe(key, entry);
+        return;
+      }
+      if (!entry.wanted) {
+        // Nobody asked since the last failure, so stop probing. The next
+        // request once the backoff elapsed mints again.
+        return;
+      }
+      entry.wanted = false;
+      mint = new Mint(key, entry, entry.minter,
+          GoogleContainerRegistryMintScheduler.Lane.BACKGROUND);
+      entry.inFlight = mint;
+    }
+    execute(mint);
+  }
+
+  /**
+   * Drops the token cached for {@code key}, if any, along with any failure.
+   */
+  public void invalidate(String key) {
+    Entry entry = entries.remove(key);
+    if (entry != null) {
+      synchronized (entry) {
+        entry.removed = true;
+        entry.lastMinter = null;
+        entry.cancelProbe();
+        entry.setToken(null);
+      }
+    }
+    if (store != null) {
+      store.remove(storeKey(key));
+    }
+  }
+
+  private Entry entryFor(String key) {
+    Entry entry = entries.get(checkNotNull(key));
+    if (entry == null) {
+      Entry newEntry = new Entry(slab, refreshMarginMillis);
+      if (store != null) {
+        // Pick up where the previous run of the master left off.
+        newEntry.setToken(store.load(storeKey(key)));
+      }
+      entry = entries.putIfAbsent(key, newEntry);
+      if (entry == null) {
+        entry = newEntry;
+      } else {
+        synchronized (newEntry) {
+          newEntry.setToken(null);
+        }
+      }
+    }
+    return entry;
+  }
+
+  /**
+   * Tells whoever is watching the current request whether the cache had
+   * its token.
+   */
+  private static void reportHit(boolean hit) {
+    GoogleContainerRegistryFlightEvents.cacheHit(hit);
+    GoogleContainerRegistryAttribution.tokenRequest(hit);
+    GoogleContainerRegistryTokenTrace.cacheHit(hit);
+  }
+
+  /**
+   * Starts {@code mint} once its lane gets a turn.
+   *
+   * @return whether it was started, or shed.
+   */
+  private boolean execute(Mint mint) {
+    return execute(mint, mintTimeoutMillis);
+  }
+
+  /**
+   * Starts {@code mint} once its lane gets a turn, waiting at most
+   * {@code timeoutMillis} for it. A mint that is not started is cancelled,
+   * so that whoever joined it stops waiting.
+   *
+   * @return whether it was started, or shed.
+   */
+  private boolean execute(Mint mint, long timeoutMillis) {
+    if (scheduler.acquire(mint.turn, timeoutMillis)) {
+      try {
+        executor.execute(mint);
+        GoogleContainerRegistryAttribution.mint();
+        return true;
+      } catch (RejectedExecutionException e) {
+        scheduler.release(mint.turn);
+      }
+    }
+    mint.cancel(false);
+    return false;
+  }
+
+  /**
+   * Has {@link #probe} retry the failed mint for {@code key} once the
+   * backoff of {@code entry} elapses. Called with the monitor of
+   * {@code entry} held.
+   */
+  private void scheduleProbe(final String key, Entry entry) {
+    entry.cancelProbe();
+    entry.probe = Timer.get().schedule(new Runnable() {
+      @Override
+      public void run() {
+        probe(key);
+      }
+    }, entry.retryAtMillis - clock.millis(),
+        TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * @return how long the token being minted on this thread has to stay
+   *         valid for the cache not to refresh it again right away, or
+   *         {@code 0} if it is not being minted for a cache. Minters pass it
+   *         on to credentials that reuse tokens until they are about to
+   *         expire.
+   */
+  public static long getRequiredLifetimeMillis() {
+    Long lifetimeMillis = REQUIRED_LIFETIME.get();
+    return (lifetimeMillis == null) ? 0L : lifetimeMillis;
+  }
+
+  private static long maxJitterMillis(long lifetimeMillis) {
+    return Math.min(MAX_JITTER_MILLIS,
+        lifetimeMillis / JITTER_LIFETIME_DIVISOR);
+  }
+
+  private static long jitterMillis(long lifetimeMillis) {
+    long maxJitterMillis = maxJitterMillis(lifetimeMillis);
+    if (maxJitterMillis <= 0) {
+      return 0L;
+    }
+    synchronized (RANDOM) {
+      return (long) (RANDOM.nextDouble() * maxJitterMillis);
+    }
+  }
+
+  private static long backoffMillis(int failures) {
+    return Math.min(MAX_BACKOFF_MILLIS,
+        INITIAL_BACKOFF_MILLIS << Math.min(failures - 1, 16));
+  }
+
+  private String storeKey(String key) {
+    return name + " " + key;
+  }
+
+  private static Executor newRefreshExecutor(String name) {
+    // No queue: a mint either gets a thread right away, or is rejected, so
+    // that mints never wait behind a hanging one.
+    return new ThreadPoolExecutor(
+        0, MINT_THREADS, 60L, TimeUnit.SECONDS,
+        new SynchronousQueue<Runnable>(),
+        new ThreadFactoryBuilder()
+            .setNameFormat("GCR token refresh (" + name + ") %d")
+            .setDaemon(true)
+            .build());
+  }
+
+  /**
+   * The cache state of a single credential. Guarded by its own monitor.
+   */
+  private static final class Entry {
+    private final GoogleContainerRegistryTokenSlab slab;
+    /** Cached tokens are only handed out while they have more than this. */
+    private final long marginMillis;
+    /** Holds the cached token, if any. */
+    @Nullable private GoogleContainerRegistryTokenSlab.Slot slot;
+    private long expiresAtMillis;
+    @Nullable private Mint inFlight;
+    private final GoogleContainerRegistryMintStats stats =
+        new GoogleContainerRegistryMintStats();
+    /** When to start minting the successor of the cached token. */
+    private long refreshAtMillis;
+
+    /** The number of consecutive failed mints. */
+    private int failures;
+    private long retryAtMillis;
+    @Nullable private Throwable lastError;
+    /** Mints the token again when probing, after a failure. */
+    @Nullable private Callable<GoogleContainerRegistryToken> minter;
+    @Nullable private ScheduledFuture<?> probe;
+    /**
+     * The number of threads running its mints, including one given up on
+     * that has not returned yet.
+     */
+    private int running;
+    /** Whether a request was turned down since the last failed mint. */
+    private boolean wanted;
+    /** The number of requests waiting for a token. */
+    private int waiters;
+
+    /** The requests served from the cache, and those that were not. */
+    private long hits;
+    private long misses;
+    /** When the cached token was minted, if by this cache. */
+    private long mintedAtMillis;
+    /** Mints the token on request of an administrator. */
+    @Nullable private Callable<GoogleContainerRegistryToken> lastMinter;
+    /**
+     * Whether the entry was invalidated. A mint still in flight then hands
+     * its token to its waiters only, not to the slab or the store.
+     */
+    private boolean removed;
+
+    Entry(GoogleContainerRegistryTokenSlab slab, long marginMillis) {
+      this.slab = slab;
+      this.marginMillis = marginMillis;
+    }
+
+    /**
+     * Caches {@code token}, wiping the one it replaces, and computes when to
+     * refresh it from the recent mint latencies.
+     */
+    void setToken(@Nullable GoogleContainerRegistryToken token) {
+      Secret previous = (token != null && slot != null) ? slab.read(slot)
+          : null;
+      slab.free(slot);
+      slot = null;
+      if (token == null) {
+        return;
+      }
+      slot = slab.put(token.getValue());
+      expiresAtMillis = token.getExpiresAtMillis();
+      refreshAtMillis = expiresAtMillis - marginMillis;
+      if (token.getValue().equals(previous)) {
+        // The refresh handed back the same token, e.g. because the
+        // underlying credential reuses tokens that are not about to expire.
+        // Do not try again until it gets stale.
+        return;
+      }
+      refreshAtMillis -= stats.getLatencyMillis(REFRESH_LATENCY_PERCENTILE)
+          + jitterMillis(stats.getLastLifetimeMillis());
+    }
+
+    /**
+     * @return the cached token, read back from the slab.
+     */
+    @Nullable
+    GoogleContainerRegistryToken getToken() {
+      if (slot == null) {
+        return null;
+      }
+      return new GoogleContainerRegistryToken(slab.read(slot),
+          expiresAtMillis);
+    }
+
+    /**
+     * @return how long a new token has to stay valid for it not to be due
+     *         for refresh as soon as it is cached, leaving room for the
+     *         largest jitter.
+     */
+    long requiredLifetimeMillis() {
+      return marginMillis + stats.getLatencyMillis(REFRESH_LATENCY_PERCENTILE)
+          + maxJitterMillis(stats.getLastLifetimeMillis());
+    }
+
+    boolean isFresh(long nowMillis) {
+      return slot != null
+          && expiresAtMillis - nowMillis > marginMillis;
+    }
+
+    /**
+     * @return the cached token, if it is still valid at all. Better a token
+     *         that is about to expire than none.
+     */
+    @Nullable
+    GoogleContainerRegistryToken usableToken(long nowMillis) {
+      return (slot != null && expiresAtMillis > nowMillis) ? getToken() : null;
+    }
+
+    boolean isBackingOff(long nowMillis) {
+      return failures > 0 && nowMillis < retryAtMillis;
+    }
+
+    void cancelProbe() {
+      if (probe != null) {
+        probe.cancel(false);
+        probe = null;
+      }
+    }
+  }
+
+  /**
+   * A single mint of a token, shared by everyone waiting on it. The result is
+   * stored into the owning {@link Entry}, and the store if any, upon
+   * completion.
+   */
+  private final class Mint
+      extends FutureTask<GoogleContainerRegistryToken> {
+    private final String key;
+    private final Entry entry;
+    private final Callable<GoogleContainerRegistryToken> minter;
+    private final GoogleContainerRegistryMintScheduler.Turn turn;
+    private volatile long startNanos;
+    /** Whether it ran for too long, and was given up on. */
+    private volatile boolean overdue;
+
+    Mint(String key, Entry entry,
+        Callable<GoogleContainerRegistryToken> minter,
+        GoogleContainerRegistryMintScheduler.Lane lane) {
+      super(minter);
+      this.key = key;
+      this.entry = entry;
+      this.minter = minter;
+      this.turn = new GoogleContainerRegistryMintScheduler.Turn(lane);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void run() {
+      synchronized (entry) {
+        entry.running++;
+      }
+      ScheduledFuture<?> watchdog = Timer.get().schedule(new Runnable() {
+        @Override
+        public void run() {
+          overdue = true;
+          cancel(true);
+        }
+      }, maxMintMillis, TimeUnit.MILLISECONDS);
+      REQUIRED_LIFETIME.set(entry.requiredLifetimeMillis());
+      try {
+        startNanos = clock.nanos();
+        super.run();
+      } finally {
+        REQUIRED_LIFETIME.remove();
+        watchdog.cancel(false);
+        synchronized (entry) {
+          entry.running--;
+        }
+        scheduler.release(turn);
+      }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected void done() {
+      GoogleContainerRegistryToken token = null;
+      Throwable error = null;
+      boolean abandoned = false;
+      try {
+        token = get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        abandoned = true;
+      } catch (CancellationException e) {
+        if (overdue) {
+          error = new TimeoutException("No access token was minted within "
+              + maxMintMillis + " ms");
+        } else {
+          // Never started, which says nothing about the credential.
+          abandoned = true;
+        }
+      } catch (ExecutionException e) {
+        // Also reported to the waiters by await.
+        error = e.getCause();
+      }
+      synchronized (entry) {
+        if (entry.inFlight == this) {
+          entry.inFlight = null;
+        }
+        if (abandoned) {
+          // The outcome is unknown, the next request mints again.
+          return;
+        }
+        if (entry.removed) {
+          return;
+        }
+        if (token != null) {
+          if (startNanos != 0) {
+            entry.stats.record(TimeUnit.NANOSECONDS.toMillis(
+                clock.nanos() - startNanos),
+                token.getExpiresAtMillis() - clock.millis());
+          }
+          entry.setToken(token);
+          entry.mintedAtMillis = clock.millis();
+          entry.failures = 0;
+          entry.lastError = null;
+          entry.minter = null;
+          entry.cancelProbe();
+        } else {
+          entry.failures++;
+          entry.lastError = (error != null) ? error
+              : new IOException("No access token was minted");
+          entry.retryAtMillis = clock.millis()
+              + backoffMillis(entry.failures);
+          entry.minter = minter;
+          scheduleProbe(key, entry);
+        }
+      }
+      if (token != null && store != null) {
+        store.store(storeKey(key), token);
+      }
+    }
+
+    @Nullable
+    GoogleContainerRegistryToken await(long timeoutMillis) {
+      try {
+        return get(timeoutMillis, TimeUnit.MILLISECONDS);
+      } catch (TimeoutException e) {
+        return null;
+      } catch (CancellationException e) {
+        return null;
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return null;
+      } catch (ExecutionException e) {
+        LOGGER.log(Level.WARNING, "Unable to mint an access token for "
+            + key, e.getCause());
+        synchronized (entry) {
+          if (entry.inFlight == this) {
+            // Waiters wake up before done() runs, record it already so that
+            // the caller can tell why it got no token.
+            entry.lastError = e.getCause();
+          }
+        }
+        return null;
+      }
+    }
+  }
+
+  /**
+   * The state of a cached credential, as of when it was asked for. Never
+   * holds the token itself.
+   */
+  public static final class EntryInfo {
+    private final String key;
+    private final boolean cached;
+    private final long expiresAtMillis;
+    private final long ageMillis;
+    private final long hits;
+    private final long misses;
+    private final boolean inFlight;
+    private final int failures;
+    @Nullable private final String lastError;
+
+    private EntryInfo(String key, Entry entry, long nowMillis) {
+      this.key = key;
+      this.cached = entry.slot != null;
+      this.expiresAtMillis = cached ? entry.expiresAtMillis : 0L;
+      this.ageMillis = (cached && entry.mintedAtMillis > 0) ?
+          nowMillis - entry.mintedAtMillis : -1L;
+      this.hits = entry.hits;
+      this.misses = entry.misses;
+      this.inFlight = entry.inFlight != null;
+      this.failures = entry.failures;
+      this.lastError = (entry.lastError == null) ?
+          null : entry.lastError.toString();
+    }
+
+    /**
+     * @return identifies the credential, see {@link #get}.
+     */
+    public String getKey() {
+      return key;
+    }
+
+    /**
+     * @return whether a token is cached.
+     */
+    public boolean isCached() {
+      return cached;
+    }
+
+    /**
+     * @return when the cached token expires, or 0 if none is cached.
+     */
+    public long getExpiresAtMillis() {
+      return expiresAtMillis;
+    }
+
+    /**
+     * @return how long ago the cached token was minted, or -1 if unknown,
+     *         e.g. because it was read back from disk.
+     */
+    public long getAgeMillis() {
+      return ageMillis;
+    }
+
+    /**
+     * @return the number of requests served from the cache.
+     */
+    public long getHits() {
+      return hits;
+    }
+
+    /**
+     * @return the number of requests that had to wait for a mint, or were
+     *         turned down.
+     */
+    public long getMisses() {
+      return misses;
+    }
+
+    /**
+     * @return whether a token is being minted.
+     */
+    public boolean isInFlight() {
+      return inFlight;
+    }
+
+    /**
+     * @return the number of consecutive failed mints.
+     */
+    public int getFailures() {
+      return failures;
+    }
+
+    /**
+     * @return the error of the last failed mint, if minting has not
+     *         succeeded since.
+     */
+    @Nullable public String getLastError() {
+      return lastError;
+    }
+  }
+
+  /**
+   * Tells the time, so that traces may be replayed in virtual time.
+   */
+  abstract static class Clock {
+    static final Clock SYSTEM = new Clock() {
+      @Override
+      long millis() {
+        return System.currentTimeMillis();
+      }
+
+      @Override
+      long nanos() {
+        return System.nanoTime();
+      }
+    };
+
+    /**
+     * @return the wall clock time, in milliseconds since the epoch.
+     */
+    abstract long millis();
+
+    /**
+     * @return a monotonic time, in nanoseconds.
+     */
+    abstract long nanos();
+  }
+
+  private static final Logger LOGGER =
+      Logger.getLogger(GoogleContainerRegistryTokenCache.class.getName());
+}
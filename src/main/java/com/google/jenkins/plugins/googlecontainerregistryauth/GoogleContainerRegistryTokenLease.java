@@ -0,0 +1,233 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.jenkins.plugins.googlecontainerregistryauth;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.Maps;
+import com.google.jenkins.plugins.credentials.oauth.GoogleRobotCredentials;
+
+import hudson.Extension;
+import hudson.model.Executor;
+import hudson.model.Queue;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
+import hudson.util.Secret;
+
+/**
+ * Shares the access tokens used by a single {@link Run} across all of its
+ * steps and parallel branches.
+ *
+ * <p>
+ * The first step of a build that asks for a token for a given credential
+ * mints it, every later step of the same build reuses it until it gets close
+ * to expiring, and the lease is dropped once the build completes. This way
+ * the number of tokens minted grows with the number of builds rather than
+ * with the number of docker steps they run.
+ *
+ * <p>
+ * Steps that do not run on the executor of their build, as Pipeline steps
+ * and parallel branches do not, find its lease only if they get their
+ * tokens within {@link #callFor}, or pass their {@link Run} in.
+ */
+public final class GoogleContainerRegistryTokenLease {
+  private static final ConcurrentMap<String, GoogleContainerRegistryTokenLease>
+      LEASES = Maps.newConcurrentMap();
+
+  /**
+   * Leased tokens are renewed once they have less than this left, so that a
+   * step never receives a token that expires while it runs.
+   */
+  private static final long RENEWAL_MARGIN_MILLIS = TimeUnit.SECONDS.toMillis(
+      GoogleContainerRegistryCredentialModule.MINIMUM_DURATION_SECONDS);
+
+  /** The build that the current thread asks for tokens on behalf of. */
+  private static final ThreadLocal<Run<?, ?>> RUN =
+      new ThreadLocal<Run<?, ?>>();
+
+  @Nullable private final String jobName;
+  private final ConcurrentMap<String, Slot> slots = Maps.newConcurrentMap();
+
+  @VisibleForTesting
+  GoogleContainerRegistryTokenLease(@Nullable String jobName) {
+    this.jobName = jobName;
+  }
+
+  /**
+   * @param credentialsId the id of the wrapped {@link GoogleRobotCredentials}.
+   * @param module the module used to mint the token if it is not leased yet.
+   * @param credentials the wrapped {@link GoogleRobotCredentials}.
+   * @return the token leased to this build for {@code credentialsId} and the
+   *         scope of {@code module}, or {@code null} if none could be
+   *         obtained.
+   */
+  @Nullable
+  public Secret getToken(String credentialsId,
+      GoogleContainerRegistryCredentialModule module,
+      GoogleRobotCredentials credentials) {
+    String key = credentialsId + " " + GoogleContainerRegistryTokenPools
+        .getScopeKey(module.getRequirement());
+    Slot slot = slots.get(key);
+    if (slot == null) {
+      Slot newSlot = new Slot();
+      slot = slots.putIfAbsent(key, newSlot);
+      if (slot == null) {
+        slot = newSlot;
+        if (jobName != null) {
+          // Remember which credentials this job uses, so that its next build
+          // can have them minted while it waits in the queue.
+          GoogleContainerRegistryTokenPrewarmer.recordUse(
+              jobName, credentialsId, module.getRequirement());
+        }
+      }
+    }
+    return slot.getToken(module, credentials);
+  }
+
+  /**
+   * @return the build given to the enclosing {@link #callFor}, if any, or
+   *         else the build running on the current executor, if any.
+   */
+  @Nullable
+  public static Run<?, ?> currentRun() {
+    Run<?, ?> run = RUN.get();
+    if (run != null) {
+      return run;
+    }
+    Executor executor = Executor.currentExecutor();
+    if (executor == null) {
+      return null;
+    }
+    Queue.Executable executable = executor.getCurrentExecutable();
+    return (executable instanceof Run) ? (Run<?, ?>) executable : null;
+  }
+
+  /**
+   * Calls {@code callable} on behalf of {@code run}, so that the tokens it
+   * asks for are leased to {@code run}, even from a thread without an
+   * executor, such as those Pipeline steps run on.
+   *
+   * @return what {@code callable} returned.
+   */
+  public static <V> V callFor(Run<?, ?> run, Callable<V> callable)
+      throws Exception {
+    Run<?, ?> previous = enter(checkNotNull(run));
+    try {
+      return callable.call();
+    } finally {
+      exit(previous);
+    }
+  }
+
+  /**
+   * Makes the current thread ask for tokens on behalf of {@code run}, if not
+   * {@code null}, until {@link #exit}.
+   *
+   * @return what to give to {@link #exit}.
+   */
+  @Nullable
+  static Run<?, ?> enter(@Nullable Run<?, ?> run) {
+    Run<?, ?> previous = RUN.get();
+    if (run != null) {
+      RUN.set(run);
+    }
+    return previous;
+  }
+
+  /**
+   * Restores the build the current thread asked for tokens on behalf of
+   * before {@link #enter}.
+   */
+  static void exit(@Nullable Run<?, ?> previous) {
+    if (previous == null) {
+      RUN.remove();
+    } else {
+      RUN.set(previous);
+    }
+  }
+
+  /**
+   * @return the lease of the given build, which is created on first use.
+   */
+  public static GoogleContainerRegistryTokenLease of(Run<?, ?> run) {
+    return of(run.getExternalizableId(), run.getParent().getFullName());
+  }
+
+  @VisibleForTesting
+  static GoogleContainerRegistryTokenLease of(String key,
+      @Nullable String jobName) {
+    GoogleContainerRegistryTokenLease lease = LEASES.get(checkNotNull(key));
+    if (lease == null) {
+      GoogleContainerRegistryTokenLease newLease =
+          new GoogleContainerRegistryTokenLease(jobName);
+      lease = LEASES.putIfAbsent(key, newLease);
+      if (lease == null) {
+        lease = newLease;
+      }
+    }
+    return lease;
+  }
+
+  @VisibleForTesting
+  static void release(String key) {
+    LEASES.remove(key);
+  }
+
+  /**
+   * Holds the token leased for a single credential. Steps that ask for it
+   * concurrently wait for the first of them to mint it.
+   */
+  private static final class Slot {
+    @Nullable private GoogleContainerRegistryToken token;
+
+    @Nullable
+    synchronized Secret getToken(GoogleContainerRegistryCredentialModule module,
+        GoogleRobotCredentials credentials) {
+      if (token == null || !token.isValidFor(System.currentTimeMillis(),
+          RENEWAL_MARGIN_MILLIS)) {
+        token = module.acquireToken(credentials);
+      }
+      return (token == null) ? null : token.getValue();
+    }
+  }
+
+  /**
+   * Releases the lease of each build once it completes.
+   */
+  @Extension
+  public static class ReleaseOnCompletion extends RunListener<Run<?, ?>> {
+    /** {@inheritDoc} */
+    @Override
+    public void onCompleted(Run<?, ?> run, TaskListener listener) {
+      release(run.getExternalizableId());
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void onDeleted(Run<?, ?> run) {
+      release(run.getExternalizableId());
+    }
+  }
+}
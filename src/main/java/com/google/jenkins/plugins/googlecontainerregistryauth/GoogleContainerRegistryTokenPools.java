@@ -0,0 +1,157 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.jenkins.plugins.googlecontainerregistryauth;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.annotation.Nullable;
+
+import com.cloudbees.plugins.credentials.SystemCredentialsProvider;
+import com.google.common.base.Joiner;
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Ordering;
+import com.google.jenkins.plugins.credentials.oauth.GoogleOAuth2ScopeRequirement;
+
+import hudson.Extension;
+import hudson.ExtensionList;
+import hudson.XmlFile;
+import hudson.model.ItemGroup;
+import hudson.model.Saveable;
+import hudson.model.User;
+import hudson.model.listeners.SaveableListener;
+import jenkins.model.Jenkins;
+
+/**
+ * Keeps a separate {@link GoogleContainerRegistryTokenCache}, with its own
+ * refresh threads, for each OAuth2 scope tokens are minted with.
+ *
+ * <p>
+ * Within a pool, tokens are cached per credential, so that all pull-only
+ * builds of an account share one read-only token, and a burst of pushes
+ * never delays the refresh of that token, nor the other way around.
+ */
+@Extension
+public final class GoogleContainerRegistryTokenPools {
+  private final ConcurrentMap<String, GoogleContainerRegistryTokenCache> pools =
+      Maps.newConcurrentMap();
+  @Nullable private final GoogleContainerRegistryTokenStore store;
+
+  public GoogleContainerRegistryTokenPools() {
+    this(GoogleContainerRegistryTokenStore.forInstance());
+  }
+
+  /**
+   * @param store keeps the pooled tokens across restarts, if not
+   *        {@code null}.
+   */
+  GoogleContainerRegistryTokenPools(
+      @Nullable GoogleContainerRegistryTokenStore store) {
+    this.store = store;
+  }
+
+  /**
+   * @return the pools of the running Jenkins instance, or {@code null} if we
+   *         are not running on the master.
+   */
+  @Nullable
+  public static GoogleContainerRegistryTokenPools get() {
+    Jenkins jenkins = Jenkins.getInstance();
+    if (jenkins == null) {
+      return null;
+    }
+    ExtensionList<GoogleContainerRegistryTokenPools> pools =
+        jenkins.getExtensionList(GoogleContainerRegistryTokenPools.class);
+    return pools.isEmpty() ? null : pools.get(0);
+  }
+
+  /**
+   * @param requirement the scopes the tokens are minted with.
+   * @return the cache holding tokens minted with {@code requirement}, which
+   *         is created on first use.
+   */
+  public GoogleContainerRegistryTokenCache forRequirement(
+      GoogleOAuth2ScopeRequirement requirement) {
+    String key = getScopeKey(requirement);
+    GoogleContainerRegistryTokenCache pool = pools.get(key);
+    if (pool == null) {
+      GoogleContainerRegistryTokenCache newPool =
+          new GoogleContainerRegistryTokenCache(key, store);
+      pool = pools.putIfAbsent(key, newPool);
+      if (pool == null) {
+        pool = newPool;
+      }
+    }
+    return pool;
+  }
+
+  /**
+   * @return the caches created so far, by the key of their scopes.
+   */
+  public Map<String, GoogleContainerRegistryTokenCache> getCaches() {
+    return ImmutableSortedMap.copyOf(pools);
+  }
+
+  /**
+   * Forgets the minters that administrators refresh the pooled tokens with,
+   * see {@link GoogleContainerRegistryTokenCache#forgetMinters}.
+   */
+  public void forgetMinters() {
+    for (GoogleContainerRegistryTokenCache pool : pools.values()) {
+      pool.forgetMinters();
+    }
+  }
+
+  /**
+   * @return where the pooled tokens are kept across restarts, or
+   *         {@code null} if nowhere.
+   */
+  @Nullable
+  public GoogleContainerRegistryTokenStore getStore() {
+    return store;
+  }
+
+  /**
+   * @return a key identifying the scopes of {@code requirement}, regardless
+   *         of their order.
+   */
+  public static String getScopeKey(GoogleOAuth2ScopeRequirement requirement) {
+    return Joiner.on(' ').join(
+        Ordering.natural().sortedCopy(requirement.getScopes()));
+  }
+
+  /**
+   * Forgets the minters of the pooled tokens whenever credentials may have
+   * changed: those of the system, of a folder or of a user.
+   */
+  @Extension
+  public static class ForgetMintersOnChange extends SaveableListener {
+    /** {@inheritDoc} */
+    @Override
+    public void onChange(Saveable o, XmlFile file) {
+      if (!(o instanceof SystemCredentialsProvider || o instanceof ItemGroup
+          || o instanceof User)) {
+        return;
+      }
+      GoogleContainerRegistryTokenPools pools = get();
+      if (pools != null) {
+        pools.forgetMinters();
+      }
+    }
+  }
+}
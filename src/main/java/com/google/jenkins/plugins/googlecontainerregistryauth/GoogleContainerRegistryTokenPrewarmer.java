@@ -0,0 +1,237 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.jenkins.plugins.googlecontainerregistryauth;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.jenkins.plugins.credentials.oauth.GoogleOAuth2ScopeRequirement;
+import com.google.jenkins.plugins.credentials.oauth.GoogleRobotCredentials;
+
+import hudson.Extension;
+import hudson.XmlFile;
+import hudson.model.BuildableItemWithBuildWrappers;
+import hudson.model.Job;
+import hudson.model.Queue;
+import hudson.model.queue.QueueListener;
+import hudson.tasks.BuildWrapper;
+import jenkins.util.Timer;
+
+/**
+ * Mints the tokens a queued build is going to need while it waits for an
+ * executor, so that it finds them in the
+ * {@link GoogleContainerRegistryTokenCache} once it starts.
+ *
+ * <p>
+ * The credentials a job needs are those referenced by its configuration, as
+ * well as those its previous build obtained a token for. Their tokens are
+ * minted into the pool of the scopes the job asks for, for credentials
+ * looked up the same way its builds look them up.
+ */
+@Extension
+public class GoogleContainerRegistryTokenPrewarmer extends QueueListener {
+  /**
+   * Matches references to {@link GoogleContainerRegistryCredential} in a
+   * job's configuration, capturing the id of the wrapped credential.
+   */
+  private static final Pattern CREDENTIAL_REFERENCE =
+      Pattern.compile(">gcr:([^<]+)<");
+
+  /**
+   * The number of jobs for which we remember the credentials they use.
+   */
+  private static final int MAX_JOBS = 1000;
+
+  private static final Cache<String, Set<Use>> RECENTLY_USED =
+      CacheBuilder.newBuilder().maximumSize(MAX_JOBS).build();
+
+  private final Cache<String, References> references =
+      CacheBuilder.newBuilder().maximumSize(MAX_JOBS).build();
+
+  /** {@inheritDoc} */
+  @Override
+  public void onEnterWaiting(Queue.WaitingItem item) {
+    if (!(item.task instanceof Job)) {
+      return;
+    }
+    final Job<?, ?> job = (Job<?, ?>) item.task;
+    // We are called with the queue lock held, so leave reading the job's
+    // configuration, and minting, to a background thread.
+    Timer.get().submit(new Runnable() {
+      @Override
+      public void run() {
+        prewarm(job);
+      }
+    });
+  }
+
+  @VisibleForTesting
+  void prewarm(Job<?, ?> job) {
+    Set<Use> uses = Sets.newHashSet();
+    for (String credentialsId : getReferencedCredentials(job)) {
+      uses.add(new Use(credentialsId, getRequirement(job, credentialsId)));
+    }
+    Set<Use> used = RECENTLY_USED.getIfPresent(job.getFullName());
+    if (used != null) {
+      uses.addAll(used);
+    }
+    for (Use use : uses) {
+      // Looked up as GoogleContainerRegistryCredential#getCredentials does
+      // for builds, so that we mint the very tokens they are going to use.
+      GoogleRobotCredentials credentials =
+          GoogleRobotCredentials.getById(use.credentialsId);
+      if (credentials != null) {
+        new GoogleContainerRegistryCredentialModule(use.requirement)
+            .prefetchToken(credentials);
+      }
+    }
+  }
+
+  /**
+   * @return the scopes the builds of {@code job} are going to ask for tokens
+   *         of {@code credentialsId} with: read-only ones if it is used by a
+   *         pull-only {@link GoogleContainerRegistryDockerConfigWrapper}.
+   */
+  private static GoogleOAuth2ScopeRequirement getRequirement(Job<?, ?> job,
+      String credentialsId) {
+    if (job instanceof BuildableItemWithBuildWrappers) {
+      for (BuildWrapper wrapper : ((BuildableItemWithBuildWrappers) job)
+               .getBuildWrappersList()) {
+        if (wrapper instanceof GoogleContainerRegistryDockerConfigWrapper) {
+          GoogleContainerRegistryDockerConfigWrapper docker =
+              (GoogleContainerRegistryDockerConfigWrapper) wrapper;
+          if (docker.isPullOnly() && docker.getCredentialsId().equals(
+                  "gcr:" + credentialsId)) {
+            return GoogleContainerRegistryScopeRequirement.READ_ONLY;
+          }
+        }
+      }
+    }
+    return GoogleContainerRegistryCredentialModule.getScope();
+  }
+
+  /**
+   * @return the ids of the credentials wrapped by the
+   *         {@link GoogleContainerRegistryCredential} that the configuration
+   *         of {@code job} references. The result is only recomputed when the
+   *         configuration changes.
+   */
+  private Set<String> getReferencedCredentials(Job<?, ?> job) {
+    XmlFile configFile = job.getConfigFile();
+    File file = configFile.getFile();
+    long lastModified = file.lastModified();
+    References cached = references.getIfPresent(file.getPath());
+    if (cached != null && cached.lastModified == lastModified) {
+      return cached.credentialsIds;
+    }
+    try {
+      References fresh = new References(lastModified,
+          parseReferencedCredentials(configFile.asString()));
+      references.put(file.getPath(), fresh);
+      return fresh.credentialsIds;
+    } catch (IOException e) {
+      LOGGER.log(Level.FINE, "Unable to read " + file, e);
+      return Collections.emptySet();
+    }
+  }
+
+  @VisibleForTesting
+  static Set<String> parseReferencedCredentials(String config) {
+    ImmutableSet.Builder<String> credentialsIds = ImmutableSet.builder();
+    Matcher matcher = CREDENTIAL_REFERENCE.matcher(config);
+    while (matcher.find()) {
+      credentialsIds.add(matcher.group(1).trim());
+    }
+    return credentialsIds.build();
+  }
+
+  /**
+   * Records that a build of the job named {@code jobName} obtained a token
+   * for the credential {@code credentialsId}, with {@code requirement}.
+   */
+  static void recordUse(String jobName, String credentialsId,
+      GoogleOAuth2ScopeRequirement requirement) {
+    Set<Use> used = RECENTLY_USED.getIfPresent(jobName);
+    if (used == null) {
+      used = Collections.newSetFromMap(Maps.<Use, Boolean>newConcurrentMap());
+      Set<Use> existing = RECENTLY_USED.asMap().putIfAbsent(jobName, used);
+      if (existing != null) {
+        used = existing;
+      }
+    }
+    used.add(new Use(credentialsId, requirement));
+  }
+
+  /**
+   * A credential, and the scopes a job asks for its tokens with.
+   */
+  private static final class Use {
+    private final String credentialsId;
+    private final GoogleOAuth2ScopeRequirement requirement;
+    private final String key;
+
+    Use(String credentialsId, GoogleOAuth2ScopeRequirement requirement) {
+      this.credentialsId = checkNotNull(credentialsId);
+      this.requirement = checkNotNull(requirement);
+      this.key = credentialsId + " "
+          + GoogleContainerRegistryTokenPools.getScopeKey(requirement);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean equals(Object other) {
+      return other instanceof Use && key.equals(((Use) other).key);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int hashCode() {
+      return key.hashCode();
+    }
+  }
+
+  /**
+   * The credentials referenced by a job's configuration, as of the time the
+   * configuration was last modified.
+   */
+  private static final class References {
+    private final long lastModified;
+    private final Set<String> credentialsIds;
+
+    References(long lastModified, Set<String> credentialsIds) {
+      this.lastModified = lastModified;
+      this.credentialsIds = credentialsIds;
+    }
+  }
+
+  private static final Logger LOGGER =
+      Logger.getLogger(GoogleContainerRegistryTokenPrewarmer.class.getName());
+}
@@ -0,0 +1,319 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.jenkins.plugins.googlecontainerregistryauth;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.MoreExecutors;
+
+import hudson.util.Secret;
+
+/**
+ * Replays the token requests recorded by
+ * {@link GoogleContainerRegistryTokenTrace} against
+ * {@link GoogleContainerRegistryTokenCache}, under a virtual clock and with a
+ * given policy, to tell offline how many mints, expiry misses and how much
+ * latency the policy would have led to.
+ *
+ * <p>
+ * Requests are replayed in the order they started, one at a time, and mints
+ * run on the replaying thread. A mint takes as long, in virtual time, as the
+ * recorded misses did, in turn, and mints tokens of the given lifetime.
+ * Requests served from the cache take no time. A miss for a credential that
+ * was asked for before is an expiry miss: a better policy could have
+ * avoided it.
+ *
+ * <p>
+ * Run with a trace file, and optionally the lifetime of tokens and the
+ * refresh margin, in seconds, and {@code prewarm} to mint the token of each
+ * credential ahead of its first request:
+ * <pre>
+ * java -cp ... GoogleContainerRegistryTokenSimulator trace 3600 180 prewarm
+ * </pre>
+ */
+public final class GoogleContainerRegistryTokenSimulator {
+  private final long tokenLifetimeMillis;
+  private final long refreshMarginMillis;
+  private final boolean prewarm;
+
+  /**
+   * @param tokenLifetimeMillis how long minted tokens are valid for.
+   * @param refreshMarginMillis cached tokens are only handed out while they
+   *        have more than this left.
+   * @param prewarm whether the token of each credential is minted ahead of
+   *        its first request, as by
+   *        {@link GoogleContainerRegistryTokenPrewarmer}.
+   */
+  public GoogleContainerRegistryTokenSimulator(long tokenLifetimeMillis,
+      long refreshMarginMillis, boolean prewarm) {
+    checkArgument(tokenLifetimeMillis > 0);
+    checkArgument(refreshMarginMillis >= 0);
+    this.tokenLifetimeMillis = tokenLifetimeMillis;
+    this.refreshMarginMillis = refreshMarginMillis;
+    this.prewarm = prewarm;
+  }
+
+  /**
+   * @return what replaying {@code events} with this policy led to.
+   */
+  public Report replay(List<GoogleContainerRegistryTokenTrace.Event> events) {
+    List<GoogleContainerRegistryTokenTrace.Event> ordered =
+        Lists.newArrayList(events);
+    Collections.sort(ordered, BY_START);
+
+    List<Long> recordedMissMicros = Lists.newArrayList();
+    for (GoogleContainerRegistryTokenTrace.Event event : ordered) {
+      if (!event.isHit()) {
+        recordedMissMicros.add(event.getLatencyMicros());
+      }
+    }
+
+    VirtualClock clock = new VirtualClock();
+    Minter minter = new Minter(clock, recordedMissMicros);
+    Map<Integer, GoogleContainerRegistryTokenCache> caches = Maps.newHashMap();
+    Set<String> seen = Sets.newHashSet();
+    Report report = new Report(ordered.size());
+    try {
+      for (GoogleContainerRegistryTokenTrace.Event event : ordered) {
+        clock.nowMillis = Math.max(clock.nowMillis,
+            event.getStartedAtMillis());
+        long startedAtMillis = clock.nowMillis;
+        GoogleContainerRegistryTokenCache cache = caches.get(event.getScope());
+        if (cache == null) {
+          cache = new GoogleContainerRegistryTokenCache(
+              MoreExecutors.sameThreadExecutor());
+          cache.setPolicy(refreshMarginMillis, clock);
+          caches.put(event.getScope(), cache);
+        }
+        String key = String.valueOf(event.getCredential());
+        boolean first = seen.add(event.getScope() + " " + key);
+        if (first && prewarm) {
+          cache.prefetch(key, minter);
+          // Ahead of the request, so the mint delays nobody.
+          clock.nowMillis = startedAtMillis;
+        }
+        long missesBefore = misses(cache, key);
+        long mintsBefore = minter.mints;
+        cache.get(key, minter);
+        boolean hit = misses(cache, key) == missesBefore;
+        report.add(hit, first, minter.mints - mintsBefore,
+            hit ? 0L : minter.lastLatencyMicros);
+        // Mints on behalf of a request run in the background, unless it
+        // waits for them.
+        if (hit) {
+          clock.nowMillis = startedAtMillis;
+        }
+      }
+    } finally {
+      for (GoogleContainerRegistryTokenCache cache : caches.values()) {
+        for (GoogleContainerRegistryTokenCache.EntryInfo entry
+                 : cache.getEntries()) {
+          cache.invalidate(entry.getKey());
+        }
+      }
+    }
+    return report;
+  }
+
+  private static long misses(GoogleContainerRegistryTokenCache cache,
+      String key) {
+    for (GoogleContainerRegistryTokenCache.EntryInfo entry
+             : cache.getEntries()) {
+      if (entry.getKey().equals(key)) {
+        return entry.getMisses();
+      }
+    }
+    return 0L;
+  }
+
+  private static final Comparator<GoogleContainerRegistryTokenTrace.Event>
+      BY_START = new Comparator<GoogleContainerRegistryTokenTrace.Event>() {
+        @Override
+        public int compare(GoogleContainerRegistryTokenTrace.Event a,
+            GoogleContainerRegistryTokenTrace.Event b) {
+          long x = a.getStartedAtMillis();
+          long y = b.getStartedAtMillis();
+          return (x < y) ? -1 : (x > y) ? 1 : 0;
+        }
+      };
+
+  /**
+   * Replays the trace given on the command line, and prints the report.
+   */
+  public static void main(String[] args) throws IOException {
+    if (args.length < 1) {
+      System.err.println("Usage: GoogleContainerRegistryTokenSimulator "
+          + "TRACE [LIFETIME_SECONDS [MARGIN_SECONDS [prewarm]]]");
+      System.exit(2);
+    }
+    long lifetimeSeconds = (args.length > 1) ? Long.parseLong(args[1]) : 3600L;
+    long marginSeconds = (args.length > 2) ? Long.parseLong(args[2])
+        : GoogleContainerRegistryCredentialModule.MINIMUM_DURATION_SECONDS;
+    boolean prewarm = args.length > 3 && "prewarm".equals(args[3]);
+    System.out.println(new GoogleContainerRegistryTokenSimulator(
+        TimeUnit.SECONDS.toMillis(lifetimeSeconds),
+        TimeUnit.SECONDS.toMillis(marginSeconds), prewarm)
+        .replay(GoogleContainerRegistryTokenTrace.read(new File(args[0]))));
+  }
+
+  /**
+   * Virtual time, moved by the replay and by mints.
+   */
+  private static final class VirtualClock
+      extends GoogleContainerRegistryTokenCache.Clock {
+    private long nowMillis;
+
+    @Override
+    long millis() {
+      return nowMillis;
+    }
+
+    @Override
+    long nanos() {
+      return TimeUnit.MILLISECONDS.toNanos(nowMillis);
+    }
+  }
+
+  /**
+   * Mints tokens in virtual time, taking as long as the recorded misses did.
+   */
+  private final class Minter
+      implements Callable<GoogleContainerRegistryToken> {
+    private final VirtualClock clock;
+    private final List<Long> latenciesMicros;
+    private int next;
+    private long mints;
+    private long lastLatencyMicros;
+
+    Minter(VirtualClock clock, List<Long> latenciesMicros) {
+      this.clock = clock;
+      this.latenciesMicros = latenciesMicros;
+    }
+
+    @Override
+    public GoogleContainerRegistryToken call() {
+      lastLatencyMicros = latenciesMicros.isEmpty() ? 0L
+          : latenciesMicros.get(next++ % latenciesMicros.size());
+      clock.nowMillis += TimeUnit.MICROSECONDS.toMillis(lastLatencyMicros);
+      mints++;
+      return new GoogleContainerRegistryToken(Secret.fromString("simulated"),
+          clock.nowMillis + tokenLifetimeMillis);
+    }
+  }
+
+  /**
+   * What replaying a trace led to.
+   */
+  public static final class Report {
+    private final long[] latenciesMicros;
+    private int requests;
+    private long hits;
+    private long coldMisses;
+    private long expiryMisses;
+    private long mints;
+
+    Report(int capacity) {
+      this.latenciesMicros = new long[capacity];
+    }
+
+    void add(boolean hit, boolean first, long mints, long latencyMicros) {
+      latenciesMicros[requests++] = latencyMicros;
+      this.mints += mints;
+      if (hit) {
+        hits++;
+      } else if (first) {
+        coldMisses++;
+      } else {
+        expiryMisses++;
+      }
+    }
+
+    /**
+     * @return the number of requests replayed.
+     */
+    public int getRequests() {
+      return requests;
+    }
+
+    /**
+     * @return the number of requests served from the cache.
+     */
+    public long getHits() {
+      return hits;
+    }
+
+    /**
+     * @return the number of first requests for a credential that were not.
+     */
+    public long getColdMisses() {
+      return coldMisses;
+    }
+
+    /**
+     * @return the number of later requests that were not.
+     */
+    public long getExpiryMisses() {
+      return expiryMisses;
+    }
+
+    /**
+     * @return the number of tokens minted, including ahead of time.
+     */
+    public long getMints() {
+      return mints;
+    }
+
+    /**
+     * @param percentile between 0 and 1.
+     * @return the latency that {@code percentile} of the requests did not
+     *         exceed, in microseconds.
+     */
+    public long getLatencyMicros(double percentile) {
+      checkArgument(percentile >= 0 && percentile <= 1);
+      if (requests == 0) {
+        return 0L;
+      }
+      long[] sorted = Arrays.copyOf(latenciesMicros, requests);
+      Arrays.sort(sorted);
+      int index = (int) Math.ceil(percentile * requests) - 1;
+      return sorted[Math.max(0, index)];
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String toString() {
+      return "requests=" + requests + " hits=" + hits + " coldMisses="
+          + coldMisses + " expiryMisses=" + expiryMisses + " mints=" + mints
+          + " p50=" + getLatencyMicros(0.5) + "us p99="
+          + getLatencyMicros(0.99) + "us max=" + getLatencyMicros(1) + "us";
+    }
+  }
+}
@@ -0,0 +1,217 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.jenkins.plugins.googlecontainerregistryauth;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+
+import javax.annotation.Nullable;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+
+import hudson.util.Secret;
+
+/**
+ * Keeps access tokens outside of the heap, in fixed size slots of direct
+ * {@link ByteBuffer}s, so that cached tokens add nothing for the garbage
+ * collector to copy around and can be wiped once dropped. A slot is
+ * overwritten with zeros when it is freed, and tokens are only turned back
+ * into a {@link Secret} when read.
+ *
+ * <p>
+ * Slabs of {@link #SLOTS_PER_SLAB} slots are allocated as needed and kept
+ * for reuse. Tokens larger than a slot, as configured with the
+ * {@code slotBytes} system property prefixed with the name of this class,
+ * are kept on the heap instead.
+ */
+public final class GoogleContainerRegistryTokenSlab {
+  /**
+   * The size of a slot, comfortably above that of an OAuth2 access token.
+   */
+  private static final int SLOT_BYTES = Integer.getInteger(
+      GoogleContainerRegistryTokenSlab.class.getName() + ".slotBytes", 2048);
+
+  /**
+   * The number of slots allocated at once.
+   */
+  static final int SLOTS_PER_SLAB = 64;
+
+  private static final GoogleContainerRegistryTokenSlab INSTANCE =
+      new GoogleContainerRegistryTokenSlab(SLOT_BYTES);
+
+  private final int slotBytes;
+  private final byte[] zeros;
+  private final List<ByteBuffer> slabs = Lists.newArrayList();
+  private final Deque<Integer> free = new ArrayDeque<Integer>();
+  private int used;
+
+  @VisibleForTesting
+  GoogleContainerRegistryTokenSlab(int slotBytes) {
+    checkArgument(slotBytes > 0);
+    this.slotBytes = slotBytes;
+    this.zeros = new byte[slotBytes];
+  }
+
+  /**
+   * @return the slab shared by all token caches.
+   */
+  public static GoogleContainerRegistryTokenSlab get() {
+    return INSTANCE;
+  }
+
+  /**
+   * Copies {@code value} into a free slot.
+   *
+   * @return the slot holding {@code value}, to be {@link #free}d once it is
+   *         no longer needed.
+   */
+  public Slot put(Secret value) {
+    byte[] bytes = Secret.toString(value).getBytes(Charsets.UTF_8);
+    try {
+      if (bytes.length > slotBytes) {
+        return new Slot(-1, 0, value);
+      }
+      synchronized (this) {
+        int index = allocate();
+        ByteBuffer slab = position(index);
+        slab.put(bytes);
+        return new Slot(index, bytes.length, null);
+      }
+    } finally {
+      Arrays.fill(bytes, (byte) 0);
+    }
+  }
+
+  /**
+   * @return the token held by {@code slot}, which must not have been freed.
+   */
+  public Secret read(Slot slot) {
+    if (slot.onHeap != null) {
+      return slot.onHeap;
+    }
+    byte[] bytes = new byte[slot.length];
+    try {
+      synchronized (this) {
+        checkState(!slot.freed, "Slot was freed");
+        position(slot.index).get(bytes);
+      }
+      return Secret.fromString(new String(bytes, Charsets.UTF_8));
+    } finally {
+      Arrays.fill(bytes, (byte) 0);
+    }
+  }
+
+  /**
+   * Overwrites {@code slot} with zeros and makes it available again. Freeing
+   * a slot twice has no effect.
+   */
+  public void free(@Nullable Slot slot) {
+    if (slot == null || slot.onHeap != null) {
+      return;
+    }
+    synchronized (this) {
+      if (slot.freed) {
+        return;
+      }
+      position(slot.index).put(zeros, 0, slot.length);
+      slot.freed = true;
+      free.push(slot.index);
+      used--;
+    }
+  }
+
+  /**
+   * @return the number of slots holding a token.
+   */
+  public synchronized int getSlotsInUse() {
+    return used;
+  }
+
+  /**
+   * @return the number of bytes allocated outside of the heap.
+   */
+  public synchronized long getAllocatedBytes() {
+    return (long) slabs.size() * SLOTS_PER_SLAB * slotBytes;
+  }
+
+  /**
+   * @return whether every byte of the slot {@code slot} used is zero.
+   */
+  @VisibleForTesting
+  synchronized boolean isWiped(Slot slot) {
+    byte[] bytes = new byte[slot.length];
+    position(slot.index).get(bytes);
+    return Arrays.equals(bytes, new byte[slot.length]);
+  }
+
+  private int allocate() {
+    if (free.isEmpty()) {
+      int first = slabs.size() * SLOTS_PER_SLAB;
+      slabs.add(ByteBuffer.allocateDirect(SLOTS_PER_SLAB * slotBytes));
+      for (int i = SLOTS_PER_SLAB - 1; i >= 0; i--) {
+        free.push(first + i);
+      }
+    }
+    used++;
+    return free.pop();
+  }
+
+  /**
+   * @return the slab holding slot {@code index}, positioned at its start.
+   *         Called with the monitor of this object held.
+   */
+  private ByteBuffer position(int index) {
+    ByteBuffer slab = slabs.get(index / SLOTS_PER_SLAB);
+    slab.clear();
+    slab.position((index % SLOTS_PER_SLAB) * slotBytes);
+    return slab;
+  }
+
+  /**
+   * A handle on a token held by the slab. Holds no part of the token itself,
+   * unless it was too large for a slot.
+   */
+  public static final class Slot {
+    private final int index;
+    private final int length;
+    @Nullable private final Secret onHeap;
+    /** Guarded by the monitor of the slab. */
+    private boolean freed;
+
+    private Slot(int index, int length, @Nullable Secret onHeap) {
+      this.index = index;
+      this.length = length;
+      this.onHeap = onHeap;
+    }
+
+    /**
+     * @return whether the token is kept on the heap, for lack of room in a
+     *         slot.
+     */
+    public boolean isOnHeap() {
+      return onHeap != null;
+    }
+  }
+}
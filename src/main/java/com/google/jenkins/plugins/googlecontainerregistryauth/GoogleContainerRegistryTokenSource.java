@@ -16,12 +16,16 @@
 
 package com.google.jenkins.plugins.googlecontainerregistryauth;
 
+import javax.annotation.Nullable;
+
 import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.io.Charsets;
 import org.jenkinsci.plugins.docker.commons.credentials.DockerRegistryToken;
 
 import edu.umd.cs.findbugs.annotations.NonNull;
 import hudson.Extension;
+import hudson.model.Run;
+import hudson.util.Secret;
 import jenkins.authentication.tokens.api.AuthenticationTokenException;
 import jenkins.authentication.tokens.api.AuthenticationTokenSource;
 
@@ -43,8 +47,41 @@ public class GoogleContainerRegistryTokenSource extends
   public DockerRegistryToken convert(
       GoogleContainerRegistryCredential credential)
       throws AuthenticationTokenException {
-    return new DockerRegistryToken(credential.getEmail(),
-        Base64.encodeBase64String((credential.getUsername() + ":" +
-            credential.getPassword().getPlainText()).getBytes(Charsets.UTF_8)));
+    return convert(credential, GoogleContainerRegistryTokenLease.currentRun());
+  }
+
+  /**
+   * @param run the build the token is for, if any, see
+   *        {@link GoogleContainerRegistryCredential#getPassword(Run)}.
+   * @return the token, see {@link #convert(GoogleContainerRegistryCredential)}.
+   */
+  @NonNull
+  public DockerRegistryToken convert(
+      GoogleContainerRegistryCredential credential, @Nullable Run<?, ?> run)
+      throws AuthenticationTokenException {
+    GoogleContainerRegistrySlowOps.Op op = GoogleContainerRegistrySlowOps
+        .start("convert", credential.getCredentialsId(), null);
+    try {
+      Secret password = credential.getPassword(run);
+      op.phase("getPassword");
+      if (password == null) {
+        Throwable cause = credential.getLastError();
+        if (cause == null) {
+          throw new AuthenticationTokenException(
+              Messages.GoogleContainerRegistryTokenSource_NoToken(
+                  credential.getCredentialsId()));
+        }
+        AuthenticationTokenException e = new AuthenticationTokenException(
+            Messages.GoogleContainerRegistryTokenSource_MintFailed(
+                credential.getCredentialsId(), cause));
+        e.initCause(cause);
+        throw e;
+      }
+      return new DockerRegistryToken(credential.getEmail(),
+          Base64.encodeBase64String((credential.getUsername() + ":" +
+              password.getPlainText()).getBytes(Charsets.UTF_8)));
+    } finally {
+      op.end("encode");
+    }
   }
 }
@@ -0,0 +1,212 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.jenkins.plugins.googlecontainerregistryauth;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.Nullable;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import hudson.XmlFile;
+import jenkins.model.GlobalConfiguration;
+import jenkins.model.Jenkins;
+import jenkins.util.Timer;
+
+/**
+ * Keeps the tokens cached by {@link GoogleContainerRegistryTokenPools} in a
+ * file under {@code JENKINS_HOME}, so that a restarted master reuses the
+ * tokens that have not expired yet instead of minting new ones for every
+ * account at once.
+ *
+ * <p>
+ * Tokens are written as {@link hudson.util.Secret}s, and are thus encrypted
+ * with the key of the instance. The file is only read when the first token
+ * is looked up, and writes are batched on a background thread. Nothing is
+ * read or written unless enabled in
+ * {@link GoogleContainerRegistryCredentialGlobalConfig}.
+ */
+public final class GoogleContainerRegistryTokenStore {
+  /**
+   * The name of the file, relative to {@code JENKINS_HOME}.
+   */
+  public static final String FILE_NAME =
+      GoogleContainerRegistryTokenStore.class.getName() + ".xml";
+
+  /**
+   * How long changes are collected before being written out together.
+   */
+  private static final long FLUSH_DELAY_MILLIS = TimeUnit.SECONDS.toMillis(5);
+
+  private final XmlFile file;
+  private final Object writeLock = new Object();
+  @Nullable private Map<String, GoogleContainerRegistryToken> tokens;
+  private boolean flushScheduled;
+
+  /**
+   * @param file the file to keep the tokens in.
+   */
+  public GoogleContainerRegistryTokenStore(File file) {
+    this.file = new XmlFile(Jenkins.XSTREAM2, checkNotNull(file));
+  }
+
+  /**
+   * @return a store in the home directory of the running Jenkins instance,
+   *         or {@code null} if we are not running on the master.
+   */
+  @Nullable
+  static GoogleContainerRegistryTokenStore forInstance() {
+    Jenkins jenkins = Jenkins.getInstance();
+    if (jenkins == null) {
+      return null;
+    }
+    return new GoogleContainerRegistryTokenStore(
+        new File(jenkins.getRootDir(), FILE_NAME));
+  }
+
+  /**
+   * @return the stored token for {@code key}, or {@code null} if there is
+   *         none that is still valid.
+   */
+  @Nullable
+  public synchronized GoogleContainerRegistryToken load(String key) {
+    if (!isEnabled()) {
+      return null;
+    }
+    GoogleContainerRegistryToken token = getTokens().get(key);
+    if (token == null || !token.isValidFor(System.currentTimeMillis(), 0L)) {
+      return null;
+    }
+    return token;
+  }
+
+  /**
+   * Stores {@code token} as the token for {@code key}, soon.
+   */
+  public synchronized void store(String key,
+      GoogleContainerRegistryToken token) {
+    if (!isEnabled()) {
+      return;
+    }
+    getTokens().put(checkNotNull(key), checkNotNull(token));
+    scheduleFlush();
+  }
+
+  /**
+   * Removes the token for {@code key}, if any, soon.
+   */
+  public synchronized void remove(String key) {
+    if (!isEnabled()) {
+      return;
+    }
+    if (getTokens().remove(key) != null) {
+      scheduleFlush();
+    }
+  }
+
+  /**
+   * Forgets all stored tokens, and deletes the file right away.
+   */
+  public void clear() {
+    synchronized (writeLock) {
+      synchronized (this) {
+        tokens = new HashMap<String, GoogleContainerRegistryToken>();
+      }
+      file.delete();
+    }
+  }
+
+  /**
+   * Writes out the tokens that are still valid.
+   */
+  @VisibleForTesting
+  void flush() {
+    synchronized (writeLock) {
+      Map<String, GoogleContainerRegistryToken> snapshot;
+      synchronized (this) {
+        flushScheduled = false;
+        if (tokens == null) {
+          return;
+        }
+        long nowMillis = System.currentTimeMillis();
+        Iterator<GoogleContainerRegistryToken> it =
+            tokens.values().iterator();
+        while (it.hasNext()) {
+          if (!it.next().isValidFor(nowMillis, 0L)) {
+            it.remove();
+          }
+        }
+        snapshot = new HashMap<String, GoogleContainerRegistryToken>(tokens);
+      }
+      try {
+        file.write(snapshot);
+      } catch (IOException e) {
+        LOGGER.log(Level.WARNING, "Unable to write " + file, e);
+      }
+    }
+  }
+
+  private void scheduleFlush() {
+    if (flushScheduled) {
+      return;
+    }
+    flushScheduled = true;
+    Timer.get().schedule(new Runnable() {
+      @Override
+      public void run() {
+        flush();
+      }
+    }, FLUSH_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+  }
+
+  @SuppressWarnings("unchecked")
+  private Map<String, GoogleContainerRegistryToken> getTokens() {
+    if (tokens == null) {
+      tokens = new HashMap<String, GoogleContainerRegistryToken>();
+      if (file.exists()) {
+        try {
+          tokens.putAll(
+              (Map<String, GoogleContainerRegistryToken>) file.read());
+        } catch (IOException e) {
+          LOGGER.log(Level.WARNING, "Unable to read " + file, e);
+        } catch (ClassCastException e) {
+          LOGGER.log(Level.WARNING, "Unable to read " + file, e);
+        }
+      }
+    }
+    return tokens;
+  }
+
+  private static boolean isEnabled() {
+    GoogleContainerRegistryCredentialGlobalConfig config =
+        GlobalConfiguration.all().get(
+            GoogleContainerRegistryCredentialGlobalConfig.class);
+    return config != null && config.isPersistTokens();
+  }
+
+  private static final Logger LOGGER =
+      Logger.getLogger(GoogleContainerRegistryTokenStore.class.getName());
+}
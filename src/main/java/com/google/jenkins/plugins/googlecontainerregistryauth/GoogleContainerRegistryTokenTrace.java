@@ -0,0 +1,309 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.jenkins.plugins.googlecontainerregistryauth;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.Nullable;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import jenkins.util.Timer;
+
+/**
+ * Records the token requests of the master, so that
+ * {@link GoogleContainerRegistryTokenSimulator} may replay them offline
+ * against other cache and refresh policies.
+ *
+ * <p>
+ * Each request is appended to a binary file as a fixed size record of its
+ * start time, credential, scopes, whether the cache had the token and how
+ * long it took. Credentials and scopes are anonymized: they are recorded as
+ * the order in which this run of the master first saw them, and their names
+ * are never written.
+ *
+ * <p>
+ * Nothing is recorded unless the {@code file} system property prefixed with
+ * the name of this class is set. Since anonymized ids only hold within a
+ * run, each run of the master starts the file afresh. Records are written
+ * out in batches, on a background thread.
+ */
+public final class GoogleContainerRegistryTokenTrace {
+  /** Identifies trace files, and their version. */
+  private static final int MAGIC = 0x47435452;
+  private static final int VERSION = 1;
+
+  /** How long records are collected before being written out together. */
+  private static final long FLUSH_DELAY_MILLIS = TimeUnit.SECONDS.toMillis(5);
+
+  @Nullable private static final GoogleContainerRegistryTokenTrace INSTANCE =
+      open(System.getProperty(
+          GoogleContainerRegistryTokenTrace.class.getName() + ".file"));
+
+  /** The request being traced on each thread. */
+  private static final ThreadLocal<Request> CURRENT =
+      new ThreadLocal<Request>();
+
+  private final File file;
+  private final DataOutputStream out;
+  private final Map<String, Integer> credentials = Maps.newHashMap();
+  private final Map<String, Integer> scopes = Maps.newHashMap();
+  private boolean flushScheduled;
+
+  @VisibleForTesting
+  GoogleContainerRegistryTokenTrace(File file) throws IOException {
+    this.file = file;
+    this.out = new DataOutputStream(new BufferedOutputStream(
+        new FileOutputStream(file)));
+    out.writeInt(MAGIC);
+    out.writeInt(VERSION);
+    out.flush();
+  }
+
+  @Nullable
+  private static GoogleContainerRegistryTokenTrace open(
+      @Nullable String path) {
+    if (path == null) {
+      return null;
+    }
+    try {
+      return new GoogleContainerRegistryTokenTrace(new File(path));
+    } catch (IOException e) {
+      LOGGER.log(Level.WARNING, "Unable to open the token trace " + path, e);
+      return null;
+    }
+  }
+
+  /**
+   * Starts tracing a token request, if recording.
+   *
+   * @param credentialsId the credential the token is for.
+   * @param scopeKey the scopes of the token, see
+   *        {@link GoogleContainerRegistryTokenPools#getScopeKey}.
+   * @return the request, to be {@link Request#end}ed, or {@code null} if
+   *         not recording.
+   */
+  @Nullable
+  static Request begin(String credentialsId, String scopeKey) {
+    if (INSTANCE == null) {
+      return null;
+    }
+    Request request = new Request(INSTANCE, credentialsId, scopeKey,
+        System.currentTimeMillis(), System.nanoTime());
+    CURRENT.set(request);
+    return request;
+  }
+
+  /**
+   * Tells the request traced on this thread, if any, whether the cache had
+   * its token.
+   */
+  static void cacheHit(boolean hit) {
+    if (INSTANCE == null) {
+      return;
+    }
+    Request request = CURRENT.get();
+    if (request != null) {
+      request.hit = hit;
+    }
+  }
+
+  @VisibleForTesting
+  synchronized void record(String credentialsId, String scopeKey,
+      long startedAtMillis, boolean hit, long latencyMicros) {
+    try {
+      out.writeLong(startedAtMillis);
+      out.writeInt(anonymize(credentials, credentialsId));
+      out.writeInt(anonymize(scopes, scopeKey));
+      out.writeBoolean(hit);
+      out.writeInt((int) Math.min(Integer.MAX_VALUE, latencyMicros));
+    } catch (IOException e) {
+      LOGGER.log(Level.FINE, "Unable to write the token trace " + file, e);
+    }
+    scheduleFlush();
+  }
+
+  @VisibleForTesting
+  synchronized void flush() {
+    flushScheduled = false;
+    try {
+      out.flush();
+    } catch (IOException e) {
+      LOGGER.log(Level.FINE, "Unable to write the token trace " + file, e);
+    }
+  }
+
+  private void scheduleFlush() {
+    if (flushScheduled) {
+      return;
+    }
+    flushScheduled = true;
+    Timer.get().schedule(new Runnable() {
+      @Override
+      public void run() {
+        flush();
+      }
+    }, FLUSH_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+  }
+
+  private static int anonymize(Map<String, Integer> ids, String name) {
+    Integer id = ids.get(name);
+    if (id == null) {
+      id = ids.size();
+      ids.put(name, id);
+    }
+    return id;
+  }
+
+  /**
+   * @return the requests recorded in {@code file}, in the order they ended.
+   * @throws IOException if {@code file} is not a trace.
+   */
+  public static List<Event> read(File file) throws IOException {
+    DataInputStream in = new DataInputStream(new BufferedInputStream(
+        new FileInputStream(file)));
+    try {
+      if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+        throw new IOException(file + " is not a token trace");
+      }
+      List<Event> events = Lists.newArrayList();
+      while (true) {
+        long startedAtMillis;
+        try {
+          startedAtMillis = in.readLong();
+        } catch (EOFException e) {
+          return events;
+        }
+        try {
+          events.add(new Event(startedAtMillis, in.readInt(), in.readInt(),
+              in.readBoolean(), in.readInt()));
+        } catch (EOFException e) {
+          // The master stopped while writing this one.
+          return events;
+        }
+      }
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * A token request being traced. Only used by the thread that began it.
+   */
+  static final class Request {
+    private final GoogleContainerRegistryTokenTrace trace;
+    private final String credentialsId;
+    private final String scopeKey;
+    private final long startedAtMillis;
+    private final long startNanos;
+    private boolean hit;
+
+    private Request(GoogleContainerRegistryTokenTrace trace,
+        String credentialsId, String scopeKey, long startedAtMillis,
+        long startNanos) {
+      this.trace = trace;
+      this.credentialsId = credentialsId;
+      this.scopeKey = scopeKey;
+      this.startedAtMillis = startedAtMillis;
+      this.startNanos = startNanos;
+    }
+
+    /**
+     * Ends the request, and records it.
+     */
+    void end() {
+      if (CURRENT.get() == this) {
+        CURRENT.remove();
+      }
+      trace.record(credentialsId, scopeKey, startedAtMillis, hit,
+          TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos));
+    }
+  }
+
+  /**
+   * A recorded token request.
+   */
+  public static final class Event {
+    private final long startedAtMillis;
+    private final int credential;
+    private final int scope;
+    private final boolean hit;
+    private final long latencyMicros;
+
+    Event(long startedAtMillis, int credential, int scope, boolean hit,
+        long latencyMicros) {
+      this.startedAtMillis = startedAtMillis;
+      this.credential = credential;
+      this.scope = scope;
+      this.hit = hit;
+      this.latencyMicros = latencyMicros;
+    }
+
+    /**
+     * @return when the request started.
+     */
+    public long getStartedAtMillis() {
+      return startedAtMillis;
+    }
+
+    /**
+     * @return the anonymized credential the token was for.
+     */
+    public int getCredential() {
+      return credential;
+    }
+
+    /**
+     * @return the anonymized scopes of the token.
+     */
+    public int getScope() {
+      return scope;
+    }
+
+    /**
+     * @return whether the cache had the token.
+     */
+    public boolean isHit() {
+      return hit;
+    }
+
+    /**
+     * @return how long the request took, in microseconds.
+     */
+    public long getLatencyMicros() {
+      return latencyMicros;
+    }
+  }
+
+  private static final Logger LOGGER = Logger.getLogger(
+      GoogleContainerRegistryTokenTrace.class.getName());
+}
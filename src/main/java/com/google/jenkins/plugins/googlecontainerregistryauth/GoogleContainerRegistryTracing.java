@@ -0,0 +1,262 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.jenkins.plugins.googlecontainerregistryauth;
+
+import java.io.File;
+import java.io.Serializable;
+import java.util.Random;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.Nullable;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.Iterables;
+
+import hudson.model.Executor;
+import hudson.model.Queue;
+import hudson.model.Run;
+
+/**
+ * Traces the credential operations timed by
+ * {@link GoogleContainerRegistrySlowOps} as spans, from the lookup on the
+ * master to the token fetched on an agent.
+ *
+ * <p>
+ * Spans started while another is in progress on the same thread are part
+ * of it. The context of the span in progress when a credential is sent to
+ * an agent travels along with it, so that the spans of the agent are part
+ * of the master's. Traces started on the executor of a build are
+ * identified by the build, so that all the credential operations of a build
+ * add up to a single waterfall.
+ *
+ * <p>
+ * Ended spans are handed to the {@link GoogleContainerRegistrySpanExporter}s
+ * registered on the master, and appended to a local file, as JSON, if the
+ * {@code file} system property prefixed with the name of this class is set.
+ * Since agents have no extensions, that property is how they export their
+ * spans. Without any exporter, nothing is traced.
+ */
+public final class GoogleContainerRegistryTracing {
+  @Nullable private static volatile GoogleContainerRegistrySpanExporter local =
+      fileExporter(System.getProperty(
+          GoogleContainerRegistryTracing.class.getName() + ".file"));
+
+  private static final ThreadLocal<Frame> CURRENT = new ThreadLocal<Frame>();
+
+  private static final Random RANDOM = new Random();
+
+  private GoogleContainerRegistryTracing() {
+  }
+
+  /**
+   * @return whether spans are exported anywhere.
+   */
+  public static boolean isEnabled() {
+    return local != null
+        || !Iterables.isEmpty(GoogleContainerRegistrySpanExporter.all());
+  }
+
+  /**
+   * Starts a span, as part of the one in progress on this thread, if any.
+   *
+   * @return the span, to be {@link #end}ed, or {@code null} if tracing is
+   *         off.
+   */
+  @Nullable
+  static GoogleContainerRegistrySpan start(String name,
+      @Nullable String credentialsId) {
+    if (!isEnabled()) {
+      return null;
+    }
+    Frame parent = CURRENT.get();
+    GoogleContainerRegistrySpan span = new GoogleContainerRegistrySpan(
+        (parent == null) ? newTraceId() : parent.traceId, newId(),
+        (parent == null) ? null : parent.spanId, name, credentialsId);
+    CURRENT.set(new Frame(span.getTraceId(), span.getSpanId(), parent));
+    return span;
+  }
+
+  /**
+   * Ends {@code span}, and exports it.
+   */
+  static void end(GoogleContainerRegistrySpan span) {
+    span.end();
+    Frame current = CURRENT.get();
+    if (current != null && current.spanId.equals(span.getSpanId())) {
+      restore(current.parent);
+    }
+    export(local, span);
+    for (GoogleContainerRegistrySpanExporter exporter
+             : GoogleContainerRegistrySpanExporter.all()) {
+      export(exporter, span);
+    }
+  }
+
+  /**
+   * @return the context of the span in progress on this thread, to pass on
+   *         to another JVM, or {@code null} if there is none.
+   */
+  @Nullable
+  public static Context currentContext() {
+    Frame current = CURRENT.get();
+    return (current == null) ?
+        null : new Context(current.traceId, current.spanId);
+  }
+
+  /**
+   * Makes the spans this thread starts part of the span {@code context}
+   * identifies, until the returned scope is closed.
+   *
+   * @param context the context passed on by another JVM, if any.
+   */
+  public static Scope resume(@Nullable Context context) {
+    Frame previous = CURRENT.get();
+    if (context != null) {
+      CURRENT.set(new Frame(context.traceId, context.spanId, previous));
+    }
+    return new Scope(previous);
+  }
+
+  @VisibleForTesting
+  static void setLocalExporter(
+      @Nullable GoogleContainerRegistrySpanExporter exporter) {
+    local = exporter;
+  }
+
+  private static void export(
+      @Nullable GoogleContainerRegistrySpanExporter exporter,
+      GoogleContainerRegistrySpan span) {
+    if (exporter == null) {
+      return;
+    }
+    try {
+      exporter.export(span);
+    } catch (RuntimeException e) {
+      LOGGER.log(Level.WARNING, "Unable to export span " + span.getName(), e);
+    }
+  }
+
+  private static void restore(@Nullable Frame frame) {
+    if (frame == null) {
+      CURRENT.remove();
+    } else {
+      CURRENT.set(frame);
+    }
+  }
+
+  /**
+   * @return the id of the build running on this thread, if any, or else a
+   *         new random id.
+   */
+  private static String newTraceId() {
+    Executor executor = Executor.currentExecutor();
+    if (executor != null) {
+      Queue.Executable executable = executor.getCurrentExecutable();
+      if (executable instanceof Run) {
+        return ((Run<?, ?>) executable).getExternalizableId();
+      }
+    }
+    return newId() + newId();
+  }
+
+  private static String newId() {
+    long id;
+    synchronized (RANDOM) {
+      id = RANDOM.nextLong();
+    }
+    String hex = Long.toHexString(id);
+    return "0000000000000000".substring(hex.length()) + hex;
+  }
+
+  @Nullable
+  private static GoogleContainerRegistrySpanExporter fileExporter(
+      @Nullable String path) {
+    return (path == null) ?
+        null : new GoogleContainerRegistryFileSpanExporter(new File(path));
+  }
+
+  /**
+   * A span in progress on a thread, or the remote one it resumed.
+   */
+  private static final class Frame {
+    private final String traceId;
+    private final String spanId;
+    @Nullable private final Frame parent;
+
+    Frame(String traceId, String spanId, @Nullable Frame parent) {
+      this.traceId = traceId;
+      this.spanId = spanId;
+      this.parent = parent;
+    }
+  }
+
+  /**
+   * Identifies a span across JVMs.
+   */
+  public static final class Context implements Serializable {
+    private final String traceId;
+    private final String spanId;
+
+    Context(String traceId, String spanId) {
+      this.traceId = checkNotNull(traceId);
+      this.spanId = checkNotNull(spanId);
+    }
+
+    /**
+     * @return the id of the trace.
+     */
+    public String getTraceId() {
+      return traceId;
+    }
+
+    /**
+     * @return the id of the span.
+     */
+    public String getSpanId() {
+      return spanId;
+    }
+
+    /**
+     * For {@link Serializable}
+     */
+    private static final long serialVersionUID = 1L;
+  }
+
+  /**
+   * Ends the effect of {@link #resume}.
+   */
+  public static final class Scope {
+    @Nullable private final Frame previous;
+
+    private Scope(@Nullable Frame previous) {
+      this.previous = previous;
+    }
+
+    /**
+     * Restores the span this thread was in before {@link #resume}.
+     */
+    public void close() {
+      restore(previous);
+    }
+  }
+
+  private static final Logger LOGGER = Logger.getLogger(
+      GoogleContainerRegistryTracing.class.getName());
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.jenkins.plugins.googlecontainerregistryauth;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import org.junit.Test;
+
+import hudson.model.ItemGroup;
+import hudson.model.Job;
+import hudson.model.Run;
+
+/**
+ * Tests for {@link GoogleContainerRegistryAttribution}.
+ */
+public class GoogleContainerRegistryAttributionTest {
+  private static final String FOLDER = "team";
+  private static final String JOB = FOLDER + "/build";
+
+  private final GoogleContainerRegistryAttribution underTest =
+      new GoogleContainerRegistryAttribution(4);
+
+  @Test
+  public void testCounts() throws Exception {
+    underTest.record(JOB, FOLDER, GoogleContainerRegistryAttribution.Kind.HIT,
+        0L);
+    underTest.record(JOB, FOLDER,
+        GoogleContainerRegistryAttribution.Kind.MISS, 0L);
+    underTest.record(JOB, FOLDER,
+        GoogleContainerRegistryAttribution.Kind.MINT, 0L);
+    underTest.record(null, FOLDER,
+        GoogleContainerRegistryAttribution.Kind.LOOKUP,
+        TimeUnit.MILLISECONDS.toNanos(3));
+
+    GoogleContainerRegistryAttribution.Counter job =
+        underTest.getJobs().get(0);
+    assertEquals(JOB, job.getKey());
+    assertEquals(3, job.getWeight());
+    assertEquals(0, job.getError());
+    assertEquals(1, job.getHits());
+    assertEquals(1, job.getMisses());
+    assertEquals(1, job.getMints());
+    assertEquals(0, job.getLookups());
+
+    GoogleContainerRegistryAttribution.Counter folder =
+        underTest.getFolders().get(0);
+    assertEquals(4, folder.getWeight());
+    assertEquals(1, folder.getLookups());
+    assertEquals(3, folder.getLookupMillis());
+    // 3000 us falls in the bucket below 4096 us.
+    assertEquals(4096, folder.getLookupP99Micros());
+  }
+
+  @Test
+  public void testRunOfCallerIsAttributed() throws Exception {
+    Run<?, ?> run = mock(Run.class);
+    Job<?, ?> job = mock(Job.class);
+    ItemGroup<?> folder = mock(ItemGroup.class);
+    doReturn(job).when(run).getParent();
+    doReturn(folder).when(job).getParent();
+    when(job.getFullName()).thenReturn(JOB);
+    when(folder.getFullName()).thenReturn(FOLDER);
+    GoogleContainerRegistryAttribution.get().clear();
+
+    GoogleContainerRegistryTokenLease.callFor(run, new Callable<Void>() {
+      @Override
+      public Void call() {
+        // As on a Pipeline thread, without an executor.
+        GoogleContainerRegistryAttribution.tokenRequest(false);
+        GoogleContainerRegistryAttribution.mint();
+        return null;
+      }
+    });
+    GoogleContainerRegistryAttribution.tokenRequest(true);
+
+    GoogleContainerRegistryAttribution.Counter counter =
+        GoogleContainerRegistryAttribution.get().getJobs().get(0);
+    assertEquals(JOB, counter.getKey());
+    assertEquals(0, counter.getHits());
+    assertEquals(1, counter.getMisses());
+    assertEquals(1, counter.getMints());
+    assertEquals(FOLDER, GoogleContainerRegistryAttribution.get()
+        .getFolders().get(0).getKey());
+    GoogleContainerRegistryAttribution.get().clear();
+  }
+
+  @Test
+  public void testHeavyHittersAreKept() throws Exception {
+    for (int i = 0; i < 100; i++) {
+      underTest.record("heavy", null,
+          GoogleContainerRegistryAttribution.Kind.HIT, 0L);
+      // A stream of distinct light jobs, far more than are tracked.
+      underTest.record("light" + i, null,
+          GoogleContainerRegistryAttribution.Kind.HIT, 0L);
+    }
+
+    List<GoogleContainerRegistryAttribution.Counter> jobs =
+        underTest.getJobs();
+    assertEquals(4, jobs.size());
+    assertEquals("heavy", jobs.get(0).getKey());
+    assertEquals(100, jobs.get(0).getWeight());
+    assertEquals(0, jobs.get(0).getError());
+    for (GoogleContainerRegistryAttribution.Counter job
+             : jobs.subList(1, jobs.size())) {
+      // Each light job was seen once, which the weight bounds from above.
+      assertEquals(1, job.getWeight() - job.getError());
+    }
+  }
+
+  @Test
+  public void testBuckets() throws Exception {
+    assertEquals(0, GoogleContainerRegistryAttribution.Counter.bucket(0L));
+    assertEquals(1, GoogleContainerRegistryAttribution.Counter.bucket(
+        TimeUnit.MICROSECONDS.toNanos(1)));
+    assertEquals(11, GoogleContainerRegistryAttribution.Counter.bucket(
+        TimeUnit.MICROSECONDS.toNanos(1500)));
+    assertEquals(GoogleContainerRegistryAttribution.Counter.BUCKETS - 1,
+        GoogleContainerRegistryAttribution.Counter.bucket(Long.MAX_VALUE));
+  }
+
+  @Test
+  public void testClear() throws Exception {
+    underTest.record(JOB, FOLDER, GoogleContainerRegistryAttribution.Kind.HIT,
+        0L);
+    underTest.clear();
+    assertTrue(underTest.getJobs().isEmpty());
+    assertTrue(underTest.getFolders().isEmpty());
+  }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.jenkins.plugins.googlecontainerregistryauth;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.cloudbees.plugins.credentials.common.StandardUsernamePasswordCredentials;
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.io.BaseEncoding;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import hudson.util.Secret;
+
+/**
+ * Tests for {@link GoogleContainerRegistryBearerTokens}, against a fake
+ * registry token endpoint.
+ */
+public class GoogleContainerRegistryBearerTokensTest {
+  private static final String CREDENTIALS_ID = "foobar-cred-id";
+  private static final String USERNAME = "_token";
+  private static final String PASSWORD = "foobar-oauth-token";
+  private static final String REPOSITORY = "my-project/my-image";
+  private static final String SCOPE =
+      "https://www.googleapis.com/auth/devstorage.read_write";
+  private static final String READ_ONLY_SCOPE =
+      "https://www.googleapis.com/auth/devstorage.read_only";
+
+  @Mock
+  private StandardUsernamePasswordCredentials credentials;
+
+  private HttpServer server;
+  private String host;
+  private final AtomicInteger requests = new AtomicInteger();
+  private final List<String> queries = Lists.newCopyOnWriteArrayList();
+  private volatile int status = 200;
+  private volatile long expiresInSeconds = 300L;
+
+  private GoogleContainerRegistryBearerTokens underTest;
+
+  @Before
+  public void setUp() throws Exception {
+    MockitoAnnotations.initMocks(this);
+    when(credentials.getId()).thenReturn(CREDENTIALS_ID);
+    when(credentials.getUsername()).thenReturn(USERNAME);
+    when(credentials.getPassword()).thenReturn(Secret.fromString(PASSWORD));
+
+    server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.createContext("/v2/token", new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        int request = requests.incrementAndGet();
+        queries.add(exchange.getRequestURI().getQuery());
+        String expected = "Basic " + BaseEncoding.base64().encode(
+            (USERNAME + ":" + PASSWORD).getBytes(Charsets.UTF_8));
+        boolean authorized = expected.equals(
+            exchange.getRequestHeaders().getFirst("Authorization"));
+        byte[] body = ("{\"token\": \"bearer-" + request
+            + "\", \"expires_in\": " + expiresInSeconds + "}")
+            .getBytes(Charsets.UTF_8);
+        exchange.sendResponseHeaders(authorized ? status : 401, body.length);
+        OutputStream out = exchange.getResponseBody();
+        try {
+          out.write(body);
+        } finally {
+          out.close();
+        }
+      }
+    });
+    server.start();
+    host = "localhost:" + server.getAddress().getPort();
+    underTest = new GoogleContainerRegistryBearerTokens("http");
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    server.stop(0);
+  }
+
+  @Test
+  public void testTokenIsExchangedAndCached() throws Exception {
+    assertEquals("bearer-1", Secret.toString(underTest.getToken(
+        credentials, SCOPE, host, REPOSITORY, false).getValue()));
+    assertEquals("bearer-1", Secret.toString(underTest.getToken(
+        credentials, SCOPE, host, REPOSITORY, false).getValue()));
+    assertEquals(1, requests.get());
+    verify(credentials, times(1)).getPassword();
+    assertTrue(queries.get(0).contains("scope=repository:" + REPOSITORY
+        + ":pull"));
+    assertTrue(queries.get(0).contains("service=" + host));
+  }
+
+  @Test
+  public void testTokensArePerScope() throws Exception {
+    underTest.getToken(credentials, SCOPE, host, REPOSITORY, false);
+    assertEquals("bearer-2", Secret.toString(underTest.getToken(
+        credentials, SCOPE, host, REPOSITORY, true).getValue()));
+    assertEquals("bearer-3", Secret.toString(underTest.getToken(
+        credentials, SCOPE, host, "my-project/other-image", false).getValue()));
+    assertTrue(queries.get(1).contains(":pull,push"));
+  }
+
+  @Test
+  public void testTokensArePerCredentialScope() throws Exception {
+    underTest.getToken(credentials, SCOPE, host, REPOSITORY, true);
+
+    // The pull only variant of the credential shares its id.
+    assertEquals("bearer-2", Secret.toString(underTest.getToken(
+        credentials, READ_ONLY_SCOPE, host, REPOSITORY, true).getValue()));
+    assertEquals(2, requests.get());
+  }
+
+  @Test
+  public void testExpiringTokenIsExchangedAgain() throws Exception {
+    expiresInSeconds = 5L;
+
+    underTest.getToken(credentials, SCOPE, host, REPOSITORY, false);
+    underTest.getToken(credentials, SCOPE, host, REPOSITORY, false);
+    assertEquals(2, requests.get());
+  }
+
+  @Test
+  public void testInvalidate() throws Exception {
+    underTest.getToken(credentials, SCOPE, host, REPOSITORY, false);
+    underTest.invalidate(CREDENTIALS_ID);
+    underTest.getToken(credentials, SCOPE, host, REPOSITORY, false);
+    assertEquals(2, requests.get());
+  }
+
+  @Test(expected = IOException.class)
+  public void testRefusedExchange() throws Exception {
+    status = 403;
+
+    underTest.getToken(credentials, SCOPE, host, REPOSITORY, false);
+  }
+
+  @Test
+  public void testParseDefaultsLifetime() throws Exception {
+    GoogleContainerRegistryToken token =
+        GoogleContainerRegistryBearerTokens.parse(
+            "{\"access_token\": \"foo\"}", 1000L);
+    assertEquals("foo", Secret.toString(token.getValue()));
+    assertEquals(1000L + TimeUnit.SECONDS.toMillis(60),
+        token.getExpiresAtMillis());
+  }
+
+  @Test(expected = IOException.class)
+  public void testParseWithoutToken() throws Exception {
+    GoogleContainerRegistryBearerTokens.parse("{}", 1000L);
+  }
+}
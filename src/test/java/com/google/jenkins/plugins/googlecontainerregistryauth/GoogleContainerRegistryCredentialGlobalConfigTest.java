@@ -0,0 +1,155 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.jenkins.plugins.googlecontainerregistryauth;
+
+import java.io.File;
+import java.util.List;
+
+import com.cloudbees.plugins.credentials.domains.DomainRequirement;
+import com.cloudbees.plugins.credentials.domains.HostnameRequirement;
+import com.cloudbees.plugins.credentials.domains.PathRequirement;
+import com.cloudbees.plugins.credentials.domains.SchemeRequirement;
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.Files;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import jenkins.model.GlobalConfiguration;
+
+/**
+ * Tests for {@link GoogleContainerRegistryCredentialGlobalConfig}.
+ */
+public class GoogleContainerRegistryCredentialGlobalConfigTest {
+  private static final String LEGACY_SERVER = "legacy.gcr.io";
+
+  @Rule public JenkinsRule jenkins = new JenkinsRule();
+
+  private GoogleContainerRegistryCredentialGlobalConfig underTest;
+
+  @Before
+  public void setUp() throws Exception {
+    underTest = GlobalConfiguration.all().get(
+        GoogleContainerRegistryCredentialGlobalConfig.class);
+  }
+
+  @Test
+  public void testDefaults() throws Exception {
+    assertEquals("gcr.io,*.gcr.io", underTest.getGcrServer());
+    assertFalse(underTest.isPersistTokens());
+  }
+
+  @Test
+  public void testSnapshotIsReused() throws Exception {
+    assertSame(underTest.getSnapshot(), underTest.getSnapshot());
+  }
+
+  @Test
+  public void testMatchesAreRemembered() throws Exception {
+    GoogleContainerRegistryCredentialGlobalConfig.Snapshot snapshot =
+        new GoogleContainerRegistryCredentialGlobalConfig.Snapshot(
+            "gcr.io,*.gcr.io", false, null, false);
+
+    assertTrue(snapshot.matches(requirements("https", "gcr.io")));
+    assertTrue(snapshot.matches(requirements("https", "us.gcr.io")));
+    assertFalse(snapshot.matches(requirements("http", "gcr.io")));
+    assertFalse(snapshot.matches(requirements("https", "example.com")));
+    assertEquals(4, snapshot.getMatchesCacheSize());
+
+    assertTrue(snapshot.matches(requirements("https", "gcr.io")));
+    assertFalse(snapshot.matches(requirements("https", "example.com")));
+    assertEquals(4, snapshot.getMatchesCacheSize());
+  }
+
+  @Test
+  public void testFingerprint() throws Exception {
+    assertEquals(
+        GoogleContainerRegistryCredentialGlobalConfig.Snapshot.fingerprint(
+            ImmutableList.<DomainRequirement>of(
+                new SchemeRequirement("https"),
+                new HostnameRequirement("gcr.io"))),
+        GoogleContainerRegistryCredentialGlobalConfig.Snapshot.fingerprint(
+            ImmutableList.<DomainRequirement>of(
+                new HostnameRequirement("gcr.io"),
+                new SchemeRequirement("https"),
+                new HostnameRequirement("gcr.io"))));
+    assertNull(
+        GoogleContainerRegistryCredentialGlobalConfig.Snapshot.fingerprint(
+            ImmutableList.<DomainRequirement>of(
+                new PathRequirement("/v2/"))));
+  }
+
+  @Test
+  public void testMigrateLegacyConfig() throws Exception {
+    String element = GoogleContainerRegistryCredential.class.getName()
+        + "_-DescriptorImpl";
+    File legacy = new File(jenkins.jenkins.getRootDir(),
+        GoogleContainerRegistryCredential.class.getName() + ".xml");
+    Files.write("<?xml version='1.0' encoding='UTF-8'?>\n"
+        + "<" + element + "><gcrServer>" + LEGACY_SERVER + "</gcrServer>"
+        + "</" + element + ">", legacy, Charsets.UTF_8);
+
+    GoogleContainerRegistryCredentialGlobalConfig.Snapshot before =
+        underTest.getSnapshot();
+    assertFalse(before.matches(requirements("https", LEGACY_SERVER)));
+
+    GoogleContainerRegistryCredentialGlobalConfig.migrateLegacyConfig();
+
+    assertEquals(LEGACY_SERVER, underTest.getGcrServer());
+    assertFalse(legacy.exists());
+    // The matches remembered for the former servers are not carried over.
+    assertNotSame(before, underTest.getSnapshot());
+    assertTrue(underTest.getSnapshot().matches(
+        requirements("https", LEGACY_SERVER)));
+  }
+
+  @Test
+  public void testOldDescriptorIsReadAndDropped() throws Exception {
+    String element =
+        GoogleContainerRegistryCredentialGlobalConfig.class.getName();
+    File file = new File(jenkins.jenkins.getRootDir(), element + ".xml");
+    Files.write("<?xml version='1.0' encoding='UTF-8'?>\n"
+        + "<" + element + "><oldDescriptor><gcrServer>" + LEGACY_SERVER
+        + "</gcrServer></oldDescriptor></" + element + ">",
+        file, Charsets.UTF_8);
+
+    GoogleContainerRegistryCredentialGlobalConfig config =
+        new GoogleContainerRegistryCredentialGlobalConfig();
+    assertEquals(LEGACY_SERVER, config.getGcrServer());
+
+    config.save();
+    String saved = Files.toString(file, Charsets.UTF_8);
+    assertFalse(saved.contains("oldDescriptor"));
+    assertTrue(saved.contains(LEGACY_SERVER));
+  }
+
+  private static List<DomainRequirement> requirements(String scheme,
+      String hostname) {
+    return ImmutableList.<DomainRequirement>of(
+        new SchemeRequirement(scheme), new HostnameRequirement(hostname));
+  }
+}
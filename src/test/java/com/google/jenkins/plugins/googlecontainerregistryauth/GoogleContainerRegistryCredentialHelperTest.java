@@ -0,0 +1,165 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.jenkins.plugins.googlecontainerregistryauth;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import com.google.jenkins.plugins.credentials.oauth.GoogleRobotCredentials;
+
+import static org.hamcrest.Matchers.containsString;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeFalse;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import hudson.FilePath;
+import hudson.Functions;
+import hudson.os.PosixAPI;
+import hudson.util.Secret;
+
+import net.sf.json.JSONObject;
+
+/**
+ * Tests for {@link GoogleContainerRegistryCredentialHelper}.
+ */
+public class GoogleContainerRegistryCredentialHelperTest {
+  private static final String USERNAME = "_token";
+  private static final String TOKEN = "foobar-token";
+  private static final String OTHER_TOKEN = "foobar-other-token";
+
+  /**
+   * Stands in for the remotable module shipped by the master, yielding a
+   * fixed token.
+   */
+  private static class FakeRemoteModule
+      extends GoogleContainerRegistryCredentialModule {
+    private final String token;
+    private int mints;
+
+    FakeRemoteModule(String token) {
+      this.token = token;
+    }
+
+    @Override
+    public String getIdentity(GoogleRobotCredentials credentials) {
+      return USERNAME;
+    }
+
+    @Override
+    public GoogleContainerRegistryToken mintToken(
+        GoogleRobotCredentials credentials) {
+      mints++;
+      return new GoogleContainerRegistryToken(Secret.fromString(token),
+          System.currentTimeMillis() + TimeUnit.HOURS.toMillis(1));
+    }
+  }
+
+  private File dir;
+  private File tokenFile;
+  private GoogleContainerRegistryCredentialHelper.Session underTest;
+
+  @Before
+  public void setUp() throws Exception {
+    dir = Files.createTempDir();
+    // The token file is only created in a private directory.
+    new FilePath(dir).chmod(0700);
+    tokenFile = new File(dir,
+        GoogleContainerRegistryCredentialHelper.TOKEN_FILE);
+    underTest = new GoogleContainerRegistryCredentialHelper.Session(
+        "session", tokenFile);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    underTest.close();
+    new FilePath(dir).deleteRecursive();
+  }
+
+  private JSONObject readTokenFile() throws Exception {
+    return JSONObject.fromObject(Files.toString(tokenFile, Charsets.UTF_8));
+  }
+
+  @Test
+  public void testScript() throws Exception {
+    String script =
+        GoogleContainerRegistryCredentialHelper.getScript("/tmp/it's");
+
+    assertThat(script, containsString("#!/bin/sh"));
+    assertThat(script, containsString("cat '/tmp/it'\\''s'"));
+  }
+
+  @Test
+  public void testServesTokenFromModule() throws Exception {
+    underTest.setModule(new FakeRemoteModule(TOKEN));
+
+    JSONObject response = readTokenFile();
+    assertEquals(USERNAME, response.getString("Username"));
+    assertEquals(TOKEN, response.getString("Secret"));
+  }
+
+  @Test
+  public void testTokenFileIsPrivate() throws Exception {
+    assumeFalse(Functions.isWindows());
+    underTest.setModule(new FakeRemoteModule(TOKEN));
+
+    assertEquals(0,
+        PosixAPI.jnr().stat(tokenFile.getPath()).mode() & 0077);
+  }
+
+  @Test
+  public void testRefreshReusesValidToken() throws Exception {
+    FakeRemoteModule module = new FakeRemoteModule(TOKEN);
+    underTest.setModule(module);
+    underTest.refresh();
+    underTest.refresh();
+
+    assertEquals(1, module.mints);
+  }
+
+  @Test
+  public void testSameTokenIsNotRewritten() throws Exception {
+    underTest.setModule(new FakeRemoteModule(TOKEN));
+    assertTrue(tokenFile.setLastModified(0));
+    underTest.setModule(new FakeRemoteModule(TOKEN));
+
+    assertEquals(0, tokenFile.lastModified());
+  }
+
+  @Test
+  public void testNewModuleReplacesToken() throws Exception {
+    underTest.setModule(new FakeRemoteModule(TOKEN));
+    underTest.setModule(new FakeRemoteModule(OTHER_TOKEN));
+
+    assertEquals(OTHER_TOKEN, readTokenFile().getString("Secret"));
+  }
+
+  @Test
+  public void testCloseRemovesToken() throws Exception {
+    underTest.setModule(new FakeRemoteModule(TOKEN));
+    underTest.close();
+
+    assertFalse(tokenFile.exists());
+  }
+}
@@ -16,9 +16,14 @@
 
 package com.google.jenkins.plugins.googlecontainerregistryauth;
 
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
 import com.cloudbees.plugins.credentials.CredentialsNameProvider;
 import com.cloudbees.plugins.credentials.NameWith;
+import com.google.api.client.auth.oauth2.TokenResponse;
 import com.google.api.client.googleapis.auth.oauth2.GoogleCredential;
+import com.google.common.util.concurrent.MoreExecutors;
 import com.google.jenkins.plugins.credentials.oauth.GoogleOAuth2ScopeRequirement;
 import com.google.jenkins.plugins.credentials.oauth.GoogleRobotCredentials;
 import com.google.jenkins.plugins.credentials.oauth.GoogleRobotCredentialsModule;
@@ -27,6 +32,7 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertSame;
 import static org.mockito.Matchers.isA;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import org.junit.Before;
@@ -34,6 +40,8 @@ import org.junit.Test;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 
+import hudson.util.Secret;
+
 /**
  * Tests for {@link GoogleContainerRegistryCredentialModule}.
  */
@@ -42,6 +50,7 @@ public class GoogleContainerRegistryCredentialModuleTest {
   private static final String CREDENTIALS_ID = "foobar-cred-id";
   private static final String USERNAME = "_token";
   private static final String TOKEN = "foobar-token";
+  private static final String FRESH_TOKEN = "fresh-token";
 
   @NameWith(value = Namer.class, priority = 50)
   private abstract static class FakeGoogleRobotCredentials
@@ -90,6 +99,58 @@ public class GoogleContainerRegistryCredentialModuleTest {
     assertEquals(USERNAME, underTest.getIdentity(credentials));
   }
 
+  /**
+   * Hands out {@link #FRESH_TOKEN}, valid for an hour, when refreshed.
+   */
+  private static class RefreshingCredential extends GoogleCredential {
+    @Override
+    protected TokenResponse executeRefreshToken() {
+      return new TokenResponse().setAccessToken(FRESH_TOKEN)
+          .setExpiresInSeconds(TimeUnit.HOURS.toSeconds(1));
+    }
+  }
+
+  @Test
+  public void testMintReusesTokenThatIsNotAboutToExpire() throws Exception {
+    credential = new RefreshingCredential();
+    credential.setAccessToken(TOKEN);
+    credential.setExpiresInSeconds(
+        GoogleContainerRegistryCredentialModule.MINIMUM_DURATION_SECONDS + 60);
+    when(credentials.getGoogleCredential(isA(
+        GoogleOAuth2ScopeRequirement.class)))
+        .thenReturn(credential);
+
+    assertEquals(TOKEN,
+        underTest.mint(credentials).getValue().getPlainText());
+  }
+
+  @Test
+  public void testMintForCacheRefreshesTokenTheCacheWouldRefresh()
+      throws Exception {
+    credential = new RefreshingCredential();
+    credential.setAccessToken(TOKEN);
+    credential.setExpiresInSeconds(
+        GoogleContainerRegistryCredentialModule.MINIMUM_DURATION_SECONDS + 60);
+    when(credentials.getGoogleCredential(isA(
+        GoogleOAuth2ScopeRequirement.class)))
+        .thenReturn(credential);
+    GoogleContainerRegistryTokenCache cache =
+        new GoogleContainerRegistryTokenCache(
+            MoreExecutors.sameThreadExecutor());
+    cache.setPolicy(TimeUnit.MINUTES.toMillis(10),
+        GoogleContainerRegistryTokenCache.Clock.SYSTEM);
+
+    GoogleContainerRegistryToken token = cache.get(CREDENTIALS_ID,
+        new Callable<GoogleContainerRegistryToken>() {
+          @Override
+          public GoogleContainerRegistryToken call() throws Exception {
+            return underTest.mint(credentials);
+          }
+        });
+
+    assertEquals(FRESH_TOKEN, token.getValue().getPlainText());
+  }
+
   @Test
   public void testForRemote() throws Exception {
     credential.setExpiresInSeconds(1000L);
@@ -114,4 +175,50 @@ public class GoogleContainerRegistryCredentialModuleTest {
     assertSame(remotable, remotable.forRemote(credentials));
   }
 
+  @Test
+  public void testDefaultRequirementIsReadWrite() throws Exception {
+    assertSame(GoogleContainerRegistryScopeRequirement.READ_WRITE,
+        underTest.getRequirement());
+  }
+
+  @Test
+  public void testForRequirement() throws Exception {
+    GoogleContainerRegistryCredentialModule readOnly = underTest
+        .forRequirement(GoogleContainerRegistryScopeRequirement.READ_ONLY);
+
+    assertSame(GoogleContainerRegistryScopeRequirement.READ_ONLY,
+        readOnly.getRequirement());
+    assertSame(GoogleContainerRegistryScopeRequirement.READ_ONLY,
+        readOnly.forRemote(credentials).getRequirement());
+    verify(credentials).forRemote(
+        GoogleContainerRegistryScopeRequirement.READ_ONLY);
+  }
+
+  @Test
+  public void testForRemoteForRequirementKeepsRemoteCredentials()
+      throws Exception {
+    credential.setExpiresInSeconds(1000L);
+    credential.setAccessToken(TOKEN);
+    GoogleContainerRegistryCredentialModule remotable =
+        underTest.forRemote(credentials);
+
+    // Its tokens let pulls through too.
+    GoogleContainerRegistryCredentialModule readOnly = remotable
+        .forRequirement(GoogleContainerRegistryScopeRequirement.READ_ONLY);
+
+    assertSame(remotable, readOnly);
+    assertSame(remotable, remotable.forRequirement(
+        GoogleContainerRegistryScopeRequirement.READ_WRITE));
+    // On an agent, the wrapped credential can no longer be looked up.
+    assertEquals(TOKEN, Secret.toString(readOnly.getToken(null)));
+    // Sending the module to an agent copies the credential only once.
+    verify(credentials).forRemote(isA(GoogleOAuth2ScopeRequirement.class));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testForRemoteCannotWidenScopes() throws Exception {
+    underTest.forRequirement(GoogleContainerRegistryScopeRequirement.READ_ONLY)
+        .forRemote(credentials)
+        .forRequirement(GoogleContainerRegistryScopeRequirement.READ_WRITE);
+  }
 }
@@ -21,6 +21,11 @@ import java.util.Collection;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import com.cloudbees.plugins.credentials.Credentials;
 import com.cloudbees.plugins.credentials.CredentialsNameProvider;
@@ -42,6 +47,9 @@ import com.google.jenkins.plugins.credentials.oauth.GoogleRobotCredentialsModule
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.argThat;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.verify;
@@ -60,12 +68,15 @@ import org.junit.Test;
 import org.jvnet.hudson.test.JenkinsRule;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
 import edu.umd.cs.findbugs.annotations.NonNull;
 import hudson.ExtensionList;
 import hudson.model.ItemGroup;
 import hudson.security.ACL;
 
+import jenkins.model.GlobalConfiguration;
 import jenkins.model.Jenkins;
 
 /**
@@ -73,6 +84,8 @@ import jenkins.model.Jenkins;
  */
 public class GoogleContainerRegistryCredentialProviderTest {
   private static final String NAME = "foo-bar Container Registry Account";
+  private static final int CONCURRENT_LOOKUPS = 16;
+  private static final int LOOKUPS_PER_THREAD = 200;
 
   @Rule public JenkinsRule jenkins = new JenkinsRule();
 
@@ -382,6 +395,175 @@ public class GoogleContainerRegistryCredentialProviderTest {
     );
   }
 
+  @Test
+  public void testDescriptionsResolvedUpFront() throws Exception {
+    List<String> expectedCredentialsIds = Lists.newArrayList("foo", "bar");
+    when(fakeProvider.getCredentials(
+        eq(GoogleRobotCredentials.class), eq(Jenkins.getInstance()),
+        eq(ACL.SYSTEM), buildMyDomainRequirementMatcher(
+            ImmutableList.<DomainRequirement>of(
+                new GoogleContainerRegistryScopeRequirement()))))
+        .thenReturn(getInputCredentials(expectedCredentialsIds));
+
+    List<GoogleContainerRegistryCredential> credentials =
+        underTest.getCredentials(GoogleContainerRegistryCredential.class,
+            Jenkins.getInstance(), ACL.SYSTEM);
+    assertEquals(expectedCredentialsIds.size(), credentials.size());
+    for (GoogleContainerRegistryCredential credential : credentials) {
+      assertEquals(NAME, credential.getDescription());
+    }
+
+    // Describing the credentials must not look each of them up again.
+    verify(fakeProvider).getCredentials(
+        eq(GoogleRobotCredentials.class), eq(Jenkins.getInstance()),
+        eq(ACL.SYSTEM), buildMyDomainRequirementMatcher(
+            ImmutableList.<DomainRequirement>of(
+                new GoogleContainerRegistryScopeRequirement())));
+  }
+
+  @Test
+  public void testLookupsAreRestrictedToMappedAccounts() throws Exception {
+    GlobalConfiguration.all().get(
+        GoogleContainerRegistryCredentialGlobalConfig.class)
+        .setHostAccounts("eu.gcr.io=foo");
+    when(fakeProvider.getCredentials(
+        eq(GoogleRobotCredentials.class), eq(Jenkins.getInstance()),
+        eq(ACL.SYSTEM), buildMyDomainRequirementMatcher(
+            ImmutableList.<DomainRequirement>of(
+                new GoogleContainerRegistryScopeRequirement()))))
+        .thenReturn(getInputCredentials(ImmutableList.of("foo", "bar")));
+
+    assertEquals(getExpectedOutputCredentials(ImmutableList.of("foo")),
+        underTest.getCredentials(GoogleContainerRegistryCredential.class,
+            Jenkins.getInstance(), ACL.SYSTEM,
+            ImmutableList.<DomainRequirement>of(
+                new HostnameRequirement("eu.gcr.io"),
+                new SchemeRequirement("https"))));
+    // Hosts without a mapping may use any account.
+    assertEquals(getExpectedOutputCredentials(ImmutableList.of("foo", "bar")),
+        underTest.getCredentials(GoogleContainerRegistryCredential.class,
+            Jenkins.getInstance(), ACL.SYSTEM,
+            ImmutableList.<DomainRequirement>of(
+                new HostnameRequirement("us.gcr.io"),
+                new SchemeRequirement("https"))));
+  }
+
+  @Test
+  public void testConcurrentLookupsAreCoalesced() throws Exception {
+    final List<String> expectedCredentialsIds =
+        Lists.newArrayList("foo", "bar");
+    final AtomicInteger scans = new AtomicInteger();
+    final CountDownLatch scanning = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    when(fakeProvider.getCredentials(
+        eq(GoogleRobotCredentials.class), eq(Jenkins.getInstance()),
+        eq(ACL.SYSTEM), buildMyDomainRequirementMatcher(
+            ImmutableList.<DomainRequirement>of(
+                new GoogleContainerRegistryScopeRequirement()))))
+        .thenAnswer(new Answer<List<GoogleRobotCredentials>>() {
+          @Override
+          public List<GoogleRobotCredentials> answer(
+              InvocationOnMock invocation) throws Throwable {
+            scans.incrementAndGet();
+            scanning.countDown();
+            release.await();
+            return getInputCredentials(expectedCredentialsIds);
+          }
+        });
+
+    final List<?>[] results = new List<?>[CONCURRENT_LOOKUPS];
+    Thread[] threads = new Thread[CONCURRENT_LOOKUPS];
+    for (int i = 0; i < threads.length; i++) {
+      final int index = i;
+      threads[i] = new Thread() {
+        @Override
+        public void run() {
+          results[index] = underTest.getCredentials(
+              GoogleContainerRegistryCredential.class, Jenkins.getInstance(),
+              ACL.SYSTEM);
+        }
+      };
+    }
+    threads[0].start();
+    assertTrue(scanning.await(10, TimeUnit.SECONDS));
+    for (int i = 1; i < threads.length; i++) {
+      threads[i].start();
+    }
+    // Let every other lookup catch up with the one in progress.
+    for (Thread thread : threads) {
+      long deadline = System.currentTimeMillis() + 10000;
+      while (thread.getState() != Thread.State.WAITING
+          && System.currentTimeMillis() < deadline) {
+        Thread.sleep(10);
+      }
+    }
+    release.countDown();
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    assertEquals(1, scans.get());
+    for (int i = 0; i < results.length; i++) {
+      assertEquals(getExpectedOutputCredentials(expectedCredentialsIds),
+          results[i]);
+      if (i > 0) {
+        // Each caller gets a list of its own.
+        assertNotSame(results[0], results[i]);
+      }
+    }
+  }
+
+  @Test
+  public void testConcurrentLookupsUnderContention() throws Exception {
+    final List<String> expectedCredentialsIds =
+        Lists.newArrayList("foo", "bar");
+    when(fakeProvider.getCredentials(
+        eq(GoogleRobotCredentials.class), eq(Jenkins.getInstance()),
+        eq(ACL.SYSTEM), buildMyDomainRequirementMatcher(
+            ImmutableList.<DomainRequirement>of(
+                new GoogleContainerRegistryScopeRequirement()))))
+        .thenAnswer(new Answer<List<GoogleRobotCredentials>>() {
+          @Override
+          public List<GoogleRobotCredentials> answer(
+              InvocationOnMock invocation) {
+            return getInputCredentials(expectedCredentialsIds);
+          }
+        });
+
+    final CyclicBarrier start = new CyclicBarrier(CONCURRENT_LOOKUPS);
+    final AtomicReference<Throwable> failure =
+        new AtomicReference<Throwable>();
+    Thread[] threads = new Thread[CONCURRENT_LOOKUPS];
+    for (int i = 0; i < threads.length; i++) {
+      threads[i] = new Thread() {
+        @Override
+        public void run() {
+          try {
+            start.await();
+            for (int j = 0; j < LOOKUPS_PER_THREAD; j++) {
+              List<GoogleContainerRegistryCredential> result =
+                  underTest.getCredentials(
+                      GoogleContainerRegistryCredential.class,
+                      Jenkins.getInstance(), ACL.SYSTEM);
+              assertEquals(
+                  getExpectedOutputCredentials(expectedCredentialsIds),
+                  result);
+              // Callers may modify what they are given.
+              result.clear();
+            }
+          } catch (Throwable t) {
+            failure.compareAndSet(null, t);
+          }
+        }
+      };
+      threads[i].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    assertNull(failure.get());
+  }
+
   @Test
   public void testEndToEnd() throws Exception {
     // This is exactly like testEndToEndNoRequirements, except it
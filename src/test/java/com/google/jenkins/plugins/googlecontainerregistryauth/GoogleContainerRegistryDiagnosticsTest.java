@@ -0,0 +1,189 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.jenkins.plugins.googlecontainerregistryauth;
+
+import java.net.URL;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import com.cloudbees.plugins.credentials.SystemCredentialsProvider;
+import com.gargoylesoftware.htmlunit.HttpMethod;
+import com.gargoylesoftware.htmlunit.Page;
+import com.gargoylesoftware.htmlunit.WebRequestSettings;
+import com.gargoylesoftware.htmlunit.util.NameValuePair;
+import com.google.common.collect.Lists;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import hudson.security.GlobalMatrixAuthorizationStrategy;
+import hudson.util.Secret;
+import jenkins.model.Jenkins;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+/**
+ * Tests for {@link GoogleContainerRegistryDiagnostics}.
+ */
+public class GoogleContainerRegistryDiagnosticsTest {
+  private static final String KEY = "foobar-cred-id";
+  private static final String TOKEN = "foobar-token";
+  private static final String ADMIN = "alice";
+  private static final String READER = "bob";
+
+  @Rule public JenkinsRule jenkins = new JenkinsRule();
+
+  private GoogleContainerRegistryTokenCache cache;
+  private String selector;
+  private CountingMinter minter;
+
+  @Before
+  public void setUp() throws Exception {
+    jenkins.jenkins.setSecurityRealm(jenkins.createDummySecurityRealm());
+    GlobalMatrixAuthorizationStrategy authorization =
+        new GlobalMatrixAuthorizationStrategy();
+    authorization.add(Jenkins.ADMINISTER, ADMIN);
+    authorization.add(Jenkins.READ, READER);
+    jenkins.jenkins.setAuthorizationStrategy(authorization);
+
+    cache = GoogleContainerRegistryTokenPools.get().forRequirement(
+        GoogleContainerRegistryScopeRequirement.READ_WRITE);
+    selector = GoogleContainerRegistryTokenPools.getScopeKey(
+        GoogleContainerRegistryScopeRequirement.READ_WRITE) + "\t" + KEY;
+    minter = new CountingMinter();
+    cache.get(KEY, minter);
+  }
+
+  /**
+   * Mints tokens valid for an hour, counting down {@code minted}.
+   */
+  private static class CountingMinter
+      implements Callable<GoogleContainerRegistryToken> {
+    private final CountDownLatch minted = new CountDownLatch(2);
+
+    @Override
+    public GoogleContainerRegistryToken call() {
+      minted.countDown();
+      return new GoogleContainerRegistryToken(Secret.fromString(TOKEN),
+          System.currentTimeMillis() + TimeUnit.HOURS.toMillis(1));
+    }
+  }
+
+  private JenkinsRule.WebClient as(String user) throws Exception {
+    JenkinsRule.WebClient client = jenkins.createWebClient().login(user);
+    client.setThrowExceptionOnFailingStatusCode(false);
+    return client;
+  }
+
+  private Page request(JenkinsRule.WebClient client, HttpMethod method,
+      String action) throws Exception {
+    WebRequestSettings request = new WebRequestSettings(
+        new URL(jenkins.getURL(), "gcr-auth/" + action), method);
+    request.setAdditionalHeader("Accept", "application/json");
+    List<NameValuePair> parameters = Lists.newArrayList();
+    parameters.add(new NameValuePair("entry", selector));
+    request.setRequestParameters(parameters);
+    return client.getPage(request);
+  }
+
+  private static int affected(Page page) {
+    assertEquals(200, page.getWebResponse().getStatusCode());
+    return JSONObject.fromObject(page.getWebResponse().getContentAsString())
+        .getInt("affected");
+  }
+
+  @Test
+  public void testCacheIsServedAsJson() throws Exception {
+    Page page = request(as(ADMIN), HttpMethod.GET, "cache");
+
+    assertEquals(200, page.getWebResponse().getStatusCode());
+    String content = page.getWebResponse().getContentAsString();
+    assertFalse(content.contains(TOKEN));
+    JSONArray json = JSONArray.fromObject(content);
+    assertEquals(1, json.size());
+    assertEquals(KEY, json.getJSONObject(0).getString("credentialsId"));
+    assertTrue(json.getJSONObject(0).getBoolean("cached"));
+  }
+
+  @Test
+  public void testInvalidate() throws Exception {
+    assertEquals(1, affected(request(as(ADMIN), HttpMethod.POST,
+        "invalidate")));
+
+    assertTrue(cache.getEntries().isEmpty());
+  }
+
+  @Test
+  public void testRefresh() throws Exception {
+    assertEquals(1, affected(request(as(ADMIN), HttpMethod.POST,
+        "refresh")));
+
+    assertTrue(minter.minted.await(10, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void testCredentialsChangeStopsRefresh() throws Exception {
+    SystemCredentialsProvider.getInstance().save();
+
+    assertEquals(0, affected(request(as(ADMIN), HttpMethod.POST,
+        "refresh")));
+    assertEquals(1, minter.minted.getCount());
+  }
+
+  @Test
+  public void testChangesRequirePost() throws Exception {
+    JenkinsRule.WebClient client = as(ADMIN);
+
+    assertEquals(405, request(client, HttpMethod.GET, "invalidate")
+        .getWebResponse().getStatusCode());
+    assertEquals(405, request(client, HttpMethod.GET, "refresh")
+        .getWebResponse().getStatusCode());
+    assertEquals(1, cache.getEntries().size());
+  }
+
+  @Test
+  public void testNonAdministratorIsRefused() throws Exception {
+    JenkinsRule.WebClient client = as(READER);
+
+    assertEquals(403, request(client, HttpMethod.GET, "cache")
+        .getWebResponse().getStatusCode());
+    assertEquals(403, request(client, HttpMethod.POST, "invalidate")
+        .getWebResponse().getStatusCode());
+    assertEquals(403, request(client, HttpMethod.POST, "refresh")
+        .getWebResponse().getStatusCode());
+    assertEquals(1, cache.getEntries().size());
+    assertEquals(1, minter.minted.getCount());
+  }
+
+  @Test
+  public void testNoCachedTokensWithoutPools() throws Exception {
+    jenkins.jenkins.getExtensionList(GoogleContainerRegistryTokenPools.class)
+        .remove(GoogleContainerRegistryTokenPools.get());
+
+    assertTrue(jenkins.jenkins.getExtensionList(
+        GoogleContainerRegistryDiagnostics.class).get(0)
+        .getCachedTokens().isEmpty());
+  }
+}
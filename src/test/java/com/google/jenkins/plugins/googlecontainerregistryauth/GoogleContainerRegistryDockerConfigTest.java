@@ -0,0 +1,112 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.jenkins.plugins.googlecontainerregistryauth;
+
+import java.io.File;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.Files;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeFalse;
+
+import org.jenkinsci.plugins.docker.commons.credentials.DockerRegistryToken;
+import org.junit.Test;
+
+import hudson.FilePath;
+import hudson.Functions;
+import hudson.os.PosixAPI;
+
+import net.sf.json.JSONObject;
+
+/**
+ * Tests for {@link GoogleContainerRegistryDockerConfig}.
+ */
+public class GoogleContainerRegistryDockerConfigTest {
+  private static final String EMAIL = "not@val.id";
+  private static final String AUTH = "X3Rva2VuOmZvb2Jhcg==";
+
+  @Test
+  public void testDefaultHosts() throws Exception {
+    assertEquals(
+        ImmutableList.of("gcr.io", "us.gcr.io", "eu.gcr.io", "asia.gcr.io"),
+        GoogleContainerRegistryDockerConfig.getHosts("gcr.io,*.gcr.io"));
+  }
+
+  @Test
+  public void testUnknownWildcardIsDropped() throws Exception {
+    assertEquals(ImmutableList.of("registry.example.com"),
+        GoogleContainerRegistryDockerConfig.getHosts(
+            " registry.example.com , *.example.com,,"));
+  }
+
+  @Test
+  public void testOneAuthPerHost() throws Exception {
+    GoogleContainerRegistryDockerConfig underTest =
+        new GoogleContainerRegistryDockerConfig(
+            ImmutableList.of("gcr.io", "eu.gcr.io"),
+            new DockerRegistryToken(EMAIL, AUTH));
+
+    JSONObject auths = underTest.toJSON().getJSONObject("auths");
+    assertEquals(2, auths.size());
+    for (String host : ImmutableList.of("gcr.io", "eu.gcr.io")) {
+      JSONObject auth = auths.getJSONObject("https://" + host);
+      assertEquals(AUTH, auth.getString("auth"));
+      assertEquals(EMAIL, auth.getString("email"));
+    }
+  }
+
+  @Test
+  public void testWrite() throws Exception {
+    File dir = Files.createTempDir();
+    try {
+      GoogleContainerRegistryDockerConfig underTest =
+          new GoogleContainerRegistryDockerConfig(
+              ImmutableList.of("gcr.io"),
+              new DockerRegistryToken(EMAIL, AUTH));
+
+      FilePath written = underTest.write(new FilePath(dir));
+
+      assertEquals(GoogleContainerRegistryDockerConfig.FILE_NAME,
+          written.getName());
+      assertEquals(underTest.toJSON(),
+          JSONObject.fromObject(written.readToString()));
+    } finally {
+      new FilePath(dir).deleteRecursive();
+    }
+  }
+
+  @Test
+  public void testWriteIsPrivate() throws Exception {
+    assumeFalse(Functions.isWindows());
+    File dir = Files.createTempDir();
+    try {
+      GoogleContainerRegistryDockerConfig underTest =
+          new GoogleContainerRegistryDockerConfig(
+              ImmutableList.of("gcr.io"),
+              new DockerRegistryToken(EMAIL, AUTH));
+
+      FilePath written = underTest.write(new FilePath(dir));
+
+      assertEquals(0, PosixAPI.jnr().stat(dir.getPath()).mode() & 0077);
+      assertEquals(0,
+          PosixAPI.jnr().stat(written.getRemote()).mode() & 0077);
+    } finally {
+      new FilePath(dir).deleteRecursive();
+    }
+  }
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.jenkins.plugins.googlecontainerregistryauth;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.cloudbees.plugins.credentials.CredentialsNameProvider;
+import com.cloudbees.plugins.credentials.NameWith;
+import com.cloudbees.plugins.credentials.SystemCredentialsProvider;
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import com.google.jenkins.plugins.credentials.oauth.GoogleOAuth2ScopeRequirement;
+import com.google.jenkins.plugins.credentials.oauth.GoogleRobotCredentials;
+import com.google.jenkins.plugins.credentials.oauth.GoogleRobotCredentialsModule;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.isA;
+import static org.mockito.Mockito.when;
+
+import org.acegisecurity.context.SecurityContext;
+import org.acegisecurity.context.SecurityContextHolder;
+import org.apache.commons.codec.binary.Base64;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.TestBuilder;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import hudson.Launcher;
+import hudson.model.AbstractBuild;
+import hudson.model.BuildListener;
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.Item;
+import hudson.model.Result;
+import hudson.model.User;
+import hudson.security.ACL;
+import hudson.security.GlobalMatrixAuthorizationStrategy;
+import hudson.util.ListBoxModel;
+import hudson.util.Secret;
+import jenkins.model.Jenkins;
+import net.sf.json.JSONObject;
+
+/**
+ * Tests for {@link GoogleContainerRegistryDockerConfigWrapper}.
+ */
+public class GoogleContainerRegistryDockerConfigWrapperTest {
+  private static final String CREDENTIALS_ID = "foobar-cred-id";
+  private static final String NAME = "foobar-name";
+  private static final String TOKEN = "foobar-token";
+
+  @Rule public JenkinsRule jenkins = new JenkinsRule();
+
+  /**
+   */
+  @NameWith(value = Namer.class, priority = 50)
+  private abstract static class FakeGoogleRobotCredentials
+      extends GoogleRobotCredentials {
+    public FakeGoogleRobotCredentials(String id) {
+      super(id, new GoogleRobotCredentialsModule());
+    }
+  }
+
+  /**
+   */
+  public static class Namer
+      extends CredentialsNameProvider<FakeGoogleRobotCredentials> {
+    public String getName(FakeGoogleRobotCredentials c) {
+      return NAME;
+    }
+  }
+
+  @Mock
+  private FakeGoogleRobotCredentials credentials;
+
+  private FreeStyleProject project;
+  private final AtomicReference<String> dockerConfig =
+      new AtomicReference<String>();
+  private final AtomicReference<String> written = new AtomicReference<String>();
+
+  @Before
+  public void setUp() throws Exception {
+    MockitoAnnotations.initMocks(this);
+    when(credentials.getId()).thenReturn(CREDENTIALS_ID);
+    when(credentials.getAccessToken(isA(GoogleOAuth2ScopeRequirement.class)))
+        .thenReturn(Secret.fromString(TOKEN));
+    SystemCredentialsProvider.getInstance().getCredentials().add(credentials);
+
+    project = jenkins.createFreeStyleProject();
+    project.getBuildWrappersList().add(
+        new GoogleContainerRegistryDockerConfigWrapper(CREDENTIALS_ID));
+  }
+
+  /**
+   * Records where the build was told docker keeps its configuration, and
+   * what it found there.
+   */
+  private class Recorder extends TestBuilder {
+    private final boolean succeed;
+
+    Recorder(boolean succeed) {
+      this.succeed = succeed;
+    }
+
+    @Override
+    public boolean perform(AbstractBuild<?, ?> build, Launcher launcher,
+        BuildListener listener) throws IOException, InterruptedException {
+      String dir = build.getEnvironment(listener).get("DOCKER_CONFIG");
+      dockerConfig.set(dir);
+      written.set(Files.toString(new File(dir, "config.json"),
+          Charsets.UTF_8));
+      return succeed;
+    }
+  }
+
+  @Test
+  public void testConfigIsWrittenNextToWorkspace() throws Exception {
+    project.getBuildersList().add(new Recorder(true));
+
+    FreeStyleBuild build = jenkins.buildAndAssertSuccess(project);
+
+    File dir = new File(dockerConfig.get());
+    assertEquals(new File(build.getWorkspace().getRemote() + "@tmp"),
+        dir.getParentFile());
+    JSONObject auth = JSONObject.fromObject(written.get())
+        .getJSONObject("auths").getJSONObject("https://gcr.io");
+    assertEquals("_token:" + TOKEN, new String(
+        Base64.decodeBase64(auth.getString("auth")), Charsets.UTF_8));
+  }
+
+  @Test
+  public void testConfigIsRemovedWhenBuildEnds() throws Exception {
+    project.getBuildersList().add(new Recorder(true));
+
+    jenkins.buildAndAssertSuccess(project);
+
+    File dir = new File(dockerConfig.get());
+    assertTrue(dir.getParentFile().isDirectory());
+    assertFalse(dir.exists());
+  }
+
+  @Test
+  public void testConfigIsRemovedWhenBuildFails() throws Exception {
+    project.getBuildersList().add(new Recorder(false));
+
+    jenkins.assertBuildStatus(Result.FAILURE,
+        project.scheduleBuild2(0).get());
+
+    assertFalse(new File(dockerConfig.get()).exists());
+  }
+
+  @Test
+  public void testUnknownCredentialAbortsBuild() throws Exception {
+    project.getBuildWrappersList().clear();
+    project.getBuildWrappersList().add(
+        new GoogleContainerRegistryDockerConfigWrapper("unknown-cred-id"));
+    project.getBuildersList().add(new Recorder(true));
+
+    jenkins.assertBuildStatus(Result.FAILURE,
+        project.scheduleBuild2(0).get());
+    assertNull(dockerConfig.get());
+  }
+
+  @Test
+  public void testCredentialsAreListedToThoseWhoMayConfigure()
+      throws Exception {
+    jenkins.jenkins.setSecurityRealm(jenkins.createDummySecurityRealm());
+    GlobalMatrixAuthorizationStrategy authorization =
+        new GlobalMatrixAuthorizationStrategy();
+    authorization.add(Jenkins.ADMINISTER, "alice");
+    authorization.add(Jenkins.READ, "bob");
+    authorization.add(Item.READ, "bob");
+    jenkins.jenkins.setAuthorizationStrategy(authorization);
+
+    assertEquals(1, fillCredentialsIdItems("alice", project).size());
+    assertEquals(1, fillCredentialsIdItems("alice", null).size());
+    assertTrue(fillCredentialsIdItems("bob", project).isEmpty());
+    assertTrue(fillCredentialsIdItems("bob", null).isEmpty());
+  }
+
+  private ListBoxModel fillCredentialsIdItems(String user, Item context) {
+    SecurityContext previous = ACL.impersonate(User.get(user).impersonate());
+    try {
+      return jenkins.jenkins.getDescriptorByType(
+          GoogleContainerRegistryDockerConfigWrapper.DescriptorImpl.class)
+          .doFillCredentialsIdItems(context);
+    } finally {
+      SecurityContextHolder.setContext(previous);
+    }
+  }
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.jenkins.plugins.googlecontainerregistryauth;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link GoogleContainerRegistryFlightEvents}.
+ */
+public class GoogleContainerRegistryFlightEventsTest {
+  @Test
+  public void testNothingIsRecordedWithoutRecording() throws Exception {
+    // No flight recording is running during tests.
+    assertFalse(GoogleContainerRegistryFlightEvents.isEnabled());
+    assertNull(GoogleContainerRegistryFlightEvents.begin("getToken", "id"));
+    GoogleContainerRegistryFlightEvents.cacheHit(true);
+  }
+
+  @Test
+  public void testSlowOpsStillRecordedWithoutRecording() throws Exception {
+    GoogleContainerRegistrySlowOps slowOps =
+        new GoogleContainerRegistrySlowOps(0L, 10);
+
+    slowOps.begin("getToken", "id", null).end("token");
+
+    assertEquals(1, slowOps.getRecorded());
+  }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.jenkins.plugins.googlecontainerregistryauth;
+
+import com.google.common.collect.ImmutableSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link GoogleContainerRegistryHostIndex}.
+ */
+public class GoogleContainerRegistryHostIndexTest {
+  @Test
+  public void testEmpty() throws Exception {
+    assertSame(GoogleContainerRegistryHostIndex.EMPTY,
+        GoogleContainerRegistryHostIndex.parse(null));
+    assertSame(GoogleContainerRegistryHostIndex.EMPTY,
+        GoogleContainerRegistryHostIndex.parse(""));
+    assertTrue(GoogleContainerRegistryHostIndex.EMPTY
+        .getAccounts("gcr.io").isEmpty());
+  }
+
+  @Test
+  public void testExactHosts() throws Exception {
+    GoogleContainerRegistryHostIndex index =
+        GoogleContainerRegistryHostIndex.parse(
+            "eu.gcr.io=eu-account\n"
+            + "us.gcr.io = us-account, shared-account\n"
+            + "eu.gcr.io=shared-account\n");
+
+    assertEquals(ImmutableSet.of("eu-account", "shared-account"),
+        index.getAccounts("eu.gcr.io"));
+    assertEquals(ImmutableSet.of("us-account", "shared-account"),
+        index.getAccounts("US.GCR.IO"));
+    assertTrue(index.getAccounts("asia.gcr.io").isEmpty());
+  }
+
+  @Test
+  public void testWildcards() throws Exception {
+    GoogleContainerRegistryHostIndex index =
+        GoogleContainerRegistryHostIndex.parse(
+            "*.gcr.io=regional-account\n"
+            + "eu.gcr.io=eu-account\n");
+
+    assertEquals(ImmutableSet.of("eu-account", "regional-account"),
+        index.getAccounts("eu.gcr.io"));
+    assertEquals(ImmutableSet.of("regional-account"),
+        index.getAccounts("asia.gcr.io"));
+    assertTrue(index.getAccounts("gcr.io").isEmpty());
+    // The dots of a pattern are not wildcards.
+    assertTrue(index.getAccounts("eu-gcr.io").isEmpty());
+  }
+
+  @Test
+  public void testMalformedLinesAreIgnored() throws Exception {
+    GoogleContainerRegistryHostIndex index =
+        GoogleContainerRegistryHostIndex.parse(
+            "# comment\n"
+            + "no-separator\n"
+            + "=no-host\n"
+            + "no-accounts=\n"
+            + "\n"
+            + "gcr.io=account\n");
+
+    assertEquals(ImmutableSet.of("account"), index.getAccounts("gcr.io"));
+    assertTrue(index.getAccounts("no-accounts").isEmpty());
+  }
+}
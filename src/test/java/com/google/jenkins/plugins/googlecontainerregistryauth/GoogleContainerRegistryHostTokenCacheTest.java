@@ -0,0 +1,199 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.jenkins.plugins.googlecontainerregistryauth;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Strings;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeFalse;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import hudson.Functions;
+import hudson.util.Secret;
+
+/**
+ * Tests for {@link GoogleContainerRegistryHostTokenCache}.
+ */
+public class GoogleContainerRegistryHostTokenCacheTest {
+  private static final String KEY = "master foobar-cred-id scope";
+  private static final String TOKEN = "foobar-token";
+  private static final long HOUR_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  private File file;
+  private GoogleContainerRegistryHostTokenCache underTest;
+
+  @Before
+  public void setUp() throws Exception {
+    // New files are only created in a private directory.
+    restrictToOwner(folder.getRoot());
+    file = new File(folder.getRoot(), "tokens");
+    underTest = new GoogleContainerRegistryHostTokenCache(file, 16, 256);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    underTest.close();
+  }
+
+  private static GoogleContainerRegistryToken token(String value,
+      long lifetimeMillis) {
+    return new GoogleContainerRegistryToken(Secret.fromString(value),
+        System.currentTimeMillis() + lifetimeMillis);
+  }
+
+  @Test
+  public void testTokenIsShared() throws Exception {
+    GoogleContainerRegistryToken token = token(TOKEN, HOUR_MILLIS);
+    underTest.store(KEY, token);
+
+    // Stands in for another process of the host, asking for another
+    // geometry, which the existing file overrides.
+    GoogleContainerRegistryHostTokenCache other =
+        new GoogleContainerRegistryHostTokenCache(file, 64, 1024);
+    try {
+      GoogleContainerRegistryToken loaded = other.load(KEY, 0L);
+      assertEquals(TOKEN, Secret.toString(loaded.getValue()));
+      assertEquals(token.getExpiresAtMillis(), loaded.getExpiresAtMillis());
+    } finally {
+      other.close();
+    }
+    assertNull(underTest.load("another key", 0L));
+  }
+
+  @Test
+  public void testExpiringTokenIsNotLoaded() throws Exception {
+    underTest.store(KEY, token(TOKEN, TimeUnit.SECONDS.toMillis(10)));
+
+    assertNull(underTest.load(KEY, TimeUnit.MINUTES.toMillis(3)));
+  }
+
+  @Test
+  public void testLongerLivedTokenIsKept() throws Exception {
+    underTest.store(KEY, token(TOKEN + 1, HOUR_MILLIS));
+    underTest.store(KEY, token(TOKEN + 2, HOUR_MILLIS / 2));
+
+    assertEquals(TOKEN + 1,
+        Secret.toString(underTest.load(KEY, 0L).getValue()));
+  }
+
+  @Test
+  public void testOversizeTokenIsNotStored() throws Exception {
+    underTest.store(KEY, token(Strings.repeat("x", 256), HOUR_MILLIS));
+
+    assertNull(underTest.load(KEY, 0L));
+  }
+
+  @Test
+  public void testFirstExpiringTokenIsReplaced() throws Exception {
+    // With as many slots as probes, every key competes for every slot.
+    GoogleContainerRegistryHostTokenCache small =
+        new GoogleContainerRegistryHostTokenCache(
+            new File(folder.getRoot(), "small"),
+            GoogleContainerRegistryHostTokenCache.PROBES, 256);
+    try {
+      for (int i = 0; i < GoogleContainerRegistryHostTokenCache.PROBES; i++) {
+        small.store(KEY + i, token(TOKEN + i, HOUR_MILLIS + i * 1000L));
+      }
+      small.store(KEY, token(TOKEN, HOUR_MILLIS));
+
+      assertEquals(TOKEN, Secret.toString(small.load(KEY, 0L).getValue()));
+      assertNull(small.load(KEY + 0, 0L));
+      assertEquals(TOKEN + 1,
+          Secret.toString(small.load(KEY + 1, 0L).getValue()));
+    } finally {
+      small.close();
+    }
+  }
+
+  private static void restrictToOwner(File file) {
+    assertTrue(file.setReadable(false, false) && file.setReadable(true, true)
+        && file.setWritable(false, false) && file.setWritable(true, true)
+        && file.setExecutable(false, false)
+        && file.setExecutable(true, true));
+  }
+
+  @Test
+  public void testInvalidGeometryIsLaidOutAgain() throws Exception {
+    File invalid = folder.newFile("invalid");
+    restrictToOwner(invalid);
+    DataOutputStream out = new DataOutputStream(
+        new FileOutputStream(invalid));
+    try {
+      out.writeInt(0x47435254);
+      out.writeInt(1);
+      // No slots, which probing would divide by.
+      out.writeInt(0);
+      out.writeInt(0);
+    } finally {
+      out.close();
+    }
+
+    GoogleContainerRegistryHostTokenCache cache =
+        new GoogleContainerRegistryHostTokenCache(invalid, 16, 256);
+    try {
+      cache.store(KEY, token(TOKEN, HOUR_MILLIS));
+      assertEquals(TOKEN, Secret.toString(cache.load(KEY, 0L).getValue()));
+    } finally {
+      cache.close();
+    }
+  }
+
+  @Test(expected = IOException.class)
+  public void testFileOthersMayReadIsRefused() throws Exception {
+    File shared = folder.newFile("shared");
+    assertTrue(shared.setReadable(true, false));
+
+    new GoogleContainerRegistryHostTokenCache(shared, 16, 256);
+  }
+
+  @Test(expected = IOException.class)
+  public void testNewFileInSharedDirectoryIsRefused() throws Exception {
+    assumeFalse(Functions.isWindows());
+    File shared = folder.newFolder("shared-dir");
+    assertTrue(shared.setReadable(true, false));
+    assertTrue(shared.setExecutable(true, false));
+
+    new GoogleContainerRegistryHostTokenCache(new File(shared, "tokens"), 16,
+        256);
+  }
+
+  @Test(expected = IOException.class)
+  public void testCreatePrivatelyRefusesExistingFile() throws Exception {
+    GoogleContainerRegistryHostTokenCache.createPrivately(file);
+  }
+
+  @Test
+  public void testNewFileIsPrivate() throws Exception {
+    // Opening it again checks that only its owner may access it.
+    new GoogleContainerRegistryHostTokenCache(file, 16, 256).close();
+  }
+}
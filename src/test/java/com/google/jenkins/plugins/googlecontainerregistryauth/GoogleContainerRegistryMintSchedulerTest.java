@@ -0,0 +1,166 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.jenkins.plugins.googlecontainerregistryauth;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import com.google.jenkins.plugins.googlecontainerregistryauth.GoogleContainerRegistryMintScheduler.Lane;
+import com.google.jenkins.plugins.googlecontainerregistryauth.GoogleContainerRegistryMintScheduler.Turn;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for {@link GoogleContainerRegistryMintScheduler}.
+ */
+public class GoogleContainerRegistryMintSchedulerTest {
+  private static final long TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(10);
+
+  private ExecutorService threads;
+
+  @Before
+  public void setUp() throws Exception {
+    threads = Executors.newCachedThreadPool();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    threads.shutdownNow();
+  }
+
+  private Future<Boolean> acquireLater(
+      final GoogleContainerRegistryMintScheduler scheduler, final Turn turn) {
+    return threads.submit(new Callable<Boolean>() {
+      @Override
+      public Boolean call() {
+        return scheduler.acquire(turn, TIMEOUT_MILLIS);
+      }
+    });
+  }
+
+  private static void awaitWaiting(
+      GoogleContainerRegistryMintScheduler scheduler, Lane lane)
+      throws InterruptedException {
+    for (int i = 0; i < 200; i++) {
+      if (scheduler.getLanes().get(lane.ordinal()).getWaiting() > 0) {
+        return;
+      }
+      Thread.sleep(10L);
+    }
+    throw new AssertionError(lane + " never waited");
+  }
+
+  @Test
+  public void testBackgroundIsShedOverItsShare() throws Exception {
+    GoogleContainerRegistryMintScheduler underTest =
+        new GoogleContainerRegistryMintScheduler(2, 2, 1);
+
+    assertTrue(underTest.acquire(new Turn(Lane.BACKGROUND), TIMEOUT_MILLIS));
+    assertFalse(underTest.acquire(new Turn(Lane.BACKGROUND), TIMEOUT_MILLIS));
+    assertTrue(underTest.acquire(new Turn(Lane.BUILD), TIMEOUT_MILLIS));
+
+    GoogleContainerRegistryMintScheduler.LaneInfo background =
+        underTest.getLanes().get(Lane.BACKGROUND.ordinal());
+    assertEquals(1, background.getRunning());
+    assertEquals(1L, background.getGranted());
+    assertEquals(1L, background.getShed());
+  }
+
+  @Test
+  public void testReleaseFreesPermit() throws Exception {
+    GoogleContainerRegistryMintScheduler underTest =
+        new GoogleContainerRegistryMintScheduler(1, 1, 1);
+    Turn turn = new Turn(Lane.BACKGROUND);
+
+    assertTrue(underTest.acquire(turn, 0L));
+    underTest.release(turn);
+    assertTrue(underTest.acquire(new Turn(Lane.BACKGROUND), 0L));
+  }
+
+  @Test
+  public void testBuildsGoAheadOfPages() throws Exception {
+    GoogleContainerRegistryMintScheduler underTest =
+        new GoogleContainerRegistryMintScheduler(1, 1, 0);
+    Turn first = new Turn(Lane.BUILD);
+    assertTrue(underTest.acquire(first, TIMEOUT_MILLIS));
+
+    Turn pageTurn = new Turn(Lane.UI);
+    Future<Boolean> page = acquireLater(underTest, pageTurn);
+    awaitWaiting(underTest, Lane.UI);
+    Turn buildTurn = new Turn(Lane.BUILD);
+    Future<Boolean> build = acquireLater(underTest, buildTurn);
+    awaitWaiting(underTest, Lane.BUILD);
+
+    underTest.release(first);
+    assertTrue(build.get());
+    assertFalse(page.isDone());
+
+    underTest.release(buildTurn);
+    assertTrue(page.get());
+  }
+
+  @Test
+  public void testRaisedTurnGoesAhead() throws Exception {
+    GoogleContainerRegistryMintScheduler underTest =
+        new GoogleContainerRegistryMintScheduler(1, 1, 0);
+    Turn first = new Turn(Lane.BUILD);
+    assertTrue(underTest.acquire(first, TIMEOUT_MILLIS));
+
+    Turn pageTurn = new Turn(Lane.UI);
+    Future<Boolean> page = acquireLater(underTest, pageTurn);
+    awaitWaiting(underTest, Lane.UI);
+    Turn otherTurn = new Turn(Lane.UI);
+    Future<Boolean> other = acquireLater(underTest, otherTurn);
+
+    // A build joined the mint of the first page.
+    underTest.raise(pageTurn, Lane.BUILD);
+    assertEquals(1,
+        underTest.getLanes().get(Lane.BUILD.ordinal()).getWaiting());
+    underTest.release(first);
+    assertTrue(page.get());
+    assertFalse(other.isDone());
+    assertEquals(1,
+        underTest.getLanes().get(Lane.BUILD.ordinal()).getRunning());
+
+    underTest.release(pageTurn);
+    assertTrue(other.get());
+  }
+
+  @Test
+  public void testWaitTimesOut() throws Exception {
+    GoogleContainerRegistryMintScheduler underTest =
+        new GoogleContainerRegistryMintScheduler(1, 1, 0);
+    assertTrue(underTest.acquire(new Turn(Lane.BUILD), TIMEOUT_MILLIS));
+
+    assertFalse(underTest.acquire(new Turn(Lane.UI), 50L));
+    assertEquals(1L, underTest.getLanes().get(Lane.UI.ordinal()).getShed());
+  }
+
+  @Test
+  public void testCallerOutsideOfBuildsAndPages() {
+    assertEquals(Lane.BUILD, Lane.ofCaller());
+  }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.jenkins.plugins.googlecontainerregistryauth;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for {@link GoogleContainerRegistryMintStats}.
+ */
+public class GoogleContainerRegistryMintStatsTest {
+  private GoogleContainerRegistryMintStats underTest;
+
+  @Before
+  public void setUp() throws Exception {
+    underTest = new GoogleContainerRegistryMintStats();
+  }
+
+  @Test
+  public void testEmpty() throws Exception {
+    assertEquals(0L, underTest.getLatencyMillis(0.99));
+    assertEquals(0L, underTest.getLastLifetimeMillis());
+    assertEquals(0L, underTest.getMints());
+  }
+
+  @Test
+  public void testPercentiles() throws Exception {
+    for (int i = 1; i <= 50; i++) {
+      underTest.record(i, 3600000L);
+    }
+    assertEquals(1L, underTest.getLatencyMillis(0));
+    assertEquals(25L, underTest.getLatencyMillis(0.5));
+    assertEquals(50L, underTest.getLatencyMillis(0.99));
+    assertEquals(3600000L, underTest.getLastLifetimeMillis());
+  }
+
+  @Test
+  public void testOnlyRecentMintsCount() throws Exception {
+    underTest.record(10000L, 3600000L);
+    for (int i = 0; i < GoogleContainerRegistryMintStats.WINDOW; i++) {
+      underTest.record(10L, 1800000L);
+    }
+    assertEquals(10L, underTest.getLatencyMillis(0.99));
+    assertEquals(1800000L, underTest.getLastLifetimeMillis());
+    assertEquals(GoogleContainerRegistryMintStats.WINDOW + 1,
+        underTest.getMints());
+  }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.jenkins.plugins.googlecontainerregistryauth;
+
+import java.util.List;
+
+import com.google.common.collect.ImmutableList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link GoogleContainerRegistrySlowOps}.
+ */
+public class GoogleContainerRegistrySlowOpsTest {
+  private static final String CREDENTIALS_ID = "foobar-cred-id";
+
+  @Test
+  public void testSlowOperationIsRecorded() throws Exception {
+    GoogleContainerRegistrySlowOps underTest =
+        new GoogleContainerRegistrySlowOps(0L, 10);
+
+    GoogleContainerRegistrySlowOps.Op op =
+        underTest.begin("getToken", CREDENTIALS_ID, null);
+    op.phase("lookup");
+    op.end("token");
+
+    List<GoogleContainerRegistrySlowOps.Event> events = underTest.getEvents();
+    assertEquals(1, events.size());
+    GoogleContainerRegistrySlowOps.Event event = events.get(0);
+    assertEquals("getToken", event.getOperation());
+    assertEquals(CREDENTIALS_ID, event.getCredentialsId());
+    assertNull(event.getItemGroup());
+    assertEquals(Thread.currentThread().getName(), event.getThread());
+    assertEquals(ImmutableList.of("lookup", "token"),
+        ImmutableList.copyOf(event.getPhases().keySet()));
+  }
+
+  @Test
+  public void testFastOperationIsNotRecorded() throws Exception {
+    GoogleContainerRegistrySlowOps underTest =
+        new GoogleContainerRegistrySlowOps(60000L, 10);
+
+    underTest.begin("matches", null, null).end("test");
+
+    assertTrue(underTest.getEvents().isEmpty());
+    assertEquals(0, underTest.getRecorded());
+  }
+
+  @Test
+  public void testRecordingOff() throws Exception {
+    GoogleContainerRegistrySlowOps underTest =
+        new GoogleContainerRegistrySlowOps(-1L, 10);
+
+    underTest.begin("matches", null, null).end("test");
+
+    assertTrue(underTest.getEvents().isEmpty());
+    assertEquals(-1L, underTest.getThresholdMillis());
+  }
+
+  @Test
+  public void testOnlyMostRecentAreKept() throws Exception {
+    GoogleContainerRegistrySlowOps underTest =
+        new GoogleContainerRegistrySlowOps(0L, 3);
+
+    for (int i = 0; i < 5; i++) {
+      underTest.begin("op" + i, null, null).end("run");
+    }
+
+    List<GoogleContainerRegistrySlowOps.Event> events = underTest.getEvents();
+    assertEquals(3, events.size());
+    assertEquals("op4", events.get(0).getOperation());
+    assertEquals("op2", events.get(2).getOperation());
+    assertEquals(5, underTest.getRecorded());
+
+    underTest.clear();
+    assertTrue(underTest.getEvents().isEmpty());
+  }
+
+  @Test
+  public void testRepeatedPhasesAreSummed() throws Exception {
+    GoogleContainerRegistrySlowOps underTest =
+        new GoogleContainerRegistrySlowOps(0L, 10);
+
+    GoogleContainerRegistrySlowOps.Op op = underTest.begin("op", null, null);
+    for (int i = 0; i < 10; i++) {
+      op.phase("lookup");
+    }
+    op.end("lookup");
+
+    assertEquals(ImmutableList.of("lookup"), ImmutableList.copyOf(
+        underTest.getEvents().get(0).getPhases().keySet()));
+  }
+}
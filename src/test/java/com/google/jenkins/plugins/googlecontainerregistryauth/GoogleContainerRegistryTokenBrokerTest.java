@@ -0,0 +1,232 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.jenkins.plugins.googlecontainerregistryauth;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.cloudbees.plugins.credentials.SystemCredentialsProvider;
+import com.google.api.client.googleapis.auth.oauth2.GoogleCredential;
+import com.google.common.base.Charsets;
+import com.google.common.util.concurrent.Uninterruptibles;
+import com.google.jenkins.plugins.credentials.oauth.GoogleOAuth2ScopeRequirement;
+import com.google.jenkins.plugins.credentials.oauth.GoogleRobotCredentials;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.isA;
+import static org.mockito.Mockito.when;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import hudson.util.Secret;
+import jenkins.model.GlobalConfiguration;
+
+/**
+ * Tests for {@link GoogleContainerRegistryTokenBroker}.
+ */
+public class GoogleContainerRegistryTokenBrokerTest {
+  private static final String CREDENTIALS_ID = "foobar-cred-id";
+  private static final String TOKEN = "foobar-token";
+
+  @Rule public JenkinsRule jenkins = new JenkinsRule();
+
+  @Mock
+  private GoogleRobotCredentials credentials;
+
+  private GoogleContainerRegistryTokenBroker underTest;
+  private ExecutorService threads;
+
+  @Before
+  public void setUp() throws Exception {
+    MockitoAnnotations.initMocks(this);
+    when(credentials.getId()).thenReturn(CREDENTIALS_ID);
+    GoogleCredential credential = new GoogleCredential();
+    credential.setAccessToken(TOKEN);
+    credential.setExpiresInSeconds(TimeUnit.HOURS.toSeconds(1));
+    when(credentials.getGoogleCredential(
+        isA(GoogleOAuth2ScopeRequirement.class))).thenReturn(credential);
+    SystemCredentialsProvider.getInstance().getCredentials().add(credentials);
+    underTest = new GoogleContainerRegistryTokenBroker();
+    threads = Executors.newCachedThreadPool();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    threads.shutdownNow();
+  }
+
+  /**
+   * Serves tokens valid for an hour once released, counting how often it is
+   * asked for one.
+   */
+  private static class CountingModule
+      extends GoogleContainerRegistryCredentialModule {
+    private final AtomicInteger count = new AtomicInteger();
+    private final CountDownLatch asked = new CountDownLatch(1);
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    @Override
+    public GoogleContainerRegistryToken acquireToken(
+        GoogleRobotCredentials credentials) {
+      count.incrementAndGet();
+      asked.countDown();
+      Uninterruptibles.awaitUninterruptibly(release);
+      return new GoogleContainerRegistryToken(Secret.fromString(TOKEN),
+          System.currentTimeMillis() + TimeUnit.HOURS.toMillis(1));
+    }
+  }
+
+  @Test
+  public void testTicketIsReusedPerCredentialAndScope() throws Exception {
+    GoogleContainerRegistryCredentialModule readWrite =
+        new GoogleContainerRegistryCredentialModule();
+    GoogleContainerRegistryCredentialModule readOnly =
+        readWrite.forRequirement(
+            GoogleContainerRegistryScopeRequirement.READ_ONLY);
+
+    String ticket = underTest.issue(readWrite, credentials);
+    assertEquals(64, ticket.length());
+    assertEquals(ticket, underTest.issue(
+        new GoogleContainerRegistryCredentialModule(), credentials));
+    assertFalse(ticket.equals(underTest.issue(readOnly, credentials)));
+  }
+
+  @Test(expected = IOException.class)
+  public void testUnknownTicketIsRejected() throws Exception {
+    underTest.redeem("not-a-ticket", false);
+  }
+
+  @Test
+  public void testFetchOfUnknownTicketFails() throws Exception {
+    assertNull(underTest.fetch("not-a-ticket", false));
+  }
+
+  @Test
+  public void testRedeem() throws Exception {
+    String ticket = underTest.issue(
+        new GoogleContainerRegistryCredentialModule(), credentials);
+
+    assertEquals(TOKEN,
+        Secret.toString(underTest.redeem(ticket, false).getValue()));
+  }
+
+  @Test(expected = IOException.class)
+  public void testRedeemOfDeletedCredentialFails() throws Exception {
+    String ticket = underTest.issue(
+        new GoogleContainerRegistryCredentialModule(), credentials);
+    SystemCredentialsProvider.getInstance().getCredentials().clear();
+
+    underTest.redeem(ticket, false);
+  }
+
+  @Test
+  public void testFetchedTokenIsKept() throws Exception {
+    CountingModule module = new CountingModule();
+    module.release.countDown();
+    String ticket = underTest.issue(module, credentials);
+
+    assertEquals(TOKEN,
+        Secret.toString(underTest.fetch(ticket, false).getValue()));
+    assertEquals(TOKEN,
+        Secret.toString(underTest.fetch(ticket, false).getValue()));
+    assertEquals(1, module.count.get());
+  }
+
+  @Test
+  public void testConcurrentFetchesShareOneRequest() throws Exception {
+    CountingModule module = new CountingModule();
+    final String ticket = underTest.issue(module, credentials);
+    Callable<GoogleContainerRegistryToken> fetch =
+        new Callable<GoogleContainerRegistryToken>() {
+          @Override
+          public GoogleContainerRegistryToken call() {
+            return underTest.fetch(ticket, false);
+          }
+        };
+
+    Future<GoogleContainerRegistryToken> first = threads.submit(fetch);
+    assertTrue(module.asked.await(10, TimeUnit.SECONDS));
+    Future<GoogleContainerRegistryToken> second = threads.submit(fetch);
+    // Let the second one join the request in flight.
+    Thread.sleep(100L);
+    module.release.countDown();
+
+    assertEquals(TOKEN, Secret.toString(first.get().getValue()));
+    assertEquals(TOKEN, Secret.toString(second.get().getValue()));
+    assertEquals(1, module.count.get());
+  }
+
+  @Test
+  public void testBrokeredModuleCarriesNoServiceAccount() throws Exception {
+    GlobalConfiguration.all().get(
+        GoogleContainerRegistryCredentialGlobalConfig.class)
+        .setBrokerTokens(true);
+
+    GoogleContainerRegistryCredentialModule brokered =
+        new GoogleContainerRegistryCredentialModule().forRemote(credentials);
+
+    // The mocked credential cannot be serialized, so this would fail if the
+    // module held on to it.
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    ObjectOutputStream out = new ObjectOutputStream(bytes);
+    out.writeObject(brokered);
+    out.close();
+    assertFalse(new String(bytes.toByteArray(), Charsets.ISO_8859_1)
+        .contains(GoogleRobotCredentials.class.getName()));
+    // Away from the master, there is no credential to look up.
+    assertEquals(TOKEN, Secret.toString(brokered.getToken(null)));
+  }
+
+  @Test
+  public void testBrokeredModuleForRequirementKeepsTicket() throws Exception {
+    GlobalConfiguration.all().get(
+        GoogleContainerRegistryCredentialGlobalConfig.class)
+        .setBrokerTokens(true);
+    GoogleContainerRegistryCredentialModule brokered =
+        new GoogleContainerRegistryCredentialModule().forRemote(credentials);
+
+    GoogleContainerRegistryCredentialModule readOnly = brokered
+        .forRequirement(GoogleContainerRegistryScopeRequirement.READ_ONLY);
+
+    assertSame(brokered, brokered.forRequirement(
+        GoogleContainerRegistryScopeRequirement.READ_WRITE));
+    assertSame(brokered.getClass(), readOnly.getClass());
+    assertEquals(TOKEN, Secret.toString(readOnly.getToken(null)));
+    // Minted by the master, in its read-only pool.
+    assertTrue(GoogleContainerRegistryTokenPools.get().getCaches()
+        .containsKey(GoogleContainerRegistryTokenPools.getScopeKey(
+            GoogleContainerRegistryScopeRequirement.READ_ONLY)));
+  }
+}
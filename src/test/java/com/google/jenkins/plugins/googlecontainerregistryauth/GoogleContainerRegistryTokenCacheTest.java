@@ -0,0 +1,576 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.jenkins.plugins.googlecontainerregistryauth;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import hudson.util.Secret;
+
+/**
+ * Tests for {@link GoogleContainerRegistryTokenCache}.
+ */
+public class GoogleContainerRegistryTokenCacheTest {
+  private static final String KEY = "foobar-cred-id";
+  private static final String TOKEN = "foobar-token";
+
+  private GoogleContainerRegistryTokenCache underTest;
+  private ExecutorService threads;
+
+  @Before
+  public void setUp() throws Exception {
+    underTest = new GoogleContainerRegistryTokenCache(
+        MoreExecutors.sameThreadExecutor());
+    threads = Executors.newCachedThreadPool();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    threads.shutdownNow();
+  }
+
+  /**
+   * Mints tokens valid for a fixed time, counting how often it is called.
+   */
+  private static class CountingMinter
+      implements Callable<GoogleContainerRegistryToken> {
+    private final AtomicInteger count = new AtomicInteger();
+    private final long lifetimeMillis;
+
+    CountingMinter(long lifetimeMillis) {
+      this.lifetimeMillis = lifetimeMillis;
+    }
+
+    @Override
+    public GoogleContainerRegistryToken call() throws Exception {
+      return new GoogleContainerRegistryToken(
+          Secret.fromString(TOKEN + count.incrementAndGet()),
+          System.currentTimeMillis() + lifetimeMillis);
+    }
+  }
+
+  @Test
+  public void testTokenIsCached() throws Exception {
+    CountingMinter minter = new CountingMinter(TimeUnit.HOURS.toMillis(1));
+
+    assertEquals(TOKEN + 1,
+        Secret.toString(underTest.get(KEY, minter).getValue()));
+    assertEquals(TOKEN + 1,
+        Secret.toString(underTest.get(KEY, minter).getValue()));
+    assertEquals(1, minter.count.get());
+  }
+
+  @Test
+  public void testMintsAreRecorded() throws Exception {
+    CountingMinter minter = new CountingMinter(TimeUnit.HOURS.toMillis(1));
+
+    underTest.get(KEY, minter);
+    GoogleContainerRegistryMintStats stats = underTest.getStats(KEY);
+    assertEquals(1, stats.getMints());
+    assertTrue(stats.getLastLifetimeMillis() > TimeUnit.MINUTES.toMillis(59));
+  }
+
+  /**
+   * Tells the time it is told to.
+   */
+  private static class ManualClock
+      extends GoogleContainerRegistryTokenCache.Clock {
+    private long nowMillis;
+
+    @Override
+    long millis() {
+      return nowMillis;
+    }
+
+    @Override
+    long nanos() {
+      return TimeUnit.MILLISECONDS.toNanos(nowMillis);
+    }
+  }
+
+  @Test
+  public void testSameTokenIsNotRefreshedEarlyAgain() throws Exception {
+    final ManualClock clock = new ManualClock();
+    underTest.setPolicy(0L, clock);
+    final AtomicInteger mints = new AtomicInteger();
+    // Takes 5 s, and hands back the same token with a later expiry, as some
+    // credentials do with tokens that are not about to expire.
+    Callable<GoogleContainerRegistryToken> minter =
+        new Callable<GoogleContainerRegistryToken>() {
+          @Override
+          public GoogleContainerRegistryToken call() {
+            mints.incrementAndGet();
+            clock.nowMillis += TimeUnit.SECONDS.toMillis(5);
+            return new GoogleContainerRegistryToken(Secret.fromString(TOKEN),
+                clock.nowMillis + TimeUnit.SECONDS.toMillis(20));
+          }
+        };
+
+    underTest.get(KEY, minter);
+    // Expires at 25 s, refreshed from 20 s on to leave room for the mint.
+    clock.nowMillis = TimeUnit.SECONDS.toMillis(21);
+    underTest.get(KEY, minter);
+    assertEquals(2, mints.get());
+
+    // Now expires at 46 s, but it is the same token: leave it be until then.
+    clock.nowMillis = TimeUnit.SECONDS.toMillis(42);
+    assertEquals(TOKEN, Secret.toString(underTest.get(KEY, minter).getValue()));
+    assertEquals(2, mints.get());
+  }
+
+  @Test
+  public void testExpiringTokenIsReminted() throws Exception {
+    CountingMinter minter = new CountingMinter(TimeUnit.SECONDS.toMillis(10));
+
+    assertEquals(TOKEN + 1,
+        Secret.toString(underTest.get(KEY, minter).getValue()));
+    assertEquals(TOKEN + 2,
+        Secret.toString(underTest.get(KEY, minter).getValue()));
+  }
+
+  @Test
+  public void testInvalidate() throws Exception {
+    CountingMinter minter = new CountingMinter(TimeUnit.HOURS.toMillis(1));
+
+    underTest.get(KEY, minter);
+    underTest.invalidate(KEY);
+    assertEquals(TOKEN + 2,
+        Secret.toString(underTest.get(KEY, minter).getValue()));
+  }
+
+  @Test
+  public void testPrefetch() throws Exception {
+    CountingMinter minter = new CountingMinter(TimeUnit.HOURS.toMillis(1));
+
+    underTest.prefetch(KEY, minter);
+    underTest.prefetch(KEY, minter);
+    assertEquals(TOKEN + 1,
+        Secret.toString(underTest.get(KEY, minter).getValue()));
+    assertEquals(1, minter.count.get());
+  }
+
+  @Test
+  public void testPrefetchIsShedFirst() throws Exception {
+    // No room for background mints, but some for builds.
+    underTest.setScheduler(new GoogleContainerRegistryMintScheduler(1, 1, 0));
+    CountingMinter minter = new CountingMinter(TimeUnit.HOURS.toMillis(1));
+
+    underTest.prefetch(KEY, minter);
+    assertEquals(0, minter.count.get());
+    assertEquals(TOKEN + 1,
+        Secret.toString(underTest.get(KEY, minter).getValue()));
+    assertNull(underTest.getLastError(KEY));
+    assertEquals(0, underTest.getEntries().get(0).getFailures());
+  }
+
+  @Test
+  public void testJoinerOfShedMintMintsItself() throws Exception {
+    final GoogleContainerRegistryTokenCache cache =
+        new GoogleContainerRegistryTokenCache(threads);
+    cache.setLimits(TimeUnit.MINUTES.toMillis(1), 16);
+    GoogleContainerRegistryMintScheduler scheduler =
+        new GoogleContainerRegistryMintScheduler(1, 1, 0);
+    cache.setScheduler(scheduler);
+    GoogleContainerRegistryMintScheduler.Turn held =
+        new GoogleContainerRegistryMintScheduler.Turn(
+            GoogleContainerRegistryMintScheduler.Lane.BUILD);
+    assertTrue(scheduler.acquire(held, 0L));
+    final CountingMinter minter =
+        new CountingMinter(TimeUnit.HOURS.toMillis(1));
+    Callable<GoogleContainerRegistryToken> get =
+        new Callable<GoogleContainerRegistryToken>() {
+          @Override
+          public GoogleContainerRegistryToken call() throws Exception {
+            return cache.get(KEY, minter);
+          }
+        };
+
+    // The owner of the mint waits for a turn, and another request joins.
+    Future<GoogleContainerRegistryToken> owner = threads.submit(get);
+    while (cache.getEntries().isEmpty()
+        || cache.getEntries().get(0).getMisses() < 1) {
+      Thread.sleep(10L);
+    }
+    Future<GoogleContainerRegistryToken> joiner = threads.submit(get);
+    while (cache.getEntries().get(0).getMisses() < 2) {
+      Thread.sleep(10L);
+    }
+
+    // The owner gives up, so its mint is shed, and the joiner mints.
+    owner.cancel(true);
+    while (scheduler.getLanes().get(0).getShed() < 1) {
+      Thread.sleep(10L);
+    }
+    scheduler.release(held);
+    assertEquals(TOKEN + 1, Secret.toString(
+        joiner.get(10L, TimeUnit.SECONDS).getValue()));
+    assertEquals(1, minter.count.get());
+  }
+
+  @Test
+  public void testEntriesDescribeCachedTokens() throws Exception {
+    CountingMinter minter = new CountingMinter(TimeUnit.HOURS.toMillis(1));
+
+    underTest.get(KEY, minter);
+    underTest.get(KEY, minter);
+    underTest.get(KEY, minter);
+    List<GoogleContainerRegistryTokenCache.EntryInfo> entries =
+        underTest.getEntries();
+    assertEquals(1, entries.size());
+    GoogleContainerRegistryTokenCache.EntryInfo entry = entries.get(0);
+    assertEquals(KEY, entry.getKey());
+    assertTrue(entry.isCached());
+    assertFalse(entry.isInFlight());
+    assertEquals(2, entry.getHits());
+    assertEquals(1, entry.getMisses());
+    assertTrue(entry.getAgeMillis() >= 0);
+    assertTrue(entry.getExpiresAtMillis() > System.currentTimeMillis());
+    assertNull(entry.getLastError());
+  }
+
+  @Test
+  public void testRefreshMintsAgain() throws Exception {
+    CountingMinter minter = new CountingMinter(TimeUnit.HOURS.toMillis(1));
+
+    assertFalse(underTest.refresh(KEY));
+    underTest.get(KEY, minter);
+    assertTrue(underTest.refresh(KEY));
+    assertEquals(2, minter.count.get());
+    assertEquals(TOKEN + 2,
+        Secret.toString(underTest.get(KEY, minter).getValue()));
+  }
+
+  @Test
+  public void testForgottenMinterIsNotRefreshed() throws Exception {
+    CountingMinter minter = new CountingMinter(TimeUnit.HOURS.toMillis(1));
+
+    underTest.get(KEY, minter);
+    underTest.forgetMinters();
+    assertFalse(underTest.refresh(KEY));
+    assertEquals(1, minter.count.get());
+
+    underTest.get(KEY, minter);
+    assertTrue(underTest.refresh(KEY));
+    assertEquals(2, minter.count.get());
+  }
+
+  /**
+   * Fails the first {@code failures} mints, then mints tokens valid for an
+   * hour.
+   */
+  private static class FlakyMinter
+      implements Callable<GoogleContainerRegistryToken> {
+    private final AtomicInteger count = new AtomicInteger();
+    private final int failures;
+
+    FlakyMinter(int failures) {
+      this.failures = failures;
+    }
+
+    @Override
+    public GoogleContainerRegistryToken call() throws Exception {
+      if (count.incrementAndGet() <= failures) {
+        throw new IllegalStateException("revoked");
+      }
+      return new GoogleContainerRegistryToken(Secret.fromString(TOKEN),
+          System.currentTimeMillis() + TimeUnit.HOURS.toMillis(1));
+    }
+  }
+
+  @Test
+  public void testFailedMintIsNotCached() throws Exception {
+    FlakyMinter failing = new FlakyMinter(Integer.MAX_VALUE);
+
+    assertNull(underTest.get(KEY, failing));
+    assertNull(underTest.get(KEY, failing));
+    assertEquals(1, failing.count.get());
+  }
+
+  @Test
+  public void testFailureIsRemembered() throws Exception {
+    FlakyMinter failing = new FlakyMinter(Integer.MAX_VALUE);
+
+    assertNull(underTest.get(KEY, failing));
+    assertEquals("revoked", underTest.getLastError(KEY).getMessage());
+    for (int i = 0; i < 10; i++) {
+      assertNull(underTest.get(KEY, failing));
+    }
+    assertEquals(1, failing.count.get());
+  }
+
+  @Test
+  public void testProbeClearsFailure() throws Exception {
+    FlakyMinter flaky = new FlakyMinter(1);
+
+    assertNull(underTest.get(KEY, flaky));
+    assertNull(underTest.get(KEY, flaky));
+    underTest.probe(KEY);
+
+    assertNull(underTest.getLastError(KEY));
+    assertEquals(TOKEN, Secret.toString(underTest.get(KEY, flaky).getValue()));
+    assertEquals(2, flaky.count.get());
+  }
+
+  @Test
+  public void testNoProbeWhenNotWanted() throws Exception {
+    FlakyMinter flaky = new FlakyMinter(1);
+
+    assertNull(underTest.get(KEY, flaky));
+    underTest.probe(KEY);
+    assertEquals(1, flaky.count.get());
+  }
+
+  @Test
+  public void testInvalidateClearsFailure() throws Exception {
+    FlakyMinter flaky = new FlakyMinter(1);
+
+    assertNull(underTest.get(KEY, flaky));
+    underTest.invalidate(KEY);
+    assertEquals(TOKEN, Secret.toString(underTest.get(KEY, flaky).getValue()));
+  }
+
+  @Test
+  public void testConcurrentCallersShareOneMint() throws Exception {
+    final CountDownLatch minting = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    final AtomicInteger count = new AtomicInteger();
+    final Callable<GoogleContainerRegistryToken> slow =
+        new Callable<GoogleContainerRegistryToken>() {
+          @Override
+          public GoogleContainerRegistryToken call() throws Exception {
+            count.incrementAndGet();
+            minting.countDown();
+            release.await();
+            return new GoogleContainerRegistryToken(Secret.fromString(TOKEN),
+                System.currentTimeMillis() + TimeUnit.HOURS.toMillis(1));
+          }
+        };
+
+    List<Future<GoogleContainerRegistryToken>> results = Lists.newArrayList();
+    Callable<GoogleContainerRegistryToken> caller =
+        new Callable<GoogleContainerRegistryToken>() {
+          @Override
+          public GoogleContainerRegistryToken call() throws Exception {
+            return underTest.get(KEY, slow);
+          }
+        };
+    results.add(threads.submit(caller));
+    minting.await();
+    for (int i = 0; i < 10; i++) {
+      results.add(threads.submit(caller));
+    }
+    release.countDown();
+
+    for (Future<GoogleContainerRegistryToken> result : results) {
+      assertEquals(TOKEN, Secret.toString(result.get().getValue()));
+    }
+    assertEquals(1, count.get());
+  }
+
+  /**
+   * Mints a token valid for an hour once released.
+   */
+  private static class HangingMinter
+      implements Callable<GoogleContainerRegistryToken> {
+    private final CountDownLatch minting = new CountDownLatch(1);
+    private final CountDownLatch release = new CountDownLatch(1);
+    private final CountDownLatch interrupted = new CountDownLatch(1);
+
+    @Override
+    public GoogleContainerRegistryToken call() throws Exception {
+      minting.countDown();
+      try {
+        release.await();
+      } catch (InterruptedException e) {
+        interrupted.countDown();
+        throw e;
+      }
+      return new GoogleContainerRegistryToken(Secret.fromString(TOKEN),
+          System.currentTimeMillis() + TimeUnit.HOURS.toMillis(1));
+    }
+  }
+
+  @Test
+  public void testSlowMintTimesOut() throws Exception {
+    GoogleContainerRegistryTokenCache cache =
+        new GoogleContainerRegistryTokenCache(threads);
+    cache.setLimits(100L, 16);
+    HangingMinter hanging = new HangingMinter();
+
+    assertNull(cache.get(KEY, hanging));
+
+    // The mint carries on in the background, and its token is cached.
+    hanging.release.countDown();
+    GoogleContainerRegistryToken token = null;
+    for (int i = 0; i < 100 && token == null; i++) {
+      Thread.sleep(50L);
+      token = cache.get(KEY, hanging);
+    }
+    assertEquals(TOKEN, Secret.toString(token.getValue()));
+  }
+
+  @Test
+  public void testMintInFlightOnInvalidateIsNotCached() throws Exception {
+    final GoogleContainerRegistryTokenCache cache =
+        new GoogleContainerRegistryTokenCache(threads);
+    final HangingMinter hanging = new HangingMinter();
+    int slotsInUse = GoogleContainerRegistryTokenSlab.get().getSlotsInUse();
+    Future<GoogleContainerRegistryToken> waiting = threads.submit(
+        new Callable<GoogleContainerRegistryToken>() {
+          @Override
+          public GoogleContainerRegistryToken call() throws Exception {
+            return cache.get(KEY, hanging);
+          }
+        });
+    hanging.minting.await();
+
+    cache.invalidate(KEY);
+    hanging.release.countDown();
+    // The waiter still gets its token, but nothing keeps it.
+    assertEquals(TOKEN, Secret.toString(waiting.get().getValue()));
+    assertTrue(cache.getEntries().isEmpty());
+    assertEquals(slotsInUse,
+        GoogleContainerRegistryTokenSlab.get().getSlotsInUse());
+  }
+
+  @Test
+  public void testTooManyWaitersFailFast() throws Exception {
+    final GoogleContainerRegistryTokenCache cache =
+        new GoogleContainerRegistryTokenCache(threads);
+    cache.setLimits(TimeUnit.SECONDS.toMillis(10), 1);
+    final HangingMinter hanging = new HangingMinter();
+    Future<GoogleContainerRegistryToken> waiting = threads.submit(
+        new Callable<GoogleContainerRegistryToken>() {
+          @Override
+          public GoogleContainerRegistryToken call() throws Exception {
+            return cache.get(KEY, hanging);
+          }
+        });
+    hanging.minting.await();
+
+    assertNull(cache.get(KEY, hanging));
+    hanging.release.countDown();
+    assertEquals(TOKEN, Secret.toString(waiting.get().getValue()));
+  }
+
+  /**
+   * Hangs until released, even when interrupted, counting how often it is
+   * called.
+   */
+  private static class StubbornMinter
+      implements Callable<GoogleContainerRegistryToken> {
+    private final AtomicInteger count = new AtomicInteger();
+    private final CountDownLatch release = new CountDownLatch(1);
+    private final CountDownLatch returned = new CountDownLatch(1);
+
+    @Override
+    public GoogleContainerRegistryToken call() throws Exception {
+      count.incrementAndGet();
+      Uninterruptibles.awaitUninterruptibly(release);
+      returned.countDown();
+      return new GoogleContainerRegistryToken(Secret.fromString(TOKEN),
+          System.currentTimeMillis() + TimeUnit.HOURS.toMillis(1));
+    }
+  }
+
+  private static Throwable awaitLastError(
+      GoogleContainerRegistryTokenCache cache) throws InterruptedException {
+    for (int i = 0; i < 100 && cache.getLastError(KEY) == null; i++) {
+      Thread.sleep(50L);
+    }
+    return cache.getLastError(KEY);
+  }
+
+  @Test
+  public void testOverdueMintIsInterruptedAndFails() throws Exception {
+    GoogleContainerRegistryTokenCache cache =
+        new GoogleContainerRegistryTokenCache(threads);
+    cache.setLimits(50L, 16);
+    cache.setMaxMintMillis(200L);
+    HangingMinter hanging = new HangingMinter();
+
+    assertNull(cache.get(KEY, hanging));
+
+    assertTrue(hanging.interrupted.await(10, TimeUnit.SECONDS));
+    assertTrue(awaitLastError(cache) instanceof TimeoutException);
+    // Backing off, rather than minting again.
+    assertNull(cache.get(KEY, hanging));
+  }
+
+  @Test
+  public void testStuckMintHoldsOneThreadPerAccount() throws Exception {
+    GoogleContainerRegistryTokenCache cache =
+        new GoogleContainerRegistryTokenCache(threads);
+    cache.setLimits(50L, 16);
+    cache.setMaxMintMillis(200L);
+    StubbornMinter stubborn = new StubbornMinter();
+
+    assertNull(cache.get(KEY, stubborn));
+    assertTrue(awaitLastError(cache) instanceof TimeoutException);
+    // Wanted again, but its thread is still stuck in the first mint.
+    assertNull(cache.get(KEY, stubborn));
+    cache.probe(KEY);
+    assertEquals(1, stubborn.count.get());
+
+    stubborn.release.countDown();
+    assertTrue(stubborn.returned.await(10, TimeUnit.SECONDS));
+    for (int i = 0; i < 100 && stubborn.count.get() == 1; i++) {
+      Thread.sleep(50L);
+      cache.probe(KEY);
+    }
+    assertEquals(2, stubborn.count.get());
+  }
+
+  @Test
+  public void testSlowAccountDoesNotBlockOthers() throws Exception {
+    final GoogleContainerRegistryTokenCache cache =
+        new GoogleContainerRegistryTokenCache(threads);
+    final HangingMinter hanging = new HangingMinter();
+    threads.submit(new Callable<GoogleContainerRegistryToken>() {
+      @Override
+      public GoogleContainerRegistryToken call() throws Exception {
+        return cache.get(KEY, hanging);
+      }
+    });
+    hanging.minting.await();
+
+    CountingMinter minter = new CountingMinter(TimeUnit.HOURS.toMillis(1));
+    assertEquals(TOKEN + 1,
+        Secret.toString(cache.get("other", minter).getValue()));
+    hanging.release.countDown();
+  }
+}
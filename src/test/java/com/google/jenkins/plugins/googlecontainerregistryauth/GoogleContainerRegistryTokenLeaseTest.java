@@ -0,0 +1,183 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.jenkins.plugins.googlecontainerregistryauth;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+import com.google.jenkins.plugins.credentials.oauth.GoogleRobotCredentials;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import hudson.model.Job;
+import hudson.model.Run;
+import hudson.util.Secret;
+
+/**
+ * Tests for {@link GoogleContainerRegistryTokenLease}.
+ */
+public class GoogleContainerRegistryTokenLeaseTest {
+  private static final String LEASE_KEY = "folder/job#1";
+  private static final String CREDENTIALS_ID = "foobar-cred-id";
+  private static final String TOKEN = "foobar-token";
+  private static final String OTHER_TOKEN = "foobar-other-token";
+
+  private GoogleContainerRegistryCredentialModule module;
+  private GoogleRobotCredentials credentials;
+
+  @Before
+  public void setUp() throws Exception {
+    module = mock(GoogleContainerRegistryCredentialModule.class);
+    when(module.getRequirement()).thenReturn(
+        GoogleContainerRegistryScopeRequirement.READ_WRITE);
+    credentials = mock(GoogleRobotCredentials.class);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    GoogleContainerRegistryTokenLease.release(LEASE_KEY);
+  }
+
+  private static GoogleContainerRegistryToken token(String value,
+      long lifetimeMillis) {
+    return new GoogleContainerRegistryToken(Secret.fromString(value),
+        System.currentTimeMillis() + lifetimeMillis);
+  }
+
+  @Test
+  public void testSameLeaseForSameRun() throws Exception {
+    assertSame(GoogleContainerRegistryTokenLease.of(LEASE_KEY, null),
+        GoogleContainerRegistryTokenLease.of(LEASE_KEY, null));
+  }
+
+  @Test
+  public void testTokenSharedAcrossSteps() throws Exception {
+    when(module.acquireToken(credentials)).thenReturn(
+        token(TOKEN, TimeUnit.HOURS.toMillis(1)));
+
+    GoogleContainerRegistryTokenLease lease =
+        GoogleContainerRegistryTokenLease.of(LEASE_KEY, null);
+    for (int i = 0; i < 40; i++) {
+      assertEquals(TOKEN, Secret.toString(
+          lease.getToken(CREDENTIALS_ID, module, credentials)));
+    }
+    verify(module, times(1)).acquireToken(credentials);
+  }
+
+  @Test
+  public void testExpiringTokenIsRenewed() throws Exception {
+    when(module.acquireToken(credentials)).thenReturn(
+        token(TOKEN, TimeUnit.SECONDS.toMillis(10)),
+        token(OTHER_TOKEN, TimeUnit.HOURS.toMillis(1)));
+
+    GoogleContainerRegistryTokenLease lease =
+        GoogleContainerRegistryTokenLease.of(LEASE_KEY, null);
+    assertEquals(TOKEN, Secret.toString(
+        lease.getToken(CREDENTIALS_ID, module, credentials)));
+    assertEquals(OTHER_TOKEN, Secret.toString(
+        lease.getToken(CREDENTIALS_ID, module, credentials)));
+    assertEquals(OTHER_TOKEN, Secret.toString(
+        lease.getToken(CREDENTIALS_ID, module, credentials)));
+    verify(module, times(2)).acquireToken(credentials);
+  }
+
+  @Test
+  public void testFailedMintIsNotLeased() throws Exception {
+    when(module.acquireToken(credentials)).thenReturn(null,
+        token(TOKEN, TimeUnit.HOURS.toMillis(1)));
+
+    GoogleContainerRegistryTokenLease lease =
+        GoogleContainerRegistryTokenLease.of(LEASE_KEY, null);
+    assertNull(lease.getToken(CREDENTIALS_ID, module, credentials));
+    assertEquals(TOKEN, Secret.toString(
+        lease.getToken(CREDENTIALS_ID, module, credentials)));
+  }
+
+  @Test
+  public void testReleaseDropsTokens() throws Exception {
+    when(module.acquireToken(credentials)).thenReturn(
+        token(TOKEN, TimeUnit.HOURS.toMillis(1)));
+
+    GoogleContainerRegistryTokenLease lease =
+        GoogleContainerRegistryTokenLease.of(LEASE_KEY, null);
+    lease.getToken(CREDENTIALS_ID, module, credentials);
+    GoogleContainerRegistryTokenLease.release(LEASE_KEY);
+
+    GoogleContainerRegistryTokenLease newLease =
+        GoogleContainerRegistryTokenLease.of(LEASE_KEY, null);
+    assertNotSame(lease, newLease);
+    newLease.getToken(CREDENTIALS_ID, module, credentials);
+    verify(module, times(2)).acquireToken(credentials);
+  }
+
+  @Test
+  public void testRunGivenWithoutExecutor() throws Exception {
+    final Run<?, ?> run = mock(Run.class);
+    Job<?, ?> job = mock(Job.class);
+    when(run.getExternalizableId()).thenReturn(LEASE_KEY);
+    doReturn(job).when(run).getParent();
+    when(job.getFullName()).thenReturn("folder/job");
+
+    assertNull(GoogleContainerRegistryTokenLease.currentRun());
+    GoogleContainerRegistryTokenLease lease =
+        GoogleContainerRegistryTokenLease.callFor(run,
+            new Callable<GoogleContainerRegistryTokenLease>() {
+              @Override
+              public GoogleContainerRegistryTokenLease call() {
+                assertSame(run, GoogleContainerRegistryTokenLease.currentRun());
+                return GoogleContainerRegistryTokenLease.of(run);
+              }
+            });
+    assertSame(GoogleContainerRegistryTokenLease.of(LEASE_KEY, null), lease);
+    assertNull(GoogleContainerRegistryTokenLease.currentRun());
+  }
+
+  @Test
+  public void testScopesLeasedSeparately() throws Exception {
+    GoogleContainerRegistryCredentialModule readOnlyModule =
+        mock(GoogleContainerRegistryCredentialModule.class);
+    when(readOnlyModule.getRequirement()).thenReturn(
+        GoogleContainerRegistryScopeRequirement.READ_ONLY);
+    when(module.acquireToken(credentials)).thenReturn(
+        token(TOKEN, TimeUnit.HOURS.toMillis(1)));
+    when(readOnlyModule.acquireToken(credentials)).thenReturn(
+        token(OTHER_TOKEN, TimeUnit.HOURS.toMillis(1)));
+
+    GoogleContainerRegistryTokenLease lease =
+        GoogleContainerRegistryTokenLease.of(LEASE_KEY, null);
+    assertEquals(TOKEN, Secret.toString(
+        lease.getToken(CREDENTIALS_ID, module, credentials)));
+    assertEquals(OTHER_TOKEN, Secret.toString(
+        lease.getToken(CREDENTIALS_ID, readOnlyModule, credentials)));
+    assertEquals(TOKEN, Secret.toString(
+        lease.getToken(CREDENTIALS_ID, module, credentials)));
+    verify(module, times(1)).acquireToken(credentials);
+    verify(readOnlyModule, times(1)).acquireToken(credentials);
+  }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.jenkins.plugins.googlecontainerregistryauth;
+
+import com.google.api.services.storage.StorageScopes;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for {@link GoogleContainerRegistryTokenPools}.
+ */
+public class GoogleContainerRegistryTokenPoolsTest {
+  private GoogleContainerRegistryTokenPools underTest;
+
+  @Before
+  public void setUp() throws Exception {
+    underTest = new GoogleContainerRegistryTokenPools();
+  }
+
+  @Test
+  public void testSamePoolForSameScope() throws Exception {
+    assertSame(
+        underTest.forRequirement(
+            GoogleContainerRegistryScopeRequirement.READ_ONLY),
+        underTest.forRequirement(new GoogleContainerRegistryScopeRequirement(
+            StorageScopes.DEVSTORAGE_READ_ONLY)));
+  }
+
+  @Test
+  public void testSeparatePoolPerScope() throws Exception {
+    assertNotSame(
+        underTest.forRequirement(
+            GoogleContainerRegistryScopeRequirement.READ_ONLY),
+        underTest.forRequirement(
+            GoogleContainerRegistryScopeRequirement.READ_WRITE));
+  }
+
+  @Test
+  public void testScopeKey() throws Exception {
+    assertEquals(StorageScopes.DEVSTORAGE_READ_WRITE,
+        GoogleContainerRegistryTokenPools.getScopeKey(
+            new GoogleContainerRegistryScopeRequirement()));
+  }
+
+  @Test
+  public void testReadOnly() throws Exception {
+    assertTrue(GoogleContainerRegistryScopeRequirement.READ_ONLY.isReadOnly());
+    assertFalse(
+        GoogleContainerRegistryScopeRequirement.READ_WRITE.isReadOnly());
+  }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.jenkins.plugins.googlecontainerregistryauth;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import com.cloudbees.plugins.credentials.Credentials;
+import com.cloudbees.plugins.credentials.CredentialsProvider;
+import com.cloudbees.plugins.credentials.SystemCredentialsProvider;
+import com.google.api.client.googleapis.auth.oauth2.GoogleCredential;
+import com.google.common.collect.ImmutableSet;
+import com.google.jenkins.plugins.credentials.oauth.GoogleOAuth2ScopeRequirement;
+import com.google.jenkins.plugins.credentials.oauth.GoogleRobotCredentials;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.isA;
+import static org.mockito.Mockito.when;
+
+import org.acegisecurity.Authentication;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import hudson.model.FreeStyleProject;
+import hudson.model.Item;
+import hudson.model.ItemGroup;
+
+/**
+ * Tests for {@link GoogleContainerRegistryTokenPrewarmer}.
+ */
+public class GoogleContainerRegistryTokenPrewarmerTest {
+  private static final String CREDENTIALS_ID = "foobar-cred-id";
+
+  @Rule public JenkinsRule jenkins = new JenkinsRule();
+
+  @Mock
+  private GoogleRobotCredentials credentials;
+
+  /**
+   * Provides credentials to a single item only, as a folder would to the
+   * jobs within.
+   */
+  private static class ItemCredentialsProvider extends CredentialsProvider {
+    private final Item item;
+    private final Credentials credentials;
+
+    ItemCredentialsProvider(Item item, Credentials credentials) {
+      this.item = item;
+      this.credentials = credentials;
+    }
+
+    @Override
+    public <C extends Credentials> List<C> getCredentials(Class<C> type,
+        ItemGroup itemGroup, Authentication authentication) {
+      return Collections.emptyList();
+    }
+
+    @Override
+    public <C extends Credentials> List<C> getCredentials(Class<C> type,
+        Item item, Authentication authentication) {
+      if (item != this.item || !type.isInstance(credentials)) {
+        return Collections.emptyList();
+      }
+      return Collections.singletonList(type.cast(credentials));
+    }
+  }
+
+  @Before
+  public void setUp() throws Exception {
+    MockitoAnnotations.initMocks(this);
+    when(credentials.getId()).thenReturn(CREDENTIALS_ID);
+    GoogleCredential credential = new GoogleCredential();
+    credential.setAccessToken("foobar-token");
+    credential.setExpiresInSeconds(TimeUnit.HOURS.toSeconds(1));
+    when(credentials.getGoogleCredential(
+        isA(GoogleOAuth2ScopeRequirement.class))).thenReturn(credential);
+  }
+
+  private static GoogleContainerRegistryTokenCache pool(
+      GoogleOAuth2ScopeRequirement requirement) {
+    return GoogleContainerRegistryTokenPools.get().forRequirement(requirement);
+  }
+
+  @Test
+  public void testPrewarmUsesRecordedScopes() throws Exception {
+    // Uses are remembered by job name, across tests.
+    FreeStyleProject job = jenkins.createFreeStyleProject("recorded");
+    SystemCredentialsProvider.getInstance().getCredentials().add(
+        credentials);
+    GoogleContainerRegistryTokenPrewarmer.recordUse(job.getFullName(),
+        CREDENTIALS_ID, GoogleContainerRegistryScopeRequirement.READ_ONLY);
+
+    new GoogleContainerRegistryTokenPrewarmer().prewarm(job);
+
+    assertNotNull(pool(GoogleContainerRegistryScopeRequirement.READ_ONLY)
+        .getStats(CREDENTIALS_ID));
+    assertNull(pool(GoogleContainerRegistryScopeRequirement.READ_WRITE)
+        .getStats(CREDENTIALS_ID));
+  }
+
+  @Test
+  public void testPrewarmOfPullOnlyWrapperIsReadOnly() throws Exception {
+    FreeStyleProject job = jenkins.createFreeStyleProject("pull-only");
+    SystemCredentialsProvider.getInstance().getCredentials().add(
+        credentials);
+    GoogleContainerRegistryDockerConfigWrapper wrapper =
+        new GoogleContainerRegistryDockerConfigWrapper("gcr:" + CREDENTIALS_ID);
+    wrapper.setPullOnly(true);
+    job.getBuildWrappersList().add(wrapper);
+    job.save();
+
+    new GoogleContainerRegistryTokenPrewarmer().prewarm(job);
+
+    assertNotNull(pool(GoogleContainerRegistryScopeRequirement.READ_ONLY)
+        .getStats(CREDENTIALS_ID));
+    assertNull(pool(GoogleContainerRegistryScopeRequirement.READ_WRITE)
+        .getStats(CREDENTIALS_ID));
+  }
+
+  @Test
+  public void testPrewarmSkipsCredentialsBuildsDoNotFind() throws Exception {
+    FreeStyleProject job = jenkins.createFreeStyleProject("in-folder");
+    // Builds look credentials up in the global stores only, so minting one
+    // of a folder would be for nothing.
+    jenkins.jenkins.getExtensionList(CredentialsProvider.class).add(
+        new ItemCredentialsProvider(job, credentials));
+    GoogleContainerRegistryTokenPrewarmer.recordUse(job.getFullName(),
+        CREDENTIALS_ID, GoogleContainerRegistryScopeRequirement.READ_WRITE);
+
+    new GoogleContainerRegistryTokenPrewarmer().prewarm(job);
+
+    assertNull(pool(GoogleContainerRegistryScopeRequirement.READ_WRITE)
+        .getStats(CREDENTIALS_ID));
+  }
+
+  @Test
+  public void testParseReferencedCredentials() throws Exception {
+    String config = "<project><builders>"
+        + "<dockerCmd><credentialsId>gcr:foo</credentialsId></dockerCmd>"
+        + "<dockerCmd><credentialsId>gcr:bar</credentialsId></dockerCmd>"
+        + "<dockerCmd><credentialsId>gcr:foo</credentialsId></dockerCmd>"
+        + "<dockerCmd><credentialsId>dockerhub</credentialsId></dockerCmd>"
+        + "</builders></project>";
+
+    assertEquals(ImmutableSet.of("foo", "bar"),
+        GoogleContainerRegistryTokenPrewarmer.parseReferencedCredentials(
+            config));
+  }
+
+  @Test
+  public void testParseNoReferencedCredentials() throws Exception {
+    assertTrue(GoogleContainerRegistryTokenPrewarmer
+        .parseReferencedCredentials("<project/>").isEmpty());
+  }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.jenkins.plugins.googlecontainerregistryauth;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.collect.Lists;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link GoogleContainerRegistryTokenSimulator}.
+ */
+public class GoogleContainerRegistryTokenSimulatorTest {
+  private static final long MINUTE_MILLIS = TimeUnit.MINUTES.toMillis(1);
+  private static final long HOUR_MILLIS = TimeUnit.HOURS.toMillis(1);
+  private static final long MINT_MICROS = TimeUnit.MILLISECONDS.toMicros(200);
+
+  private final List<GoogleContainerRegistryTokenTrace.Event> events =
+      Lists.newArrayList();
+
+  private void request(long atMillis, int credential) {
+    // The recorded outcome does not matter, but for the mint latency.
+    events.add(new GoogleContainerRegistryTokenTrace.Event(atMillis,
+        credential, 0, false, MINT_MICROS));
+  }
+
+  private static GoogleContainerRegistryTokenSimulator policy(
+      long lifetimeMillis, long marginMillis, boolean prewarm) {
+    return new GoogleContainerRegistryTokenSimulator(lifetimeMillis,
+        marginMillis, prewarm);
+  }
+
+  @Test
+  public void testColdMissThenHits() {
+    for (int i = 30; i > 0; i--) {
+      request(i * MINUTE_MILLIS, 0);
+    }
+
+    GoogleContainerRegistryTokenSimulator.Report report =
+        policy(HOUR_MILLIS, 3 * MINUTE_MILLIS, false).replay(events);
+    assertEquals(30, report.getRequests());
+    assertEquals(29L, report.getHits());
+    assertEquals(1L, report.getColdMisses());
+    assertEquals(0L, report.getExpiryMisses());
+    assertEquals(1L, report.getMints());
+    assertEquals(0L, report.getLatencyMicros(0.5));
+    assertEquals(MINT_MICROS, report.getLatencyMicros(1));
+  }
+
+  @Test
+  public void testSparseRequestsMissOnExpiry() {
+    request(0L, 0);
+    request(2 * HOUR_MILLIS, 0);
+    request(4 * HOUR_MILLIS, 0);
+
+    GoogleContainerRegistryTokenSimulator.Report shortLived =
+        policy(HOUR_MILLIS, 3 * MINUTE_MILLIS, false).replay(events);
+    assertEquals(2L, shortLived.getExpiryMisses());
+    assertEquals(3L, shortLived.getMints());
+
+    GoogleContainerRegistryTokenSimulator.Report longLived =
+        policy(5 * HOUR_MILLIS, 3 * MINUTE_MILLIS, false).replay(events);
+    assertEquals(0L, longLived.getExpiryMisses());
+    assertEquals(1L, longLived.getMints());
+  }
+
+  @Test
+  public void testWideMarginMissesExpiringTokens() {
+    request(0L, 0);
+    request(58 * MINUTE_MILLIS, 0);
+
+    assertEquals(1L, policy(HOUR_MILLIS, 3 * MINUTE_MILLIS, false)
+        .replay(events).getExpiryMisses());
+    assertEquals(0L, policy(HOUR_MILLIS, MINUTE_MILLIS, false)
+        .replay(events).getExpiryMisses());
+  }
+
+  @Test
+  public void testPrewarmAvoidsColdMisses() {
+    request(0L, 0);
+    request(0L, 1);
+    request(MINUTE_MILLIS, 0);
+
+    GoogleContainerRegistryTokenSimulator.Report report =
+        policy(HOUR_MILLIS, 3 * MINUTE_MILLIS, true).replay(events);
+    assertEquals(3L, report.getHits());
+    assertEquals(0L, report.getColdMisses());
+    assertEquals(2L, report.getMints());
+    assertEquals(0L, report.getLatencyMicros(1));
+  }
+}
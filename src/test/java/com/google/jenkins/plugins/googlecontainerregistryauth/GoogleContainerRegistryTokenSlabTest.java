@@ -0,0 +1,113 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.jenkins.plugins.googlecontainerregistryauth;
+
+import java.util.List;
+
+import com.google.common.collect.Lists;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import hudson.util.Secret;
+
+/**
+ * Tests for {@link GoogleContainerRegistryTokenSlab}.
+ */
+public class GoogleContainerRegistryTokenSlabTest {
+  private static final String TOKEN = "foobar-token";
+  private static final int SLOT_BYTES = 32;
+
+  private GoogleContainerRegistryTokenSlab underTest;
+
+  @Before
+  public void setUp() throws Exception {
+    underTest = new GoogleContainerRegistryTokenSlab(SLOT_BYTES);
+  }
+
+  @Test
+  public void testRoundTrip() throws Exception {
+    GoogleContainerRegistryTokenSlab.Slot slot =
+        underTest.put(Secret.fromString(TOKEN));
+
+    assertFalse(slot.isOnHeap());
+    assertEquals(TOKEN, Secret.toString(underTest.read(slot)));
+    assertEquals(1, underTest.getSlotsInUse());
+  }
+
+  @Test
+  public void testFreeWipes() throws Exception {
+    GoogleContainerRegistryTokenSlab.Slot slot =
+        underTest.put(Secret.fromString(TOKEN));
+    assertFalse(underTest.isWiped(slot));
+
+    underTest.free(slot);
+    assertTrue(underTest.isWiped(slot));
+    assertEquals(0, underTest.getSlotsInUse());
+
+    // Freeing twice must not hand the slot out twice.
+    underTest.free(slot);
+    assertEquals(0, underTest.getSlotsInUse());
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testReadAfterFree() throws Exception {
+    GoogleContainerRegistryTokenSlab.Slot slot =
+        underTest.put(Secret.fromString(TOKEN));
+    underTest.free(slot);
+
+    underTest.read(slot);
+  }
+
+  @Test
+  public void testSlotsAreReused() throws Exception {
+    List<GoogleContainerRegistryTokenSlab.Slot> slots = Lists.newArrayList();
+    for (int i = 0; i < 3 * GoogleContainerRegistryTokenSlab.SLOTS_PER_SLAB;
+         i++) {
+      slots.add(underTest.put(Secret.fromString(TOKEN + i)));
+    }
+    long allocated = underTest.getAllocatedBytes();
+    assertEquals(3L * GoogleContainerRegistryTokenSlab.SLOTS_PER_SLAB
+        * SLOT_BYTES, allocated);
+    for (int i = 0; i < slots.size(); i++) {
+      assertEquals(TOKEN + i, Secret.toString(underTest.read(slots.get(i))));
+    }
+
+    for (GoogleContainerRegistryTokenSlab.Slot slot : slots) {
+      underTest.free(slot);
+    }
+    for (int i = 0; i < slots.size(); i++) {
+      underTest.put(Secret.fromString(TOKEN + i));
+    }
+    assertEquals(allocated, underTest.getAllocatedBytes());
+  }
+
+  @Test
+  public void testLargeTokensStayOnHeap() throws Exception {
+    String large = TOKEN + TOKEN + TOKEN;
+    GoogleContainerRegistryTokenSlab.Slot slot =
+        underTest.put(Secret.fromString(large));
+
+    assertTrue(slot.isOnHeap());
+    assertEquals(large, Secret.toString(underTest.read(slot)));
+    assertEquals(0, underTest.getSlotsInUse());
+  }
+}
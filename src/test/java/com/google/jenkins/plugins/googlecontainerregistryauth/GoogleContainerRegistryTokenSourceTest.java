@@ -16,6 +16,7 @@
 
 package com.google.jenkins.plugins.googlecontainerregistryauth;
 
+import java.security.GeneralSecurityException;
 import java.util.Collections;
 import java.util.List;
 
@@ -50,6 +51,7 @@ import org.mockito.MockitoAnnotations;
 
 import hudson.model.Item;
 import hudson.util.Secret;
+import jenkins.authentication.tokens.api.AuthenticationTokenException;
 import jenkins.authentication.tokens.api.AuthenticationTokens;
 import jenkins.model.Jenkins;
 
@@ -158,5 +160,23 @@ public class GoogleContainerRegistryTokenSourceTest {
         (GCR_USERNAME + ":" + SECRET.getPlainText()).getBytes(Charsets.UTF_8));
     assertEquals(encoded, token.getToken());
   }
+
+  @Test
+  public void testConvertReportsWhyNoTokenWasMinted() throws Exception {
+    GeneralSecurityException error =
+        new GeneralSecurityException("quota exceeded");
+    when(credentials.getGoogleCredential(
+        isA(GoogleOAuth2ScopeRequirement.class))).thenThrow(error);
+    GoogleContainerRegistryCredential credential =
+        new GoogleContainerRegistryCredential(CREDENTIALS_ID, null);
+
+    try {
+      new GoogleContainerRegistryTokenSource().convert(credential, null);
+      fail();
+    } catch (AuthenticationTokenException e) {
+      assertSame(error, e.getCause());
+      assertTrue(e.getMessage().contains("quota exceeded"));
+    }
+  }
 }
 
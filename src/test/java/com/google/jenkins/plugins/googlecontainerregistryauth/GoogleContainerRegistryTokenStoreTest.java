@@ -0,0 +1,141 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.jenkins.plugins.googlecontainerregistryauth;
+
+import java.io.File;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import com.google.common.util.concurrent.MoreExecutors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import hudson.util.Secret;
+import jenkins.model.GlobalConfiguration;
+
+/**
+ * Tests for {@link GoogleContainerRegistryTokenStore}.
+ */
+public class GoogleContainerRegistryTokenStoreTest {
+  private static final String KEY = "scope foobar-cred-id";
+  private static final String TOKEN = "foobar-token";
+
+  @Rule public JenkinsRule jenkins = new JenkinsRule();
+
+  private GoogleContainerRegistryCredentialGlobalConfig config;
+  private File file;
+
+  @Before
+  public void setUp() throws Exception {
+    config = GlobalConfiguration.all().get(
+        GoogleContainerRegistryCredentialGlobalConfig.class);
+    config.setPersistTokens(true);
+    file = new File(jenkins.jenkins.getRootDir(), "test-tokens.xml");
+  }
+
+  private static GoogleContainerRegistryToken token(long lifetimeMillis) {
+    return new GoogleContainerRegistryToken(Secret.fromString(TOKEN),
+        System.currentTimeMillis() + lifetimeMillis);
+  }
+
+  @Test
+  public void testTokensSurviveReload() throws Exception {
+    GoogleContainerRegistryTokenStore store =
+        new GoogleContainerRegistryTokenStore(file);
+    store.store(KEY, token(TimeUnit.HOURS.toMillis(1)));
+    store.flush();
+
+    GoogleContainerRegistryToken loaded =
+        new GoogleContainerRegistryTokenStore(file).load(KEY);
+    assertEquals(TOKEN, Secret.toString(loaded.getValue()));
+  }
+
+  @Test
+  public void testTokensAreEncrypted() throws Exception {
+    GoogleContainerRegistryTokenStore store =
+        new GoogleContainerRegistryTokenStore(file);
+    store.store(KEY, token(TimeUnit.HOURS.toMillis(1)));
+    store.flush();
+
+    assertFalse(Files.toString(file, Charsets.UTF_8).contains(TOKEN));
+  }
+
+  @Test
+  public void testExpiredTokensAreNotLoaded() throws Exception {
+    GoogleContainerRegistryTokenStore store =
+        new GoogleContainerRegistryTokenStore(file);
+    store.store(KEY, token(-1L));
+    store.flush();
+
+    assertNull(new GoogleContainerRegistryTokenStore(file).load(KEY));
+  }
+
+  @Test
+  public void testDisabled() throws Exception {
+    GoogleContainerRegistryTokenStore store =
+        new GoogleContainerRegistryTokenStore(file);
+    store.store(KEY, token(TimeUnit.HOURS.toMillis(1)));
+    store.flush();
+    config.setPersistTokens(false);
+
+    assertNull(new GoogleContainerRegistryTokenStore(file).load(KEY));
+  }
+
+  @Test
+  public void testCacheStartsFromStore() throws Exception {
+    GoogleContainerRegistryTokenStore store =
+        new GoogleContainerRegistryTokenStore(file);
+    store.store("scope " + KEY, token(TimeUnit.HOURS.toMillis(1)));
+
+    GoogleContainerRegistryTokenCache cache =
+        new GoogleContainerRegistryTokenCache(
+            MoreExecutors.sameThreadExecutor(), "scope", store);
+    final boolean[] minted = new boolean[1];
+    GoogleContainerRegistryToken token = cache.get(KEY,
+        new Callable<GoogleContainerRegistryToken>() {
+          @Override
+          public GoogleContainerRegistryToken call() {
+            minted[0] = true;
+            return null;
+          }
+        });
+    assertEquals(TOKEN, Secret.toString(token.getValue()));
+    assertFalse(minted[0]);
+  }
+
+  @Test
+  public void testClearDeletesFile() throws Exception {
+    GoogleContainerRegistryTokenStore store =
+        new GoogleContainerRegistryTokenStore(file);
+    store.store(KEY, token(TimeUnit.HOURS.toMillis(1)));
+    store.flush();
+    assertTrue(file.exists());
+
+    store.clear();
+    assertFalse(file.exists());
+  }
+}
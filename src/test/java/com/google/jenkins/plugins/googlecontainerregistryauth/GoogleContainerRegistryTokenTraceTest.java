@@ -0,0 +1,100 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.jenkins.plugins.googlecontainerregistryauth;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests for {@link GoogleContainerRegistryTokenTrace}.
+ */
+public class GoogleContainerRegistryTokenTraceTest {
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  private File file;
+  private GoogleContainerRegistryTokenTrace underTest;
+
+  @Before
+  public void setUp() throws Exception {
+    file = new File(folder.getRoot(), "trace");
+    underTest = new GoogleContainerRegistryTokenTrace(file);
+  }
+
+  @Test
+  public void testRecordsAreReadBack() throws Exception {
+    underTest.record("foobar-cred-id", "scope", 1000L, false, 250000L);
+    underTest.record("foobar-cred-id", "scope", 2000L, true, 15L);
+    underTest.flush();
+
+    List<GoogleContainerRegistryTokenTrace.Event> events =
+        GoogleContainerRegistryTokenTrace.read(file);
+    assertEquals(2, events.size());
+    assertEquals(1000L, events.get(0).getStartedAtMillis());
+    assertFalse(events.get(0).isHit());
+    assertEquals(250000L, events.get(0).getLatencyMicros());
+    assertEquals(2000L, events.get(1).getStartedAtMillis());
+    assertTrue(events.get(1).isHit());
+    assertEquals(15L, events.get(1).getLatencyMicros());
+  }
+
+  @Test
+  public void testNamesAreAnonymized() throws Exception {
+    underTest.record("first-cred-id", "scope", 1000L, false, 0L);
+    underTest.record("second-cred-id", "other scope", 1000L, false, 0L);
+    underTest.record("first-cred-id", "other scope", 1000L, false, 0L);
+    underTest.flush();
+
+    List<GoogleContainerRegistryTokenTrace.Event> events =
+        GoogleContainerRegistryTokenTrace.read(file);
+    assertEquals(0, events.get(0).getCredential());
+    assertEquals(0, events.get(0).getScope());
+    assertEquals(1, events.get(1).getCredential());
+    assertEquals(1, events.get(1).getScope());
+    assertEquals(0, events.get(2).getCredential());
+    assertEquals(1, events.get(2).getScope());
+    assertFalse(Files.toString(file, Charsets.ISO_8859_1)
+        .contains("cred-id"));
+  }
+
+  @Test
+  public void testUnflushedRecordsAreNotRead() throws Exception {
+    underTest.record("foobar-cred-id", "scope", 1000L, true, 0L);
+
+    assertTrue(GoogleContainerRegistryTokenTrace.read(file).isEmpty());
+  }
+
+  @Test(expected = IOException.class)
+  public void testReadNotATrace() throws Exception {
+    File other = folder.newFile("other");
+    Files.write("not a trace", other, Charsets.UTF_8);
+
+    GoogleContainerRegistryTokenTrace.read(other);
+  }
+}
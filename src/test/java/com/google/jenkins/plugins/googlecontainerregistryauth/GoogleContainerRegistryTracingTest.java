@@ -0,0 +1,154 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.jenkins.plugins.googlecontainerregistryauth;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.List;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import net.sf.json.JSONObject;
+
+/**
+ * Tests for {@link GoogleContainerRegistryTracing}.
+ */
+public class GoogleContainerRegistryTracingTest {
+  private static final String CREDENTIALS_ID = "foobar-cred-id";
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  private final List<GoogleContainerRegistrySpan> spans =
+      Lists.newArrayList();
+
+  @Before
+  public void setUp() throws Exception {
+    GoogleContainerRegistryTracing.setLocalExporter(
+        new GoogleContainerRegistrySpanExporter() {
+          @Override
+          public void export(GoogleContainerRegistrySpan span) {
+            spans.add(span);
+          }
+        });
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    GoogleContainerRegistryTracing.setLocalExporter(null);
+  }
+
+  @Test
+  public void testNestedSpans() throws Exception {
+    GoogleContainerRegistrySpan outer =
+        GoogleContainerRegistryTracing.start("getPassword", CREDENTIALS_ID);
+    GoogleContainerRegistrySpan inner =
+        GoogleContainerRegistryTracing.start("getToken", CREDENTIALS_ID);
+    GoogleContainerRegistryTracing.end(inner);
+    GoogleContainerRegistryTracing.end(outer);
+
+    assertEquals(2, spans.size());
+    assertEquals(outer.getTraceId(), inner.getTraceId());
+    assertEquals(outer.getSpanId(), inner.getParentId());
+    assertNull(outer.getParentId());
+    assertTrue(inner.getDurationMicros() >= 0);
+    assertNull(GoogleContainerRegistryTracing.currentContext());
+  }
+
+  @Test
+  public void testContextCrossesJvms() throws Exception {
+    GoogleContainerRegistrySpan sender =
+        GoogleContainerRegistryTracing.start("writeObject", CREDENTIALS_ID);
+    GoogleContainerRegistryTracing.Context context =
+        roundTrip(GoogleContainerRegistryTracing.currentContext());
+    GoogleContainerRegistryTracing.end(sender);
+
+    GoogleContainerRegistryTracing.Scope scope =
+        GoogleContainerRegistryTracing.resume(context);
+    GoogleContainerRegistrySpan receiver =
+        GoogleContainerRegistryTracing.start("remoteGetToken", CREDENTIALS_ID);
+    GoogleContainerRegistryTracing.end(receiver);
+    scope.close();
+
+    assertEquals(sender.getTraceId(), receiver.getTraceId());
+    assertEquals(sender.getSpanId(), receiver.getParentId());
+    assertNull(GoogleContainerRegistryTracing.currentContext());
+  }
+
+  @Test
+  public void testOperationsAreTraced() throws Exception {
+    GoogleContainerRegistrySlowOps slowOps =
+        new GoogleContainerRegistrySlowOps(-1L, 1);
+
+    slowOps.begin("getPassword", CREDENTIALS_ID, null).end("token");
+
+    assertEquals(1, spans.size());
+    assertEquals("getPassword", spans.get(0).getName());
+  }
+
+  @Test
+  public void testNothingTracedWithoutExporter() throws Exception {
+    GoogleContainerRegistryTracing.setLocalExporter(null);
+
+    assertNull(GoogleContainerRegistryTracing.start("getToken", null));
+  }
+
+  @Test
+  public void testFileExporter() throws Exception {
+    File file = folder.newFile("spans.json");
+    GoogleContainerRegistryTracing.setLocalExporter(
+        new GoogleContainerRegistryFileSpanExporter(file));
+
+    GoogleContainerRegistrySpan outer =
+        GoogleContainerRegistryTracing.start("getPassword", CREDENTIALS_ID);
+    GoogleContainerRegistrySpan inner =
+        GoogleContainerRegistryTracing.start("getToken", CREDENTIALS_ID);
+    GoogleContainerRegistryTracing.end(inner);
+    GoogleContainerRegistryTracing.end(outer);
+
+    List<String> lines = Files.readLines(file, Charsets.UTF_8);
+    assertEquals(2, lines.size());
+    JSONObject first = JSONObject.fromObject(lines.get(0));
+    assertEquals("getToken", first.getString("name"));
+    assertEquals(outer.getSpanId(), first.getString("parentId"));
+    assertEquals(CREDENTIALS_ID, first.getString("credentialsId"));
+  }
+
+  private static GoogleContainerRegistryTracing.Context roundTrip(
+      GoogleContainerRegistryTracing.Context context) throws Exception {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    ObjectOutputStream out = new ObjectOutputStream(bytes);
+    out.writeObject(context);
+    out.close();
+    return (GoogleContainerRegistryTracing.Context) new ObjectInputStream(
+        new ByteArrayInputStream(bytes.toByteArray())).readObject();
+  }
+}